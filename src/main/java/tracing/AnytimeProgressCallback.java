@@ -0,0 +1,38 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+public interface AnytimeProgressCallback extends SearchProgressCallback {
+
+	/* An anytime search (see TracerThread.setAnytime) calls this
+	 * each time it finds a better path before the final one,
+	 * which is still reported with finished().  The path is no
+	 * more than bound times as costly as the best path. */
+
+	public void improvedPath( SearchInterface source, Path path, double bound );
+
+}
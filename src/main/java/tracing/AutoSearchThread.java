@@ -95,12 +95,12 @@ public class AutoSearchThread extends SearchThread {
 	}
 
 	@Override
-	protected void addingNode( SearchNode n ) {
-		if( tubeValues[n.z][n.y*width+n.x] > tubenessThreshold ) {
-			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
+	protected void addingNode( int x, int y, int z ) {
+		if( tubeValues[z][y*width+x] > tubenessThreshold ) {
+			AutoPoint p=new AutoPoint(x,y,z);
 			destinations.add(p);
-		} else if( null != previousPathGraph.get(n.x,n.y,n.z) ) {
-			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
+		} else if( null != previousPathGraph.get(x,y,z) ) {
+			AutoPoint p=new AutoPoint(x,y,z);
 			destinations.add(p);
 		}
 	}
@@ -114,7 +114,7 @@ public class AutoSearchThread extends SearchThread {
         }
 
 	Path getPathBack( int from_x, int from_y, int from_z ) {
-		return nodes_as_image_from_start[from_z][from_y*width+from_x].asPath( x_spacing, y_spacing, z_spacing, spacing_units );
+		return pathFrom( nodes_as_image_from_start, from_x, from_y, from_z, false );
 	}
 
 	public Path getResult() {
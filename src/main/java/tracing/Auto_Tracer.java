@@ -45,6 +45,7 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
 
 import stacks.PaneOwner;
 import stacks.ThreePanes;
@@ -279,6 +280,11 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		int maxLoops = -1;
 		int loopsDone = 0;
 
+		/* The searches are run one at a time by a scheduler of
+		   their own, so that they never hold up the tracer's: */
+
+		SearchScheduler scheduler = new SearchScheduler( 1, "Auto trace", Thread.NORM_PRIORITY );
+
 		while( mostTubelikePoints.size() > 0 ) {
 
 			long currentTime = System.currentTimeMillis();
@@ -318,15 +324,18 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			ast.setDrawingThreshold( -1 );
 
 			ast.addProgressListener(this);
+			ast.setMemoryBudget( SimpleNeuriteTracer.savedSearchMemoryBudget() );
 
 			if( liveDisplay )
 				canvas.addSearchThread(ast);
 
-			ast.start();
-
 			try {
-				ast.join();
-			} catch( InterruptedException e ) { }
+				scheduler.submit( ast ).get();
+			} catch( InterruptedException e ) {
+				ast.requestStop();
+			} catch( ExecutionException e ) {
+				throw new RuntimeException( "The search from " + startPoint + " failed", e.getCause() );
+			}
 
 			if( liveDisplay )
 				canvas.removeSearchThread(ast);
@@ -460,6 +469,8 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			++loopsDone;
 		}
 
+		scheduler.shutdown();
+
 		File outputFile=new File(originalFileInfo.directory,outputFileName);
 
 		try {
@@ -630,9 +641,10 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 		// Just log how many nodes were explored in that time:
 		System.out.println("  "+
-				   (sourceThread.open_from_start.size()+
-				    sourceThread.closed_from_start.size())+
+				   sourceThread.pointsConsideredInSearch()+
 				   " nodes in "+secondsSinceThreadStarted+" seconds");
+		if( sourceThread.getExitReason() == SearchThread.OVER_MEMORY_BUDGET )
+			System.out.println("  (stopped at the memory budget; pruning what was found)");
 	}
 
 	/* This reports the current status of the thread, which may be:
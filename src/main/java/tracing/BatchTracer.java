@@ -0,0 +1,418 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.ImagePlus;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import features.ComputeCurvatures;
+
+/* This traces paths between many pairs of points in the same image
+   without any user interface, e.g. for seeds and targets that come
+   from some detection step.  Add the pairs with addPair(), say
+   where the results should go with addCallback(), addPathsTo() or
+   writeSWCTo(), and then call run(), which returns when every pair
+   has been traced (or stop() has been called.)
+
+   Each pair is traced by its own TracerThread, but up to
+   maximumThreads of them are run at once by a SearchScheduler
+   belonging to this BatchTracer.  Everything that doesn't depend on
+   the pair is shared between them and only read: the pixel arrays
+   of the stack (the TracerThreads just refer to those of the
+   ImagePlus, so this should be a normal stack rather than a virtual
+   one), the tubeness values and the landmark distances if
+   setLandmarkCount() was called.  The only state the workers share
+   that isn't read-only is the list of results, so the throughput
+   should go up almost in proportion to the number of processors.
+
+   The exception is when the costs are worked out from the Hessian
+   (useHessian without tubeness): ComputeCurvatures isn't safe to use
+   from several threads, so then the pairs are traced one at a time,
+   sharing the costs found so far in one CostCache.
+
+   The results are passed on in the order that the pairs were added,
+   whatever order they finish in, so that the same input always
+   gives the same output files. */
+
+public class BatchTracer {
+
+	ImagePlus imagePlus;
+	float stackMin, stackMax;
+	boolean reciprocal;
+	ComputeCurvatures hessian;
+	double multiplier;
+	float [][] tubeness;
+	boolean useHessian;
+	boolean singleSlice;
+
+	int timeoutSeconds = 0;
+	int connectivity = 26;
+	int landmarkCount = 0;
+	long memoryBudget = 0;
+	int maximumThreads = Runtime.getRuntime().availableProcessors();
+
+	/* The start and goal points of each pair, six to a pair: */
+
+	int [] points = new int[6 * 64];
+	int pairs = 0;
+
+	ArrayList< BatchTracingCallback > callbacks = new ArrayList< BatchTracingCallback >();
+
+	/* The arguments are those of the TracerThread constructor that
+	   don't depend on the start and goal points: */
+
+	public BatchTracer( ImagePlus imagePlus,
+			    float stackMin,
+			    float stackMax,
+			    boolean reciprocal,
+			    ComputeCurvatures hessian,
+			    double multiplier,
+			    float [][] tubeness,
+			    boolean useHessian ) {
+		this.imagePlus = imagePlus;
+		this.stackMin = stackMin;
+		this.stackMax = stackMax;
+		this.reciprocal = reciprocal;
+		this.hessian = hessian;
+		this.multiplier = multiplier;
+		this.tubeness = tubeness;
+		this.useHessian = useHessian;
+		singleSlice = imagePlus.getStackSize() == 1;
+	}
+
+	/* Returns the number of the pair, which is what's passed to
+	   the callbacks: */
+
+	public synchronized int addPair( int start_x, int start_y, int start_z,
+					 int goal_x, int goal_y, int goal_z ) {
+		if( 6 * pairs == points.length ) {
+			int [] morePoints = new int[2 * points.length];
+			System.arraycopy( points, 0, morePoints, 0, points.length );
+			points = morePoints;
+		}
+		int i = 6 * pairs;
+		points[i] = start_x;
+		points[i+1] = start_y;
+		points[i+2] = start_z;
+		points[i+3] = goal_x;
+		points[i+4] = goal_y;
+		points[i+5] = goal_z;
+		return pairs++;
+	}
+
+	public int getPairCount( ) {
+		return pairs;
+	}
+
+	/* Give up on any pair that takes longer than this (0 means
+	   never give up): */
+
+	public void setTimeoutSeconds( int timeoutSeconds ) {
+		this.timeoutSeconds = timeoutSeconds;
+	}
+
+	public void setConnectivity( int connectivity ) {
+		this.connectivity = connectivity;
+	}
+
+	public void setMaximumThreads( int maximumThreads ) {
+		if( maximumThreads < 1 )
+			throw new IllegalArgumentException( "At least one thread is needed" );
+		this.maximumThreads = maximumThreads;
+	}
+
+	/* If this is more than zero then the distances from that many
+	   landmarks are worked out before any of the pairs are traced,
+	   and used by every search for a better heuristic (see
+	   Landmarks.)  This takes about as long as tracing a few pairs
+	   across the whole image for each landmark, so it's only worth
+	   it for large batches.  It's ignored if the costs come from
+	   the Hessian rather than from tubeness. */
+
+	public void setLandmarkCount( int landmarkCount ) {
+		this.landmarkCount = landmarkCount;
+	}
+
+	/* The memory budget for the search for each pair (see
+	   SearchThread.setMemoryBudget()), so that the batch as a
+	   whole needs at most maximumThreads times this much.  When
+	   the costs come from the Hessian, the cache of them is part
+	   of this, as in SimpleNeuriteTracer: */
+
+	public void setMemoryBudget( long bytes ) {
+		memoryBudget = bytes;
+	}
+
+	public void addCallback( BatchTracingCallback callback ) {
+		callbacks.add( callback );
+	}
+
+	/* Add each path that is found to manager (which could then be
+	   saved as a traces file with writeXML): */
+
+	public void addPathsTo( final PathAndFillManager manager ) {
+		addCallback( new BatchTracingCallback() {
+			@Override
+			public void traced( BatchTracer source, int pair, Path path, int exitReason ) {
+				if( path != null )
+					manager.addPath( path );
+			}
+		} );
+	}
+
+	/* Write each path to pw in SWC format as soon as it's found,
+	   as a separate tree, with a comment before it saying which
+	   pair it's for.  The caller should close pw after run()
+	   returns. */
+
+	public void writeSWCTo( final PrintWriter pw ) {
+		pw.println( "# Exported from \"Simple Neurite Tracer\" version " + SimpleNeuriteTracer.PLUGIN_VERSION );
+		addCallback( new BatchTracingCallback() {
+			int nextPointID = 1;
+			@Override
+			public void traced( BatchTracer source, int pair, Path path, int exitReason ) {
+				if( path == null ) {
+					pw.println( "# pair " + pair + ": no path found (" +
+						    SearchThread.exitReasonStrings[exitReason] + ")" );
+					return;
+				}
+				pw.println( "# pair " + pair + ": " + path.size() + " points" );
+				double [] position = new double[3];
+				for( int i = 0; i < path.size(); ++i ) {
+					path.getPointDouble( i, position );
+					SWCPoint p = new SWCPoint( nextPointID,
+								   path.getSWCType(),
+								   position[0],
+								   position[1],
+								   position[2],
+								   0,
+								   (i == 0) ? -1 : nextPointID - 1 );
+					p.println( pw );
+					++ nextPointID;
+				}
+				pw.flush();
+			}
+		} );
+	}
+
+	/* The results of pairs that have finished but can't be passed
+	   on yet because an earlier pair is still being traced: */
+
+	Path [] results;
+	int [] exitReasons;
+	boolean [] finished;
+	int nextToReport;
+
+	volatile boolean stopping;
+	HashSet< TracerThread > running = new HashSet< TracerThread >();
+
+	SearchScheduler scheduler;
+
+	/* Trace every pair, returning when they've all been passed to
+	   the callbacks: */
+
+	public void run( ) {
+
+		int n;
+		synchronized( this ) {
+			if( scheduler != null )
+				throw new RuntimeException( "BatchTracer.run() was called while it was already running" );
+			n = pairs;
+			results = new Path[n];
+			exitReasons = new int[n];
+			finished = new boolean[n];
+			nextToReport = 0;
+			stopping = false;
+			scheduler = new SearchScheduler( hessianCosts() ? 1 : maximumThreads );
+		}
+
+		boolean interrupted = false;
+		try {
+			CostCache costCache = null;
+			if( hessianCosts() )
+				costCache = new CostCache( imagePlus.getWidth(),
+							   imagePlus.getHeight(),
+							   imagePlus.getStackSize(),
+							   hessian, 0, multiplier,
+							   (memoryBudget > 0) ?
+							   (long)( SimpleNeuriteTracer.COST_CACHE_SHARE * memoryBudget ) :
+							   Runtime.getRuntime().maxMemory() / 4 );
+
+			Landmarks landmarks = null;
+			if( landmarkCount > 0 && costCache == null && n > 0 ) {
+				landmarks = new Landmarks( new CostSettings( imagePlus,
+									     stackMin,
+									     stackMax,
+									     reciprocal,
+									     singleSlice,
+									     hessian,
+									     multiplier,
+									     tubeness,
+									     useHessian ),
+							   landmarkCount );
+				landmarks.setMemoryBudget( memoryBudget );
+				// Worked out on this thread, before any of the searches:
+				landmarks.run();
+			}
+
+			Future<?> [] futures = new Future<?>[n];
+			for( int i = 0; i < n; ++i )
+				futures[i] = scheduler.submit( new PairTracer( i, costCache, landmarks ) );
+
+			for( int i = 0; i < n; ++i ) {
+				try {
+					futures[i].get();
+				} catch( InterruptedException e ) {
+					// Wait for the rest to be cancelled:
+					interrupted = true;
+					stop();
+					-- i;
+				} catch( ExecutionException e ) {
+					// Don't leave the other pairs running:
+					stop();
+					for( int j = i + 1; j < n; ++j )
+						futures[j].cancel( false );
+					throw new RuntimeException( "Tracing pair " + i + " failed", e.getCause() );
+				}
+			}
+
+		} finally {
+			synchronized( this ) {
+				scheduler.shutdown();
+				scheduler = null;
+			}
+			if( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Whether the costs come straight from the Hessian: */
+
+	boolean hessianCosts( ) {
+		return useHessian && tubeness == null;
+	}
+
+	/* Stop tracing: any pairs that haven't been traced yet are
+	   reported as cancelled. */
+
+	public void stop( ) {
+		stopping = true;
+		synchronized( running ) {
+			for( TracerThread t : running )
+				t.requestStop();
+		}
+	}
+
+	/* The result for a pair, once run() has returned: */
+
+	public Path getResult( int pair ) {
+		return results[pair];
+	}
+
+	public int getExitReason( int pair ) {
+		return exitReasons[pair];
+	}
+
+	TracerThread createTracer( int pair ) {
+		int i = 6 * pair;
+		TracerThread t = new TracerThread( imagePlus,
+						   stackMin,
+						   stackMax,
+						   timeoutSeconds,
+						   1000, // reportEveryMilliseconds
+						   points[i], points[i+1], points[i+2],
+						   points[i+3], points[i+4], points[i+5],
+						   reciprocal,
+						   singleSlice,
+						   hessian,
+						   multiplier,
+						   tubeness,
+						   useHessian );
+		t.setConnectivity( connectivity );
+		t.setMemoryBudget( memoryBudget );
+		return t;
+	}
+
+	class PairTracer implements Runnable {
+
+		int pair;
+		CostCache costCache;
+		Landmarks landmarks;
+
+		PairTracer( int pair, CostCache costCache, Landmarks landmarks ) {
+			this.pair = pair;
+			this.costCache = costCache;
+			this.landmarks = landmarks;
+		}
+
+		@Override
+		public void run( ) {
+			if( stopping ) {
+				finished( pair, null, SearchThread.CANCELLED );
+				return;
+			}
+			TracerThread t = createTracer( pair );
+			if( costCache != null ) {
+				t.setCostCache( costCache );
+				if( memoryBudget > 0 )
+					t.setMemoryBudget( Math.max( 1, memoryBudget - costCache.getMaximumBytes() ) );
+			}
+			if( landmarks != null )
+				t.setLandmarks( landmarks );
+			synchronized( running ) {
+				running.add( t );
+			}
+			// stop() may have been called before t was added:
+			if( stopping )
+				t.requestStop();
+			try {
+				t.run();
+			} finally {
+				synchronized( running ) {
+					running.remove( t );
+				}
+			}
+			finished( pair, t.getResult(), t.getExitReason() );
+		}
+	}
+
+	synchronized void finished( int pair, Path path, int exitReason ) {
+		results[pair] = path;
+		exitReasons[pair] = exitReason;
+		finished[pair] = true;
+		while( nextToReport < finished.length && finished[nextToReport] ) {
+			for( BatchTracingCallback callback : callbacks )
+				callback.traced( this, nextToReport, results[nextToReport], exitReasons[nextToReport] );
+			++ nextToReport;
+		}
+	}
+}
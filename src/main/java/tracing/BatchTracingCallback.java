@@ -0,0 +1,40 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* Implement this to be told about each path that a BatchTracer
+   finds.  These are called in the order that the pairs were added
+   to the BatchTracer, one at a time, from whichever of its worker
+   threads happened to finish the next one; path is null if no path
+   was found, in which case exitReason says why (see
+   SearchThread.exitReasonStrings.) */
+
+public interface BatchTracingCallback {
+
+	public void traced( BatchTracer source, int pair, Path path, int exitReason );
+
+}
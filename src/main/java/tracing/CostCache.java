@@ -0,0 +1,237 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import features.ComputeCurvatures;
+
+import java.util.Arrays;
+
+/* The cost of moving to a voxel when tracing with the Hessian
+   depends on the eigenvalues at that voxel, which are expensive to
+   find.  Each voxel is reached from many of its neighbours during a
+   search, and the same area is usually searched again every time the
+   user clicks nearby, so the costs are remembered here the first
+   time that they're calculated.
+
+   One of these is kept by SimpleNeuriteTracer and shared between
+   all the TracerThreads that are started with the same Hessian
+   (i.e. the same sigma) and the same multiplier; it is replaced
+   when either of those changes.
+
+   The image is divided into bricks as in SearchNodeStore, and the
+   array for a brick is only allocated when a cost in it is first
+   stored.  A cost of zero means that it hasn't been calculated yet,
+   which is safe since all the costs are positive.
+
+   Costs may be read and stored from several threads without
+   locking.  They're kept as floats (which is all the precision that
+   the search keeps in g anyway) since writes of a float, unlike
+   those of a double, can't be torn: a thread that reads a cost
+   without synchronization sees either zero or a value that another
+   thread stored.  The zeroes of a new brick are visible to every
+   thread, however it got the reference to the brick.  So the worst
+   that can happen is that a cost is calculated twice, and it will be
+   the same value each time.
+
+   The cache would otherwise grow to 4 bytes for every voxel that's
+   ever been searched (about 5GB for a 2048x2048x300 stack), so it's
+   limited to maximumBytes.  Each brick is stamped with the time it
+   was last used (a count of the bricks allocated so far, which is
+   cheap to read), and when a new brick would take the cache over
+   its limit the least recently used bricks are dropped until it's
+   down to EVICT_TO of the limit.  A search that's still using a
+   dropped brick may store a cost in it that's then lost, which
+   again just means that the cost is calculated again. */
+
+public class CostCache {
+
+	static final int BRICK_BITS = 12;
+	static final int BRICK_SIZE = 1 << BRICK_BITS;
+
+	final int width;
+	final int height;
+	final int depth;
+
+	final int xBits, yBits, zBits;
+	final int xMask, yMask, zMask;
+	final int bricksX, bricksY;
+
+	final float [][] costs;
+
+	/* When each brick was last used, and the number of bricks
+	   allocated so far, which is the clock that those times come
+	   from: */
+
+	final int [] lastUsed;
+	int clock = 0;
+
+	int allocatedBricks = 0;
+
+	long maximumBytes;
+
+	static final double EVICT_TO = 0.75;
+
+	/* What the costs were calculated from: */
+
+	final ComputeCurvatures hessian;
+	final double sigma;
+	final double multiplier;
+
+	public CostCache( int width, int height, int depth,
+			  ComputeCurvatures hessian, double sigma, double multiplier ) {
+		this( width, height, depth, hessian, sigma, multiplier,
+		      Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	public CostCache( int width, int height, int depth,
+			  ComputeCurvatures hessian, double sigma, double multiplier,
+			  long maximumBytes ) {
+		this.maximumBytes = maximumBytes;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.hessian = hessian;
+		this.sigma = sigma;
+		this.multiplier = multiplier;
+
+		int bits = 0;
+		while( bits < 4 && (1 << bits) < depth )
+			++ bits;
+		zBits = bits;
+		xBits = (BRICK_BITS - zBits) / 2;
+		yBits = BRICK_BITS - zBits - xBits;
+		xMask = (1 << xBits) - 1;
+		yMask = (1 << yBits) - 1;
+		zMask = (1 << zBits) - 1;
+
+		bricksX = (width + xMask) >> xBits;
+		bricksY = (height + yMask) >> yBits;
+		int bricksZ = (depth + zMask) >> zBits;
+
+		long bricks = (long)bricksX * bricksY * bricksZ;
+		if( bricks > Integer.MAX_VALUE )
+			throw new RuntimeException( "The image is too large to cache costs for: " +
+						    width + "x" + height + "x" + depth );
+
+		costs = new float[(int)bricks][];
+		lastUsed = new int[(int)bricks];
+	}
+
+	public boolean isFor( ComputeCurvatures hessian, double sigma, double multiplier ) {
+		return this.hessian == hessian &&
+			this.sigma == sigma &&
+			this.multiplier == multiplier;
+	}
+
+	int brick( int x, int y, int z ) {
+		return ((z >> zBits) * bricksY + (y >> yBits)) * bricksX + (x >> xBits);
+	}
+
+	int offset( int x, int y, int z ) {
+		return (((z & zMask) << yBits | (y & yMask)) << xBits) | (x & xMask);
+	}
+
+	/* Returns 0 if the cost at (x,y,z) hasn't been stored yet: */
+
+	public double get( int x, int y, int z ) {
+		int b = brick( x, y, z );
+		float [] c = costs[b];
+		if( c == null )
+			return 0;
+		lastUsed[b] = clock;
+		return c[offset( x, y, z )];
+	}
+
+	public void put( int x, int y, int z, double cost ) {
+		int b = brick( x, y, z );
+		float [] c = costs[b];
+		if( c == null )
+			c = allocateBrick( b );
+		c[offset( x, y, z )] = (float)cost;
+	}
+
+	synchronized float [] allocateBrick( int b ) {
+		if( costs[b] == null ) {
+			if( (allocatedBricks + 1L) * BRICK_BYTES > maximumBytes )
+				evictDownTo( (long)( EVICT_TO * maximumBytes ) );
+			costs[b] = new float[BRICK_SIZE];
+			++ allocatedBricks;
+		}
+		lastUsed[b] = ++ clock;
+		return costs[b];
+	}
+
+	static final int BRICK_BYTES = BRICK_SIZE * 4;
+
+	/* Drop the least recently used bricks until no more than
+	   bytes are allocated: */
+
+	synchronized void evictDownTo( long bytes ) {
+		int keep = (int)Math.max( 0, bytes / BRICK_BYTES );
+		if( allocatedBricks <= keep )
+			return;
+		int [] times = new int[allocatedBricks];
+		int n = 0;
+		for( int b = 0; b < costs.length; ++b )
+			if( costs[b] != null )
+				times[n++] = lastUsed[b];
+		Arrays.sort( times, 0, n );
+		// Bricks last used before this time are dropped, and
+		// then enough of those used at this time to get down
+		// to keep:
+		int newestDropped = times[n - keep - 1];
+		int toDrop = n - keep;
+		for( int b = 0; b < costs.length && toDrop > 0; ++b )
+			if( costs[b] != null && lastUsed[b] < newestDropped ) {
+				costs[b] = null;
+				-- toDrop;
+			}
+		for( int b = 0; b < costs.length && toDrop > 0; ++b )
+			if( costs[b] != null && lastUsed[b] == newestDropped ) {
+				costs[b] = null;
+				-- toDrop;
+			}
+		allocatedBricks = keep;
+	}
+
+	/* Change the limit, dropping bricks if the cache is already
+	   over it: */
+
+	public synchronized void setMaximumBytes( long bytes ) {
+		maximumBytes = bytes;
+		if( (long)allocatedBricks * BRICK_BYTES > bytes )
+			evictDownTo( (long)( EVICT_TO * bytes ) );
+	}
+
+	public synchronized long getMaximumBytes( ) {
+		return maximumBytes;
+	}
+
+	public synchronized long bytesAllocated() {
+		return (long)allocatedBricks * BRICK_BYTES;
+	}
+}
@@ -0,0 +1,183 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+package tracing;
+
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/* The settings that decide what a step costs in a TracerThread's
+   search, without any of the state of a search, for work that needs
+   the same costs but doesn't search between two points (see
+   Landmarks.)  The costs can be worked out from here for intensity
+   and tubeness, but not from the Hessian, which needs the search's
+   own cache of values. */
+
+public class CostSettings {
+
+	final ImagePlus imagePlus;
+	final float stackMin, stackMax;
+	final boolean reciprocal;
+	final boolean singleSlice;
+	final ComputeCurvatures hessian;
+	final double multiplier;
+	final float [][] tubeness;
+	final boolean useHessian;
+
+	final int width, height, depth;
+	final float x_spacing, y_spacing, z_spacing;
+
+	/* The lowest cost per unit distance, as in
+	   TracerThread.minimumCostPerUnitDistance(): */
+
+	final double minimum_cost_per_unit_distance;
+
+	final int imageType;
+	final IntensityCosts intensityCosts;
+	byte [][] slices_data_b;
+	short [][] slices_data_s;
+	float [][] slices_data_f;
+
+	public CostSettings( ImagePlus imagePlus,
+			     float stackMin,
+			     float stackMax,
+			     boolean reciprocal,
+			     boolean singleSlice,
+			     ComputeCurvatures hessian,
+			     double multiplier,
+			     float [][] tubeness,
+			     boolean useHessian ) {
+
+		this.imagePlus = imagePlus;
+		this.stackMin = stackMin;
+		this.stackMax = stackMax;
+		this.reciprocal = reciprocal;
+		this.singleSlice = singleSlice;
+		this.hessian = hessian;
+		this.multiplier = multiplier;
+		this.tubeness = tubeness;
+		this.useHessian = useHessian;
+
+		width = imagePlus.getWidth();
+		height = imagePlus.getHeight();
+		depth = imagePlus.getStackSize();
+
+		Calibration calibration = imagePlus.getCalibration();
+		x_spacing = (float)calibration.pixelWidth;
+		y_spacing = (float)calibration.pixelHeight;
+		z_spacing = (float)calibration.pixelDepth;
+
+		if( hessian == null )
+			minimum_cost_per_unit_distance = reciprocal ? ( 1 / 255.0 ) : 1;
+		else
+			minimum_cost_per_unit_distance = 1 / 60.0;
+
+		imageType = imagePlus.getType();
+		intensityCosts = IntensityCosts.get( imageType, stackMin, stackMax, reciprocal );
+
+		ImageStack s = imagePlus.getStack();
+		switch(imageType) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			slices_data_b = new byte[depth][];
+			for( int z = 0; z < depth; ++z )
+				slices_data_b[z] = (byte []) s.getPixels( z + 1 );
+			break;
+		case ImagePlus.GRAY16:
+			slices_data_s = new short[depth][];
+			for( int z = 0; z < depth; ++z )
+				slices_data_s[z] = (short []) s.getPixels( z + 1 );
+			break;
+		case ImagePlus.GRAY32:
+			slices_data_f = new float[depth][];
+			for( int z = 0; z < depth; ++z )
+				slices_data_f[z] = (float []) s.getPixels( z + 1 );
+			break;
+		}
+	}
+
+	/* The settings of the search t: */
+
+	public CostSettings( TracerThread t ) {
+		this( t.imagePlus,
+		      t.stackMin,
+		      t.stackMax,
+		      t.reciprocal,
+		      t.singleSlice,
+		      t.hessian,
+		      t.multiplier,
+		      t.tubeness,
+		      t.useHessian );
+	}
+
+	/* Whether the costs need the Hessian at each point, rather
+	   than the tubeness worked out in advance: */
+
+	public boolean needsHessian( ) {
+		return useHessian && tubeness == null;
+	}
+
+	boolean isFor( TracerThread t ) {
+		return imagePlus == t.imagePlus &&
+			stackMin == t.stackMin &&
+			stackMax == t.stackMax &&
+			reciprocal == t.reciprocal &&
+			singleSlice == t.singleSlice &&
+			useHessian == t.useHessian &&
+			hessian == t.hessian &&
+			multiplier == t.multiplier &&
+			tubeness == t.tubeness;
+	}
+
+	/* The cost of moving to (x,y,z), as TracerThread.costMovingTo()
+	   works it out: */
+
+	double costMovingTo( int x, int y, int z ) {
+
+		if( useHessian ) {
+			if( tubeness == null )
+				throw new IllegalStateException( "Costs from the Hessian can't be worked out from the settings alone" );
+			float measure = tubeness[z][y*width+x];
+			if( measure == 0 )
+				measure = 0.2f;
+			return 1 / measure;
+		}
+
+		switch(imageType) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			return intensityCosts.cost( slices_data_b[z][y*width+x] );
+		case ImagePlus.GRAY16:
+			return intensityCosts.cost( slices_data_s[z][y*width+x] );
+		case ImagePlus.GRAY32:
+			return intensityCosts.cost( slices_data_f[z][y*width+x] );
+		}
+		return intensityCosts.costForScaled( -1 );
+	}
+}
@@ -27,16 +27,184 @@
 
 package tracing;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
+import util.XMLFunctions;
+
+/* A fill used to be kept as an ArrayList of Node objects, which
+   cost about 48 bytes for each voxel (plus the list's reference to
+   it), so a fill of a whole cell could easily use more than a
+   gigabyte.  The nodes are now kept in primitive arrays instead: the
+   coordinates packed into a long, the distance as a float (which is
+   all the precision that the search's g values have anyway), the
+   index of the previous node as an int, and one bit for whether the
+   node is still open - about 16 bytes per voxel.
+
+   The nodes of a fill loaded from a traces file are usually in a
+   FillNodesFile, and then they're only read when something first
+   asks for them (e.g. when the fill is reloaded), so loading a
+   traces file with several large fills is quick. */
+
 public class Fill {
 
 	public double distanceThreshold;
 
+	/* Each coordinate gets COORDINATE_BITS of the packed long: */
+
+	static final int COORDINATE_BITS = 21;
+	static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+	long [] positions;
+	float [] distances;
+	int [] previous;
+	BitSet open;
+	int size;
+
+	public Fill( ) {
+		this( 1024 );
+	}
+
+	/* If you know how many nodes there will be, this avoids
+	   growing the arrays as they're added: */
+
+	public Fill( int initialCapacity ) {
+		allocate( initialCapacity );
+	}
+
+	void allocate( int capacity ) {
+		capacity = Math.max( 1, capacity );
+		positions = new long[capacity];
+		distances = new float[capacity];
+		previous = new int[capacity];
+		open = new BitSet( capacity );
+	}
+
+	static long pack( int x, int y, int z ) {
+		if( ((x | y | z) & ~COORDINATE_MASK) != 0 )
+			throw new IllegalArgumentException( "Fill node coordinates out of range: (" +
+							    x + "," + y + "," + z + ")" );
+		return ((long)z << (2 * COORDINATE_BITS)) | ((long)y << COORDINATE_BITS) | x;
+	}
+
+	/* If this is set, the nodes haven't been read yet and are
+	   there: */
+
+	volatile FillNodesFile.Location nodesLocation;
+
+	/* The volume in the traces file, so that it can be reported
+	   without reading the nodes: */
+
+	double savedVolume = -1;
+
+	void setNodesLocation( FillNodesFile.Location location ) {
+		nodesLocation = location;
+	}
+
+	void setSavedVolume( double volume ) {
+		savedVolume = volume;
+	}
+
+	public boolean nodesLoaded( ) {
+		return nodesLocation == null;
+	}
+
+	/* Read the nodes from the FillNodesFile, if that hasn't
+	   happened yet: */
+
+	public synchronized void loadNodes( ) throws IOException {
+		FillNodesFile.Location location = nodesLocation;
+		if( location == null )
+			return;
+		allocate( location.nodeCount );
+		size = 0;
+		FillNodesFile.read( location, this );
+		nodesLocation = null;
+	}
+
+	void ensureLoaded( ) {
+		if( nodesLocation != null ) {
+			try {
+				loadNodes();
+			} catch( IOException e ) {
+				throw new RuntimeException( "Failed to read the nodes of a fill from " +
+							    nodesLocation.file + ": " + e.getMessage(), e );
+			}
+		}
+	}
+
+	public void add( int x, int y, int z, double distance, int previous, boolean open ) {
+		addPacked( pack( x, y, z ), (float)distance, previous, open );
+	}
+
+	void addPacked( long position, float distance, int previous, boolean open ) {
+		if( size == positions.length ) {
+			int newCapacity = positions.length * 2;
+			positions = Arrays.copyOf( positions, newCapacity );
+			distances = Arrays.copyOf( distances, newCapacity );
+			this.previous = Arrays.copyOf( this.previous, newCapacity );
+		}
+		positions[size] = position;
+		distances[size] = distance;
+		this.previous[size] = previous;
+		if( open )
+			this.open.set( size );
+		++ size;
+	}
+
+	/* The number of nodes in the fill, and the fields of each
+	   one, in the order that they were added: */
+
+	public int size( ) {
+		FillNodesFile.Location location = nodesLocation;
+		return (location == null) ? size : location.nodeCount;
+	}
+
+	public int getX( int i ) {
+		ensureLoaded();
+		return (int)(positions[i] & COORDINATE_MASK);
+	}
+
+	public int getY( int i ) {
+		ensureLoaded();
+		return (int)((positions[i] >>> COORDINATE_BITS) & COORDINATE_MASK);
+	}
+
+	public int getZ( int i ) {
+		ensureLoaded();
+		return (int)(positions[i] >>> (2 * COORDINATE_BITS));
+	}
+
+	public double getDistance( int i ) {
+		ensureLoaded();
+		return distances[i];
+	}
+
+	/* The index of the node that this one was reached from, or -1
+	   if there isn't one: */
+
+	public int getPrevious( int i ) {
+		ensureLoaded();
+		return previous[i];
+	}
+
+	public boolean isOpen( int i ) {
+		ensureLoaded();
+		return open.get( i );
+	}
+
+	/* Fill used to keep its nodes as an ArrayList of these.  They
+	   are only made on request now, for code that was written
+	   against that: each one is a copy, so changing it doesn't
+	   change the fill (use add() to add nodes.)  The distance is
+	   only as precise as the float that the fill keeps. */
+
+	@Deprecated
 	public class Node {
 		public int x;
 		public int y;
@@ -46,21 +214,39 @@ public class Fill {
 		public boolean open;
 	}
 
-	ArrayList< Node > nodeList;
+	@Deprecated
+	public Node getNode( int i ) {
+		Node n = new Node();
+		n.x = getX( i );
+		n.y = getY( i );
+		n.z = getZ( i );
+		n.distance = getDistance( i );
+		n.previous = getPrevious( i );
+		n.open = isOpen( i );
+		return n;
+	}
 
-	public Fill( ) {
-		nodeList = new ArrayList< Node >();
+	@Deprecated
+	public ArrayList< Node > getNodeList( ) {
+		int n = size();
+		ArrayList< Node > result = new ArrayList< Node >( n );
+		for( int i = 0; i < n; ++i )
+			result.add( getNode( i ) );
+		return result;
 	}
 
-	public void add( int x, int y, int z, double distance, int previous, boolean open ) {
-		Node n = new Node();
-		n.x = x;
-		n.y = y;
-		n.z = z;
-		n.distance = distance;
-		n.previous = previous;
-		n.open = open;
-		nodeList.add(n);
+	/* Drop any space left over after the last node was added: */
+
+	public void trimToSize( ) {
+		if( nodesLoaded() && size < positions.length ) {
+			positions = Arrays.copyOf( positions, size );
+			distances = Arrays.copyOf( distances, size );
+			previous = Arrays.copyOf( previous, size );
+		}
+	}
+
+	public long bytesAllocated( ) {
+		return (long)positions.length * (8 + 4 + 4) + open.size() / 8;
 	}
 
 	Set< Path > sourcePaths;
@@ -107,19 +293,19 @@ public class Fill {
 
 	public void writeNodesXML( PrintWriter pw ) {
 
-		int i = 0;
-		for( Node n : nodeList ) {
+		ensureLoaded();
+		for( int i = 0; i < size; ++i ) {
+			int p = previous[i];
 			pw.println( "    <node id=\"" + i + "\" " +
-				    "x=\"" + n.x + "\" " +
-				    "y=\"" + n.y + "\" " +
-				    "z=\"" + n.z + "\" " +
-				    ((n.previous >= 0) ? "previousid=\"" + n.previous + "\" " : "") +
-				    "distance=\"" + n.distance + "\" status=\"" + (n.open ? "open" : "closed") + "\"/>" );
-			++ i;
+				    "x=\"" + getX(i) + "\" " +
+				    "y=\"" + getY(i) + "\" " +
+				    "z=\"" + getZ(i) + "\" " +
+				    ((p >= 0) ? "previousid=\"" + p + "\" " : "") +
+				    "distance=\"" + getDistance(i) + "\" status=\"" + (isOpen(i) ? "open" : "closed") + "\"/>" );
 		}
 	}
 
-	public void writeXML( PrintWriter pw, int fillIndex ) {
+	void printFillAttributes( PrintWriter pw, int fillIndex ) {
 		pw.print( "  <fill id=\"" + fillIndex + "\""  );
 		if( (sourcePaths != null) && (sourcePaths.size() > 0) ) {
 			pw.print( " frompaths=\"" );
@@ -127,18 +313,49 @@ public class Fill {
 			pw.print( "\"" );
 		}
 		pw.print( " volume=\"" + getVolume() + "\"" );
-		pw.println( " metric=\"" + getMetric() + "\" threshold=\"" + getThreshold() + "\">" );
+		pw.print( " metric=\"" + getMetric() + "\" threshold=\"" + getThreshold() + "\"" );
+	}
+
+	public void writeXML( PrintWriter pw, int fillIndex ) {
+		printFillAttributes( pw, fillIndex );
+		pw.println( ">" );
 		writeNodesXML( pw );
 		pw.println( "  </fill>" );
 	}
 
+	/* Write the <fill> element with the nodes in nodesFile (whose
+	   name, relative to the traces file, is nodesFileName) rather
+	   than in the XML, returning where they were written.  If
+	   the nodes haven't been read yet, they're copied without
+	   decoding them. */
+
+	public FillNodesFile.Location writeXML( PrintWriter pw, int fillIndex,
+						FillNodesFile.Writer nodesFile,
+						String nodesFileName ) throws IOException {
+		FillNodesFile.Location written;
+		synchronized (this) {
+			FillNodesFile.Location location = nodesLocation;
+			if( location != null )
+				written = nodesFile.copy( location );
+			else
+				written = nodesFile.write( this );
+		}
+		printFillAttributes( pw, fillIndex );
+		pw.println( " nodesfile=\"" + XMLFunctions.escapeForXMLAttributeValue( nodesFileName ) +
+			    "\" nodesoffset=\"" + written.offset + "\" nodecount=\"" + written.nodeCount + "\"/>" );
+		return written;
+	}
+
 	/** Assume that the volume is just the number of sub-threshold
 	    nodes multiplied by x_spacing * y_spacing * z_spacing */
 
 	public double getVolume() {
+		if( ! nodesLoaded() && savedVolume >= 0 )
+			return savedVolume;
+		ensureLoaded();
 		int subThresholdNodes = 0;
-		for( Node n : nodeList ) {
-			if( n.distance <= distanceThreshold )
+		for( int i = 0; i < size; ++i ) {
+			if( distances[i] <= distanceThreshold )
 				++ subThresholdNodes;
 		}
 		return subThresholdNodes * x_spacing * y_spacing * z_spacing;
@@ -0,0 +1,322 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* The nodes of fills are saved in a binary file next to the traces
+   file (with ".fills" added to its name) rather than as an XML
+   element per node, which made the traces files of big fills
+   hundreds of megabytes.  The <fill> element in the traces file
+   just says where the fill's nodes start in this file and how many
+   there are.
+
+   The file starts with MAGIC and then a version number.  Each fill
+   is then:
+
+     int nodeCount
+     int nodesPerChunk
+     long bytes        (the length of the chunks that follow)
+     the chunks
+
+   and each chunk, of up to nodesPerChunk nodes, is:
+
+     int uncompressedLength
+     int compressedLength
+     compressedLength bytes, compressed with a Deflater
+
+   The nodes in a chunk are stored a column at a time, since each
+   column compresses better on its own:
+
+     the packed coordinates (see Fill) of each node, as the
+       difference from the previous node's (or zero, for the first
+       node in the chunk) in a zig-zag variable length encoding
+     the distances, as floats
+     for each node i with a previous node p, i - p, and for those
+       without one zero, in the same encoding as the coordinates
+     a bitmap of which nodes are open
+
+   Each chunk can be decoded on its own, and all the numbers outside
+   the compressed data are big-endian, as DataOutputStream writes
+   them. */
+
+public class FillNodesFile {
+
+	static final long MAGIC = 0x534e5446494c4c53L; // "SNTFILLS"
+	static final int VERSION = 1;
+
+	static final int NODES_PER_CHUNK = 1 << 16;
+
+	public static final String SUFFIX = ".fills";
+
+	public static File forTracesFile( File tracesFile ) {
+		return new File( tracesFile.getPath() + SUFFIX );
+	}
+
+	/* Where a fill's nodes are in one of these files: */
+
+	public static class Location {
+
+		public final File file;
+		public final long offset;
+		public final int nodeCount;
+
+		public Location( File file, long offset, int nodeCount ) {
+			this.file = file;
+			this.offset = offset;
+			this.nodeCount = nodeCount;
+		}
+	}
+
+	/* Add the nodes saved at location to fill: */
+
+	public static void read( Location location, Fill fill ) throws IOException {
+		RandomAccessFile in = new RandomAccessFile( location.file, "r" );
+		try {
+			checkHeader( in, location.file );
+			in.seek( location.offset );
+			int nodeCount = in.readInt();
+			if( nodeCount != location.nodeCount )
+				throw new IOException( "Expected " + location.nodeCount + " fill nodes at offset " +
+						       location.offset + " of " + location.file + " but found " + nodeCount );
+			int nodesPerChunk = in.readInt();
+			in.readLong();
+			Inflater inflater = new Inflater();
+			try {
+				for( int start = 0; start < nodeCount; start += nodesPerChunk ) {
+					int uncompressedLength = in.readInt();
+					byte [] compressed = new byte[in.readInt()];
+					in.readFully( compressed );
+					byte [] chunk = new byte[uncompressedLength];
+					inflater.reset();
+					inflater.setInput( compressed );
+					try {
+						if( inflater.inflate( chunk ) != uncompressedLength || ! inflater.finished() )
+							throw new IOException( "A chunk of fill nodes in " + location.file + " was truncated" );
+					} catch( DataFormatException e ) {
+						throw new IOException( "A chunk of fill nodes in " + location.file + " was corrupt: " + e );
+					}
+					decodeChunk( chunk, start, Math.min( nodesPerChunk, nodeCount - start ), fill );
+				}
+			} finally {
+				inflater.end();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static void checkHeader( RandomAccessFile in, File file ) throws IOException {
+		if( in.length() < 12 || in.readLong() != MAGIC )
+			throw new IOException( file + " isn't a file of fill nodes" );
+		int version = in.readInt();
+		if( version != VERSION )
+			throw new IOException( file + " is a version " + version + " file of fill nodes, which this version can't read" );
+	}
+
+	/* Writes the nodes of each fill in turn, returning where they
+	   were written: */
+
+	public static class Writer {
+
+		final File file;
+		final RandomAccessFile out;
+		final Deflater deflater = new Deflater();
+
+		public Writer( File file ) throws IOException {
+			this.file = file;
+			out = new RandomAccessFile( file, "rw" );
+			out.setLength( 0 );
+			out.writeLong( MAGIC );
+			out.writeInt( VERSION );
+		}
+
+		public Location write( Fill fill ) throws IOException {
+			long offset = out.getFilePointer();
+			int nodeCount = fill.size();
+			out.writeInt( nodeCount );
+			out.writeInt( NODES_PER_CHUNK );
+			out.writeLong( 0 );
+			long chunksStart = out.getFilePointer();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte [] compressed = new byte[4096];
+			for( int start = 0; start < nodeCount; start += NODES_PER_CHUNK ) {
+				buffer.reset();
+				encodeChunk( fill, start, Math.min( NODES_PER_CHUNK, nodeCount - start ), buffer );
+				byte [] chunk = buffer.toByteArray();
+				deflater.reset();
+				deflater.setInput( chunk );
+				deflater.finish();
+				int compressedLength = 0;
+				while( ! deflater.finished() ) {
+					if( compressedLength == compressed.length ) {
+						byte [] larger = new byte[compressed.length * 2];
+						System.arraycopy( compressed, 0, larger, 0, compressedLength );
+						compressed = larger;
+					}
+					compressedLength += deflater.deflate( compressed, compressedLength, compressed.length - compressedLength );
+				}
+				out.writeInt( chunk.length );
+				out.writeInt( compressedLength );
+				out.write( compressed, 0, compressedLength );
+			}
+			long end = out.getFilePointer();
+			out.seek( chunksStart - 8 );
+			out.writeLong( end - chunksStart );
+			out.seek( end );
+			return new Location( file, offset, nodeCount );
+		}
+
+		/* Copy the nodes saved at location in another file
+		   without decoding them: */
+
+		public Location copy( Location location ) throws IOException {
+			RandomAccessFile in = new RandomAccessFile( location.file, "r" );
+			try {
+				checkHeader( in, location.file );
+				in.seek( location.offset );
+				long offset = out.getFilePointer();
+				int nodeCount = in.readInt();
+				int nodesPerChunk = in.readInt();
+				long bytes = in.readLong();
+				out.writeInt( nodeCount );
+				out.writeInt( nodesPerChunk );
+				out.writeLong( bytes );
+				byte [] buffer = new byte[65536];
+				while( bytes > 0 ) {
+					int n = (int)Math.min( buffer.length, bytes );
+					in.readFully( buffer, 0, n );
+					out.write( buffer, 0, n );
+					bytes -= n;
+				}
+				return new Location( file, offset, nodeCount );
+			} finally {
+				in.close();
+			}
+		}
+
+		public void close( ) throws IOException {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	static void encodeChunk( Fill fill, int start, int n, ByteArrayOutputStream buffer ) throws IOException {
+		DataOutputStream data = new DataOutputStream( buffer );
+		long last = 0;
+		for( int i = start; i < start + n; ++i ) {
+			long position = fill.positions[i];
+			writeVarLong( data, zigZag( position - last ) );
+			last = position;
+		}
+		for( int i = start; i < start + n; ++i )
+			data.writeFloat( fill.distances[i] );
+		for( int i = start; i < start + n; ++i ) {
+			int previous = fill.previous[i];
+			writeVarLong( data, (previous < 0) ? 0 : zigZag( (long)i - previous ) );
+		}
+		int bits = 0;
+		for( int i = 0; i < n; ++i ) {
+			if( fill.open.get( start + i ) )
+				bits |= 1 << (i & 7);
+			if( (i & 7) == 7 || i == n - 1 ) {
+				data.writeByte( bits );
+				bits = 0;
+			}
+		}
+		data.flush();
+	}
+
+	static void decodeChunk( byte [] chunk, int start, int n, Fill fill ) throws IOException {
+		long [] positions = new long[n];
+		int [] p = { 0 };
+		long last = 0;
+		for( int i = 0; i < n; ++i ) {
+			last += unZigZag( readVarLong( chunk, p ) );
+			positions[i] = last;
+		}
+		float [] distances = new float[n];
+		for( int i = 0; i < n; ++i ) {
+			distances[i] = Float.intBitsToFloat( readInt( chunk, p[0] ) );
+			p[0] += 4;
+		}
+		int [] previous = new int[n];
+		for( int i = 0; i < n; ++i ) {
+			long d = unZigZag( readVarLong( chunk, p ) );
+			previous[i] = (d == 0) ? -1 : (int)(start + i - d);
+		}
+		int bitmap = p[0];
+		if( bitmap + (n + 7) / 8 != chunk.length )
+			throw new IOException( "A chunk of fill nodes had the wrong length" );
+		for( int i = 0; i < n; ++i ) {
+			boolean open = (chunk[bitmap + (i >> 3)] & (1 << (i & 7))) != 0;
+			fill.addPacked( positions[i], distances[i], previous[i], open );
+		}
+	}
+
+	static long zigZag( long v ) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unZigZag( long v ) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void writeVarLong( DataOutputStream data, long v ) throws IOException {
+		while( (v & ~0x7FL) != 0 ) {
+			data.writeByte( (int)((v & 0x7F) | 0x80) );
+			v >>>= 7;
+		}
+		data.writeByte( (int)v );
+	}
+
+	static long readVarLong( byte [] b, int [] p ) throws IOException {
+		long v = 0;
+		for( int shift = 0; shift < 64; shift += 7 ) {
+			if( p[0] >= b.length )
+				throw new IOException( "A chunk of fill nodes was truncated" );
+			byte next = b[p[0]++];
+			v |= (long)(next & 0x7F) << shift;
+			if( next >= 0 )
+				return v;
+		}
+		throw new IOException( "A chunk of fill nodes had a number that was too long" );
+	}
+
+	static int readInt( byte [] b, int i ) throws IOException {
+		if( i + 4 > b.length )
+			throw new IOException( "A chunk of fill nodes was truncated" );
+		return ((b[i] & 0xFF) << 24) | ((b[i+1] & 0xFF) << 16) | ((b[i+2] & 0xFF) << 8) | (b[i+3] & 0xFF);
+	}
+}
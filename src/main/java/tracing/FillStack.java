@@ -0,0 +1,129 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/* A stack of images of a fill whose slices are only made when
+   they're asked for, so that it can be written to disk (with
+   FileSaver.saveAsTiffStack(), which writes a virtual stack a slice
+   at a time) for a stack too large to hold twice in memory.  Slices
+   are normally asked for in order, so when one is, the next few are
+   started in a ForkJoinPool so that they're ready by the time
+   they're wanted.  The filler mustn't change while this is in use;
+   see FillerThread.saveFillAsTiff(). */
+
+public class FillStack extends VirtualStack {
+
+	final FillerThread filler;
+	final boolean realData;
+	final int slicesAhead;
+
+	/* The slices being made ahead of time, indexed as in
+	   getProcessor(), from 1: */
+
+	final Map< Integer, Future< Object > > ahead = new HashMap< Integer, Future< Object > >();
+
+	public FillStack( FillerThread filler, boolean realData ) {
+		super( filler.width, filler.height, null, null );
+		this.filler = filler;
+		this.realData = realData;
+		slicesAhead = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+	}
+
+	@Override
+	public int getSize( ) {
+		return filler.depth;
+	}
+
+	@Override
+	public String getSliceLabel( int n ) {
+		return null;
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor( int n ) {
+		if( n < 1 || n > getSize() )
+			throw new IllegalArgumentException( "There's no slice " + n + " in a stack of " + getSize() );
+
+		Future< Object > slice = ahead.remove( n );
+
+		// Forget any slices that have been skipped:
+		for( Iterator< Map.Entry< Integer, Future< Object > > > i = ahead.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry< Integer, Future< Object > > e = i.next();
+			if( e.getKey() < n || e.getKey() > n + slicesAhead ) {
+				e.getValue().cancel( false );
+				i.remove();
+			}
+		}
+
+		for( int m = n + 1; m <= Math.min( getSize(), n + slicesAhead ); ++m )
+			if( ! ahead.containsKey( m ) )
+				ahead.put( m, ForkJoinPool.commonPool().submit( makeSlice( m ) ) );
+
+		Object pixels;
+		if( slice == null )
+			pixels = filler.fillSlice( n - 1, realData );
+		else {
+			try {
+				pixels = slice.get();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while making slice " + n + " of the fill" );
+			} catch( ExecutionException e ) {
+				throw new RuntimeException( "Failed to make slice " + n + " of the fill", e.getCause() );
+			}
+		}
+		return filler.sliceProcessor( pixels );
+	}
+
+	Callable< Object > makeSlice( final int n ) {
+		return new Callable< Object >() {
+			@Override
+			public Object call( ) {
+				return filler.fillSlice( n - 1, realData );
+			}
+		};
+	}
+
+	/* Stop making any slices that haven't been asked for: */
+
+	public synchronized void discard( ) {
+		for( Future< Object > slice : ahead.values() )
+			slice.cancel( false );
+		ahead.clear();
+	}
+}
@@ -84,8 +84,10 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 	protected JButton setMaxThreshold;
 
 	protected JButton view3D;
+	protected JButton saveStack;
 	protected JCheckBox maskNotReal;
 	protected JCheckBox transparent;
+	protected JCheckBox parallelFill;
 
 	protected boolean currentlyFilling = true;
 	protected JButton pauseOrRestartFilling;
@@ -106,6 +108,7 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 		setThreshold.setEnabled(true);
 		setMaxThreshold.setEnabled(true);
 		view3D.setEnabled(true);
+		saveStack.setEnabled(true);
 		maskNotReal.setEnabled(true);
 		transparent.setEnabled(true);
 		pauseOrRestartFilling.setEnabled(true);
@@ -124,6 +127,7 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 		setThreshold.setEnabled(false);
 		setMaxThreshold.setEnabled(false);
 		view3D.setEnabled(false);
+		saveStack.setEnabled(false);
 		maskNotReal.setEnabled(false);
 		transparent.setEnabled(false);
 		pauseOrRestartFilling.setEnabled(false);
@@ -142,6 +146,7 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 		setThreshold.setEnabled(false);
 		setMaxThreshold.setEnabled(false);
 		view3D.setEnabled(false);
+		saveStack.setEnabled(false);
 		maskNotReal.setEnabled(false);
 		transparent.setEnabled(false);
 		pauseOrRestartFilling.setEnabled(false);
@@ -254,10 +259,18 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 			cf.anchor = GridBagConstraints.LINE_START;
 			fillingOptionsPanel.add(view3D,cf);
 
+			saveStack = new JButton("Save Image Stack from Fill...");
+			saveStack.addActionListener(this);
+			cf.gridx = 0;
+			cf.gridy = 4;
+			cf.gridwidth = 2;
+			cf.anchor = GridBagConstraints.LINE_START;
+			fillingOptionsPanel.add(saveStack,cf);
+
 			maskNotReal = new JCheckBox("Create as Mask");
 			maskNotReal.addItemListener(this);
 			cf.gridx = 0;
-			cf.gridy = 4;
+			cf.gridy = 5;
 			cf.gridwidth = 3;
 			cf.anchor = GridBagConstraints.LINE_START;
 			fillingOptionsPanel.add(maskNotReal,cf);
@@ -265,11 +278,22 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 			transparent = new JCheckBox("Transparent fill display (slow!)");
 			transparent.addItemListener(this);
 			cf.gridx = 0;
-			cf.gridy = 5;
+			cf.gridy = 6;
 			cf.gridwidth = 3;
 			cf.anchor = GridBagConstraints.LINE_START;
 			fillingOptionsPanel.add(transparent,cf);
 
+			int threads = SimpleNeuriteTracer.maximumFillThreads();
+			parallelFill = new JCheckBox("Fill with up to "+threads+" threads (starting with the next fill)");
+			parallelFill.setSelected( plugin.getFillThreads() > 1 );
+			parallelFill.setEnabled( threads > 1 );
+			parallelFill.addItemListener(this);
+			cf.gridx = 0;
+			cf.gridy = 7;
+			cf.gridwidth = 3;
+			cf.anchor = GridBagConstraints.LINE_START;
+			fillingOptionsPanel.add(parallelFill,cf);
+
 			c.gridx = 0;
 			++ c.gridy;
 			c.insets = new Insets( 8, 8, 8, 8 );
@@ -389,6 +413,31 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 
 			plugin.viewFillIn3D( ! maskNotReal.isSelected() );
 
+		} else if( source == saveStack ) {
+
+			SaveDialog sd = new SaveDialog("Save fill image stack as...",
+						       "fill",
+						       ".tif");
+
+			if(sd.getFileName()==null) {
+				return;
+			}
+
+			final String savePath = new File( sd.getDirectory(),
+							  sd.getFileName() ).getAbsolutePath();
+			final boolean realData = ! maskNotReal.isSelected();
+
+			// This may take a long time for a large stack, so
+			// don't do it in the event dispatch thread:
+			plugin.fillScheduler.submitInBackground( new Runnable() {
+				@Override
+				public void run() {
+					IJ.showStatus("Saving the fill as "+savePath);
+					if( plugin.saveFillAsTiff( realData, savePath ) )
+						IJ.showStatus("Saved the fill as "+savePath);
+				}
+			} );
+
 		} else if( source == exportAsCSV ) {
 
 			SaveDialog sd = new SaveDialog("Export fill summary as...",
@@ -430,6 +479,9 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 		assert SwingUtilities.isEventDispatchThread();
 		if( ie.getSource() == transparent )
 			plugin.setFillTransparent( transparent.isSelected() );
+		else if( ie.getSource() == parallelFill )
+			plugin.setFillThreads( parallelFill.isSelected() ?
+					       SimpleNeuriteTracer.maximumFillThreads() : 1 );
 	}
 
 	public void thresholdChanged( final double f ) {
@@ -458,11 +510,27 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 
 	@Override
 	public void finished( SearchInterface source, boolean success ) {
-		// Do nothing...
+		if( ! (source instanceof FillerThread) )
+			return;
+		if( ((FillerThread)source).getExitReason() != SearchThread.OVER_MEMORY_BUDGET )
+			return;
+		/* The fill stopped because it had used as much
+		   memory as it's allowed, but what it has found
+		   so far is still worth saving: */
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				pauseOrRestartFilling.setText("Memory budget reached");
+				pauseOrRestartFilling.setEnabled(false);
+				saveFill.setEnabled(true);
+			}
+		});
 	}
 
 	@Override
 	public void threadStatus( SearchInterface source, final int currentStatus ) {
+		// Say whether the fill is being done in parallel:
+		final int threads = (source instanceof FillerThread) ?
+			((FillerThread)source).getThreads() : 1;
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				switch(currentStatus) {
@@ -470,6 +538,7 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 					pauseOrRestartFilling.setText("Stopped");
 					pauseOrRestartFilling.setEnabled(false);
 					saveFill.setEnabled(false);
+					fillStatus.setText("(Not filling at the moment.)");
 
 					break;
 				case FillerThread.PAUSED:
@@ -479,6 +548,10 @@ public class FillWindow extends JFrame implements PathAndFillListener, ActionLis
 				case FillerThread.RUNNING:
 					pauseOrRestartFilling.setText("Pause");
 					saveFill.setEnabled(false);
+					if( threads > 1 )
+						fillStatus.setText("Filling in parallel with up to "+threads+" threads");
+					else
+						fillStatus.setText("Filling with one thread");
 					break;
 				}
 				fillControlPanel.doLayout();
@@ -30,15 +30,17 @@ package tracing;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.FileSaver;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import java.awt.Graphics;
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class FillerThread extends SearchThread {
 
@@ -59,55 +61,61 @@ public class FillerThread extends SearchThread {
 		int y = (int)Math.round( yd );
 		int z = (int)Math.round( zd );
 
-                SearchNode [] slice = nodes_as_image_from_start[z];
-                if( slice == null )
-			return -1.0f;
-
-		SearchNode n = slice[y*width+x];
-		if( n == null )
+		if( nodes_as_image_from_start.getStatus( x, y, z ) == SearchNodeStore.ABSENT )
 			return -1.0f;
 		else
-			return n.g;
+			return nodes_as_image_from_start.getG( x, y, z );
         }
 
-        // FIXME: may be buggy, synchronization issues
-
-        Fill getFill( ) {
-
-                Hashtable< SearchNode, Integer > h =
-                        new Hashtable< SearchNode, Integer >();
-
-                ArrayList< SearchNode > a =
-                        new ArrayList< SearchNode >();
-
-                // The tricky bit here is that we want to create a
-                // Fill object with index
+	/* The fill so far; this can be called while the filler is
+	   running, since it waits until the search is between nodes
+	   and stops it from going on until the fill's been made. */
 
-		int openAtOrAbove;
-
-                int i = 0;
+	Fill getFill( ) {
+		beginSnapshot();
+		try {
+			return fillFromNodes();
+		} finally {
+			endSnapshot();
+		}
+	}
 
-                for( SearchNode current : closed_from_start ) {
-                        /* if( current.g <= threshold ) { */
-			h.put( current, new Integer(i) );
-			a.add( current );
-			++ i;
-			/* } */
-                }
+	/* The closed nodes come first, in order of their index, and
+	   then the open ones in the order that they are in the open
+	   list.  Where each node ends up in the Fill is recorded in a
+	   table laid out like the bricks of the SearchNodeStore, so
+	   that the index of a node's predecessor can be found without
+	   a hash table.  (The positions are stored plus one, so that
+	   zero means the node isn't in the fill.) */
+
+	Fill fillFromNodes( ) {
+
+		SearchNodeStore nodes = nodes_as_image_from_start;
+
+		int [] closed = nodes.nodesWithStatus( CLOSED_FROM_START );
+
+		// A parallel fill keeps its open nodes in a heap for
+		// each thread, so take them in order of their index:
+		int [] open;
+		if( parallelFill != null )
+			open = nodes.nodesWithStatus( OPEN_FROM_START );
+		else {
+			open = new int[open_from_start.size()];
+			for( int j = 0; j < open.length; ++j )
+				open[j] = open_from_start.get(j);
+		}
 
-		openAtOrAbove = i;
+		int [][] positions = new int[nodes.status.length][];
 
-		if (verbose) System.out.println("openAtOrAbove is: "+openAtOrAbove);
+		int i = 0;
+		for( int j = 0; j < closed.length; ++j )
+			setPosition( positions, closed[j], ++ i );
+		for( int j = 0; j < open.length; ++j )
+			setPosition( positions, open[j], ++ i );
 
-		for( SearchNode current : open_from_start ) {
-                        /* if( current.g <= threshold ) { */
-			h.put( current, new Integer(i) );
-			a.add( current );
-			++ i;
-			/* } */
-                }
+		if (verbose) System.out.println("... making a fill of "+i+" nodes, "+open.length+" of them open");
 
-                Fill fill = new Fill();
+                Fill fill = new Fill( i );
 
                 fill.setThreshold( threshold );
                 if( reciprocal )
@@ -120,20 +128,10 @@ public class FillerThread extends SearchThread {
                                  z_spacing,
                                  spacing_units );
 
-		if (verbose) System.out.println("... out of a.size() "+a.size()+" entries");
-
-                for( i = 0; i < a.size(); ++i ) {
-                        SearchNode f = a.get(i);
-                        int previousIndex = -1;
-                        SearchNode previous = f.getPredecessor();
-                        if( previous != null ) {
-                                Integer p = h.get(previous);
-                                if( p != null ) {
-                                        previousIndex = p.intValue();
-                                }
-                        }
-                        fill.add( f.x, f.y, f.z, f.g, previousIndex, i >= openAtOrAbove );
-                }
+		for( int j = 0; j < closed.length; ++j )
+			addToFill( fill, nodes, positions, closed[j], false );
+		for( int j = 0; j < open.length; ++j )
+			addToFill( fill, nodes, positions, open[j], true );
 
                 if( sourcePaths != null ) {
                         fill.setSourcePaths( sourcePaths );
@@ -142,6 +140,26 @@ public class FillerThread extends SearchThread {
                 return fill;
         }
 
+	static void setPosition( int [][] positions, int id, int position ) {
+		int b = id >>> SearchNodeStore.BRICK_BITS;
+		if( positions[b] == null )
+			positions[b] = new int[SearchNodeStore.BRICK_SIZE];
+		positions[b][id & (SearchNodeStore.BRICK_SIZE - 1)] = position;
+	}
+
+	static int getPosition( int [][] positions, int id ) {
+		int [] p = positions[id >>> SearchNodeStore.BRICK_BITS];
+		return (p == null) ? 0 : p[id & (SearchNodeStore.BRICK_SIZE - 1)];
+	}
+
+	void addToFill( Fill fill, SearchNodeStore nodes, int [][] positions, int id, boolean open ) {
+		int previousIndex = -1;
+		int previous = nodes.getPredecessor( id );
+		if( previous != SearchNodeStore.NONE )
+			previousIndex = getPosition( positions, previous ) - 1;
+		fill.add( nodes.x(id), nodes.y(id), nodes.z(id), nodes.getG( id ), previousIndex, open );
+	}
+
         Set< Path > sourcePaths;
 
 	public static FillerThread fromFill( ImagePlus imagePlus,
@@ -172,34 +190,40 @@ public class FillerThread extends SearchThread {
 							fill.getThreshold(),
 							5000 );
 
-		ArrayList< SearchNode > tempNodes = new ArrayList< SearchNode >();
+		/* The nodes go straight into the filler's node store
+		   and open list, without making an object for each
+		   one (as many of them as there are voxels in the
+		   fill).  As before, only the first node at each
+		   position is used: */
 
-		for( Fill.Node n : fill.nodeList ) {
+		SearchNodeStore nodes = result.nodes_as_image_from_start;
 
-			SearchNode s = new SearchNode( n.x,
-						       n.y,
-						       n.z,
-						       (float)n.distance,
-						       0,
-						       null,
-						       SearchThread.FREE );
-			tempNodes.add(s);
-		}
+		for( int i = 0; i < fill.size(); ++i ) {
 
-		for( int i = 0; i < tempNodes.size(); ++i ) {
-			Fill.Node n = fill.nodeList.get(i);
-			SearchNode s = tempNodes.get(i);
-			if( n.previous >= 0 ) {
-				s.setPredecessor( tempNodes.get(n.previous) );
-			}
-			if( n.open ) {
-				s.searchStatus = OPEN_FROM_START;
-				result.addNode( s, true );
+			int x = fill.getX(i);
+			int y = fill.getY(i);
+			int z = fill.getZ(i);
+
+			if( nodes.getStatus( x, y, z ) != SearchNodeStore.ABSENT )
+				continue;
+
+			int predecessorId = SearchNodeStore.NONE;
+			int previous = fill.getPrevious(i);
+			if( previous >= 0 )
+				predecessorId = nodes.id( fill.getX(previous),
+							  fill.getY(previous),
+							  fill.getZ(previous) );
+
+			float g = (float)fill.getDistance(i);
+
+			if( fill.isOpen(i) ) {
+				nodes.set( x, y, z, g, predecessorId, OPEN_FROM_START );
+				result.open_from_start.add( nodes.id( x, y, z ), g );
 			} else {
-				s.searchStatus = CLOSED_FROM_START;
-				result.addNode( s, true );
+				nodes.set( x, y, z, g, predecessorId, CLOSED_FROM_START );
 			}
 		}
+
 		result.setSourcePaths( fill.sourcePaths );
 		return result;
 	}
@@ -235,8 +259,6 @@ public class FillerThread extends SearchThread {
 
                 this.reciprocal = reciprocal;
                 setThreshold( initialThreshold );
-
-		setPriority( MIN_PRIORITY );
         }
 
 	public void setSourcePaths( Set<Path> newSourcePaths ) {
@@ -258,76 +280,116 @@ public class FillerThread extends SearchThread {
 		}
 	}
 
-        public ImagePlus fillAsImagePlus( boolean realData ) {
-
-		byte [][] new_slice_data_b = new byte[depth][];
-		short [][] new_slice_data_s = new short[depth][];
-		float [][] new_slice_data_f = new float[depth][];
+	/* The pixels of slice z of an image of the fill: either the
+	   values of the image where it's filled, or a mask with 255
+	   there, and zero everywhere else.  Only an array of the
+	   image's own type is allocated. */
+
+	Object fillSlice( int z, boolean realData ) {
+
+		int n = width * height;
+		byte [] b = null;
+		short [] s = null;
+		float [] f = null;
+
+		switch( imageType ) {
+		case ImagePlus.GRAY16:
+			s = new short[n];
+			break;
+		case ImagePlus.GRAY32:
+			f = new float[n];
+			break;
+		default:
+			b = new byte[n];
+			break;
+		}
 
-                for( int z = 0; z < depth; ++z ) {
-			switch( imageType ) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				new_slice_data_b[z] = new byte[width*height];
-				break;
-			case ImagePlus.GRAY16:
-				new_slice_data_s[z] = new short[width*height];
-				break;
-			case ImagePlus.GRAY32:
-				new_slice_data_f[z] = new float[width*height];
-				break;
+		SearchNodeStore nodes = nodes_as_image_from_start;
+
+		if( nodes.anyNodesInSlice(z) )
+			for( int y = 0; y < height; ++y ) {
+				for( int x = 0; x < width; ++x ) {
+					if( (nodes.getStatus(x,y,z) != SearchNodeStore.ABSENT) &&
+					    (nodes.getG(x,y,z) <= threshold) ) {
+						int i = y * width + x;
+						if( b != null )
+							b[i] = realData ? slices_data_b[z][i] : (byte)255;
+						else if( s != null )
+							s[i] = realData ? slices_data_s[z][i] : 255;
+						else
+							f[i] = realData ? slices_data_f[z][i] : 255;
+					}
+				}
 			}
-                }
 
-                ImageStack stack = new ImageStack(width,height);
+		if( b != null )
+			return b;
+		else if( s != null )
+			return s;
+		else
+			return f;
+	}
 
-                for( int z = 0; z < depth; ++z ) {
-			SearchNode [] nodes_this_slice=nodes_as_image_from_start[z];
-			if( nodes_this_slice != null )
-				for( int y = 0; y < height; ++y ) {
-					for( int x = 0; x < width; ++x ) {
-						SearchNode s = nodes_as_image_from_start[z][y*width+x];
-						if( (s != null) && (s.g <= threshold) ) {
-							switch( imageType ) {
-							case ImagePlus.GRAY8:
-							case ImagePlus.COLOR_256:
-								new_slice_data_b[z][y*width+x] = realData ? slices_data_b[z][y*width+x] : (byte)255;
-								break;
-							case ImagePlus.GRAY16:
-								new_slice_data_s[z][y*width+x] = realData ? slices_data_s[z][y*width+x] : 255;
-								break;
-							case ImagePlus.GRAY32:
-								new_slice_data_f[z][y*width+x] = realData ? slices_data_f[z][y*width+x] : 255;
-								break;
-							default:
-								break;
-							}
-						}
-					}
-				}
+	ImageProcessor sliceProcessor( Object pixels ) {
+		ImageProcessor ip;
+		if( pixels instanceof short[] )
+			ip = new ShortProcessor(width,height);
+		else if( pixels instanceof float[] )
+			ip = new FloatProcessor(width,height);
+		else
+			ip = new ByteProcessor(width,height);
+		ip.setPixels( pixels );
+		return ip;
+	}
+
+	/* Makes slices from..to-1 in a ForkJoinPool, splitting the
+	   range in half until there's one slice left: */
+
+	class FillSlices extends RecursiveAction {
 
-			switch( imageType ) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				ByteProcessor bp = new ByteProcessor(width,height);
-				bp.setPixels( new_slice_data_b[z] );
-				stack.addSlice(null,bp);
-				break;
-			case ImagePlus.GRAY16:
-				ShortProcessor sp = new ShortProcessor(width,height);
-				sp.setPixels( new_slice_data_s[z] );
-				stack.addSlice(null,sp);
-				break;
-			case ImagePlus.GRAY32:
-				FloatProcessor fp = new FloatProcessor(width,height);
-				fp.setPixels( new_slice_data_f[z] );
-				stack.addSlice(null,fp);
-				break;
-			default:
-				break;
+		final int from, to;
+		final boolean realData;
+		final Object [] slices;
+
+		FillSlices( int from, int to, boolean realData, Object [] slices ) {
+			this.from = from;
+			this.to = to;
+			this.realData = realData;
+			this.slices = slices;
+		}
+
+		@Override
+		protected void compute( ) {
+			if( to - from == 1 ) {
+				slices[from] = fillSlice( from, realData );
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll( new FillSlices( from, middle, realData, slices ),
+					   new FillSlices( middle, to, realData, slices ) );
 			}
+		}
+	}
 
-                }
+	/* An image of the fill so far, with the slices made in
+	   parallel.  The filler doesn't go on until it's done. */
+
+        public ImagePlus fillAsImagePlus( boolean realData ) {
+
+		Object [] slices = new Object[depth];
+
+		beginSnapshot();
+		try {
+			ForkJoinPool.commonPool().invoke( new FillSlices( 0, depth, realData, slices ) );
+		} finally {
+			endSnapshot();
+		}
+
+                ImageStack stack = new ImageStack(width,height);
+
+                for( int z = 0; z < depth; ++z ) {
+			stack.addSlice( null, sliceProcessor( slices[z] ) );
+			slices[z] = null;
+		}
 
                 ImagePlus imp=new ImagePlus("filled neuron",stack);
 
@@ -336,17 +398,92 @@ public class FillerThread extends SearchThread {
 		return imp;
         }
 
+	/* Saves an image of the fill as a TIFF stack without ever
+	   having the whole stack in memory: the slices are made as
+	   they're written, a few at a time in parallel (see
+	   FillStack.)  The filler doesn't go on until it's done. */
+
+	public boolean saveFillAsTiff( boolean realData, String path ) {
+		beginSnapshot();
+		try {
+			FillStack stack = new FillStack( this, realData );
+			ImagePlus imp = new ImagePlus( "filled neuron", stack );
+			imp.setCalibration( imagePlus.getCalibration() );
+			boolean saved = new FileSaver( imp ).saveAsTiffStack( path );
+			stack.discard();
+			return saved;
+		} finally {
+			endSnapshot();
+		}
+	}
+
+	/* The number of threads to fill with; if there's more than
+	   one, the search is done by a ParallelFill, with as many of
+	   the extra threads as can be reserved from the
+	   SearchScheduler's helpers when it starts.  This has to be
+	   set before the filler is run. */
+
+	int threads = 1;
+
+	public void setThreads( int threads ) {
+		if( threads < 1 || threads > SearchNodeStore.MAXIMUM_PARTITIONS )
+			throw new IllegalArgumentException( "The number of threads for a fill must be between 1 and " + SearchNodeStore.MAXIMUM_PARTITIONS );
+		this.threads = threads;
+	}
+
+	public int getThreads( ) {
+		return threads;
+	}
+
+	volatile ParallelFill parallelFill;
+
+	@Override
+	protected boolean searchWithThreads( long started_at ) throws Throwable {
+		int helpers = (threads > 1) ? SearchScheduler.tryReserveHelpers( threads - 1 ) : 0;
+		if( helpers > 0 ) {
+			try {
+				parallelFill = new ParallelFill( this, helpers + 1 );
+				parallelFill.run( started_at );
+			} finally {
+				SearchScheduler.releaseHelpers( helpers );
+			}
+			return true;
+		}
+		return super.searchWithThreads( started_at );
+	}
+
+	@Override
+	public int openNodes( ) {
+		if( parallelFill != null )
+			return nodes_as_image_from_start.count( OPEN_FROM_START );
+		return super.openNodes();
+	}
+
+	@Override
+	public long bytesAllocated( ) {
+		long result = super.bytesAllocated();
+		ParallelFill p = parallelFill;
+		if( p != null )
+			result += p.bytesAllocated();
+		return result;
+	}
+
 	@Override
 	protected void reportPointsInSearch() {
 
 		super.reportPointsInSearch();
 
 		// Find the minimum distance in the open list.
-		SearchNode p = open_from_start.peek();
-		if( p == null )
-			return;
-
-		float minimumDistanceInOpen = p.g;
+		float minimumDistanceInOpen;
+		if( parallelFill != null ) {
+			minimumDistanceInOpen = parallelFill.minimumOpen;
+			if( minimumDistanceInOpen == Float.POSITIVE_INFINITY )
+				return;
+		} else {
+			if( open_from_start.size() == 0 )
+				return;
+			minimumDistanceInOpen = nodes_as_image_from_start.getG( open_from_start.peekId() );
+		}
 
 		for( SearchProgressCallback progress : progressListeners ) {
 			if( progress instanceof FillerProgressCallback ) {
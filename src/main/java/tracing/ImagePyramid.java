@@ -0,0 +1,207 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/* Downsampled copies of an image (and of its tubeness, if there is
+   any) for coarse-to-fine tracing: see TracerThread.setImagePyramid.
+   Level 0 is half the size of the original in x and y, and each
+   level after that is half the size of the one before.  z is only
+   halved as well if that keeps the voxels roughly isotropic, so
+   stacks with a large z spacing keep all their slices at first.
+
+   Each voxel of a level is the maximum of the voxels it covers,
+   rather than the mean, so that a thin bright neurite (or a thin
+   tube in the tubeness image) is still there at the coarser scale.
+
+   The levels are only built the first time that they're asked for;
+   SimpleNeuriteTracer keeps one of these for the current image. */
+
+public class ImagePyramid {
+
+	public static final int LEVELS = 2;
+
+	final ImagePlus original;
+	final float [][] originalTubeness;
+
+	ImagePlus [] levels = new ImagePlus[LEVELS];
+	float [][][] tubenessLevels = new float[LEVELS][][];
+
+	/* The factors by which each level is smaller than the
+	   original, in x and y and in z: */
+
+	int [] factors = new int[LEVELS];
+	int [] zFactors = new int[LEVELS];
+
+	public ImagePyramid( ImagePlus original, float [][] tubeness ) {
+		this.original = original;
+		this.originalTubeness = tubeness;
+	}
+
+	public boolean isFor( ImagePlus imagePlus, float [][] tubeness ) {
+		return original == imagePlus && originalTubeness == tubeness;
+	}
+
+	public synchronized ImagePlus getLevel( int level ) {
+		build( level );
+		return levels[level];
+	}
+
+	public synchronized float [][] getTubeness( int level ) {
+		build( level );
+		return tubenessLevels[level];
+	}
+
+	public synchronized int getFactor( int level ) {
+		build( level );
+		return factors[level];
+	}
+
+	public synchronized int getZFactor( int level ) {
+		build( level );
+		return zFactors[level];
+	}
+
+	void build( int level ) {
+
+		if( levels[level] != null )
+			return;
+
+		ImagePlus previous = original;
+		float [][] previousTubeness = originalTubeness;
+		int previousFactor = 1, previousZFactor = 1;
+		if( level > 0 ) {
+			build( level - 1 );
+			previous = levels[level - 1];
+			previousTubeness = tubenessLevels[level - 1];
+			previousFactor = factors[level - 1];
+			previousZFactor = zFactors[level - 1];
+		}
+
+		Calibration calibration = previous.getCalibration();
+		int w = previous.getWidth();
+		int h = previous.getHeight();
+		int d = previous.getStackSize();
+
+		boolean halveZ = d > 1 && Math.abs( calibration.pixelDepth ) <= 1.5 * Math.abs( calibration.pixelWidth );
+		int zStep = halveZ ? 2 : 1;
+
+		int newW = (w + 1) / 2;
+		int newH = (h + 1) / 2;
+		int newD = (d + zStep - 1) / zStep;
+
+		ImageStack stack = previous.getStack();
+		ImageStack newStack = new ImageStack( newW, newH );
+		int type = previous.getType();
+
+		for( int nz = 0; nz < newD; ++nz ) {
+			int z0 = nz * zStep, z1 = Math.min( d, z0 + zStep );
+			Object [] slices = new Object[z1 - z0];
+			for( int z = z0; z < z1; ++z )
+				slices[z - z0] = stack.getPixels( z + 1 );
+			Object newPixels;
+			switch( type ) {
+			case ImagePlus.GRAY8:
+			case ImagePlus.COLOR_256:
+				newPixels = new byte[newW * newH];
+				break;
+			case ImagePlus.GRAY16:
+				newPixels = new short[newW * newH];
+				break;
+			case ImagePlus.GRAY32:
+				newPixels = new float[newW * newH];
+				break;
+			default:
+				throw new RuntimeException( "BUG: ImagePyramid can't downsample an image of type " + type );
+			}
+			for( int ny = 0; ny < newH; ++ny )
+				for( int nx = 0; nx < newW; ++nx ) {
+					int i = ny * newW + nx;
+					for( int s = 0; s < slices.length; ++s )
+						for( int y = 2 * ny; y < Math.min( h, 2 * ny + 2 ); ++y )
+							for( int x = 2 * nx; x < Math.min( w, 2 * nx + 2 ); ++x ) {
+								int j = y * w + x;
+								switch( type ) {
+								case ImagePlus.GRAY8:
+								case ImagePlus.COLOR_256:
+								{
+									byte [] p = (byte []) newPixels;
+									int v = ((byte []) slices[s])[j] & 0xFF;
+									if( v > (p[i] & 0xFF) )
+										p[i] = (byte) v;
+									break;
+								}
+								case ImagePlus.GRAY16:
+								{
+									short [] p = (short []) newPixels;
+									int v = ((short []) slices[s])[j] & 0xFFFF;
+									if( v > (p[i] & 0xFFFF) )
+										p[i] = (short) v;
+									break;
+								}
+								case ImagePlus.GRAY32:
+								{
+									float [] p = (float []) newPixels;
+									float v = ((float []) slices[s])[j];
+									if( (s == 0 && y == 2 * ny && x == 2 * nx) || v > p[i] )
+										p[i] = v;
+									break;
+								}
+								}
+							}
+				}
+			newStack.addSlice( null, newPixels );
+		}
+
+		ImagePlus result = new ImagePlus( original.getTitle() + " (1/" + (previousFactor * 2) + ")", newStack );
+		Calibration newCalibration = calibration.copy();
+		newCalibration.pixelWidth *= 2;
+		newCalibration.pixelHeight *= 2;
+		newCalibration.pixelDepth *= zStep;
+		result.setCalibration( newCalibration );
+
+		if( previousTubeness != null ) {
+			float [][] newTubeness = new float[newD][newW * newH];
+			for( int z = 0; z < d; ++z )
+				for( int y = 0; y < h; ++y )
+					for( int x = 0; x < w; ++x ) {
+						float v = previousTubeness[z][y * w + x];
+						int i = (y / 2) * newW + (x / 2);
+						if( v > newTubeness[z / zStep][i] )
+							newTubeness[z / zStep][i] = v;
+					}
+			tubenessLevels[level] = newTubeness;
+		}
+
+		levels[level] = result;
+		factors[level] = previousFactor * 2;
+		zFactors[level] = previousZFactor * zStep;
+	}
+}
@@ -0,0 +1,169 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+
+/* The cost of moving to a voxel when it only depends on the value
+   there, which is first scaled to 0 to 255 (unless the image is 8
+   bit) as
+
+     v = 255 * (value - stackMin) / (stackMax - stackMin)
+
+   and then with the reciprocal metric the cost is 1 / v (or 2 if v
+   is zero), otherwise it's 256 - v.
+
+   For 8 and 16 bit images there are only 256 or 65536 possible
+   values, so the cost of each is worked out once, when the search
+   is created, and looking up a cost is then just an array access.
+   The table for 16 bit images is indexed by the raw bits of the
+   value, which ImageJ treats as signed here, as the searches
+   always have.
+
+   A float image can have any value, so for the reciprocal metric
+   v is looked up in a table indexed by its exponent and the top
+   RECIPROCAL_MANTISSA_BITS bits of its mantissa: the entries are
+   the reciprocals of the lowest v in each range, so the cost
+   looked up is never less than the exact one, and more by a
+   relative error of at most 2^-RECIPROCAL_MANTISSA_BITS, i.e. less
+   than 0.4%.  (It mustn't be less, since at v = 255 that would be
+   below the lowest cost per unit distance that the heuristic of
+   TracerThread assumes.)  (Values of v that aren't between 0 and 256 are
+   worked out directly, as is everything for the 256-minus metric,
+   which doesn't need a division.)
+
+   The tables are shared between all the searches of an image with
+   the same range and metric, so starting another search doesn't
+   have to build them again. */
+
+public class IntensityCosts {
+
+	static final int RECIPROCAL_MANTISSA_BITS = 8;
+
+	/* Floats up to this value of v have entries in the table: */
+
+	static final float MAXIMUM_TABULATED = 256;
+
+	final int imageType;
+	final float stackMin;
+	final float stackMax;
+	final boolean reciprocal;
+
+	final double scale;
+	final double [] costs;
+
+	IntensityCosts( int imageType, float stackMin, float stackMax, boolean reciprocal ) {
+		this.imageType = imageType;
+		this.stackMin = stackMin;
+		this.stackMax = stackMax;
+		this.reciprocal = reciprocal;
+		scale = 255.0 / (stackMax - stackMin);
+
+		switch( imageType ) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			costs = new double[256];
+			for( int i = 0; i < 256; ++i )
+				costs[i] = costForScaled( i );
+			break;
+		case ImagePlus.GRAY16:
+			costs = new double[65536];
+			for( int i = 0; i < 65536; ++i )
+				costs[i] = costForScaled( 255.0 * ((short)i - stackMin) / (stackMax - stackMin) );
+			break;
+		case ImagePlus.GRAY32:
+			if( reciprocal ) {
+				int shift = 23 - RECIPROCAL_MANTISSA_BITS;
+				int entries = (Float.floatToRawIntBits( MAXIMUM_TABULATED ) >>> shift) + 1;
+				costs = new double[entries];
+				for( int i = 0; i < entries; ++i ) {
+					// The lowest value of v with these bits
+					// (v is never zero here):
+					float low = Float.intBitsToFloat( Math.max( 1, i << shift ) );
+					costs[i] = costForScaled( low );
+				}
+			} else
+				costs = null;
+			break;
+		default:
+			// The searches don't support other types
+			costs = null;
+			break;
+		}
+	}
+
+	double costForScaled( double v ) {
+		if( reciprocal )
+			return (v == 0) ? 2.0 : 1.0 / v;
+		else
+			return 256 - v;
+	}
+
+	public double cost( byte value ) {
+		return costs[value & 0xFF];
+	}
+
+	public double cost( short value ) {
+		return costs[value & 0xFFFF];
+	}
+
+	public double cost( float value ) {
+		double v = ((double)value - stackMin) * scale;
+		if( reciprocal && v > 0 && v < MAXIMUM_TABULATED )
+			return costs[Float.floatToRawIntBits( (float)v ) >>> (23 - RECIPROCAL_MANTISSA_BITS)];
+		return costForScaled( v );
+	}
+
+	boolean isFor( int imageType, float stackMin, float stackMax, boolean reciprocal ) {
+		return this.imageType == imageType &&
+			this.stackMin == stackMin &&
+			this.stackMax == stackMax &&
+			this.reciprocal == reciprocal;
+	}
+
+	static final int TABLES_KEPT = 4;
+
+	static ArrayList< IntensityCosts > recentlyUsed = new ArrayList< IntensityCosts >();
+
+	public static synchronized IntensityCosts get( int imageType, float stackMin, float stackMax, boolean reciprocal ) {
+		for( int i = 0; i < recentlyUsed.size(); ++i ) {
+			IntensityCosts c = recentlyUsed.get( i );
+			if( c.isFor( imageType, stackMin, stackMax, reciprocal ) ) {
+				recentlyUsed.remove( i );
+				recentlyUsed.add( 0, c );
+				return c;
+			}
+		}
+		IntensityCosts c = new IntensityCosts( imageType, stackMin, stackMax, reciprocal );
+		recentlyUsed.add( 0, c );
+		if( recentlyUsed.size() > TABLES_KEPT )
+			recentlyUsed.remove( TABLES_KEPT );
+		return c;
+	}
+}
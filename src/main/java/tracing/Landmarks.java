@@ -0,0 +1,316 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.IJ;
+
+import java.util.Arrays;
+
+/* The heuristic that TracerThread uses by default, the straight
+   line distance to the goal times the lowest possible cost per unit
+   distance, is so far below the real cost of a path that the search
+   explores almost as much as Dijkstra's algorithm would.  This finds
+   a much better lower bound from the cost of the cheapest paths from
+   a few landmark voxels to every voxel in the image, using the
+   triangle inequality, as in the "ALT" algorithm (Goldberg and
+   Harrelson, "Computing the Shortest Path: A* Search Meets Graph
+   Theory", SODA 2005.)  For any landmark L and voxels v and t:
+
+     d(v,t) >= d(L,t) - d(L,v)   and   d(v,t) >= d(L,v) - d(L,t)
+
+   That needs the distances to be symmetric, which the costs of the
+   search aren't (a step costs its length times the cost of the voxel
+   it moves to), so here each step costs its length times the lower
+   of the costs at either end, which is no more than the cost of the
+   step in either direction.  The distances are only kept for each
+   block of 2x2x2 voxels, as the lowest and highest distance in the
+   block, which is a byte per voxel for each landmark, and the bound
+   is worked out from the ends of those ranges.  That is still a
+   lower bound, but isn't quite consistent, so a search using it may
+   occasionally reopen a closed node.
+
+   The distances from each landmark are worked out by run(), one
+   landmark after another, and searches can use those that are ready
+   (see TracerThread.setLandmarks.)  That takes a while, so it's best
+   submitted to SearchScheduler.submitInBackground().  The first
+   landmark is a corner of the image, and each of the others is the
+   voxel furthest from the landmarks so far, so they end up spread
+   around the edges of the image, which is where they give the best
+   bounds.
+
+   The costs are those of the CostSettings passed to the
+   constructor, which must not be worked out from the Hessian (rather
+   than from tubeness), since that would be much too slow for the
+   whole image. */
+
+public class Landmarks implements Runnable {
+
+	static final int SHIFT = 1;
+
+	final CostSettings costs;
+
+	final int width, height, depth;
+	final int zShift;
+	final int cellsX, cellsY, cellsZ;
+
+	/* The positions of the landmarks, and for each one the
+	   lowest and highest distance to any voxel in each block: */
+
+	final int [] landmark_x, landmark_y, landmark_z;
+	final float [][] lowest;
+	final float [][] highest;
+
+	/* The number of landmarks whose distances are complete: */
+
+	volatile int available = 0;
+
+	volatile boolean stopRequested = false;
+
+	/* If this is more than zero, no more landmarks are started
+	   once the distances kept and the search for the next one
+	   (see bytesForNextLandmark()) would need more than this many
+	   bytes between them: */
+
+	long memoryBudget = 0;
+
+	/* This must be called before run(): */
+
+	public void setMemoryBudget( long bytes ) {
+		memoryBudget = bytes;
+	}
+
+	public Landmarks( CostSettings costs, int count ) {
+
+		if( costs.needsHessian() )
+			throw new IllegalArgumentException( "Landmarks can't be used with costs from the Hessian" );
+
+		this.costs = costs;
+
+		width = costs.width;
+		height = costs.height;
+		depth = costs.depth;
+		zShift = (depth > 1) ? SHIFT : 0;
+		cellsX = (width + (1 << SHIFT) - 1) >> SHIFT;
+		cellsY = (height + (1 << SHIFT) - 1) >> SHIFT;
+		cellsZ = (depth + (1 << zShift) - 1) >> zShift;
+
+		landmark_x = new int[count];
+		landmark_y = new int[count];
+		landmark_z = new int[count];
+		lowest = new float[count][];
+		highest = new float[count][];
+	}
+
+	boolean isFor( TracerThread t ) {
+		return costs.isFor( t );
+	}
+
+	public int getCount( ) {
+		return lowest.length;
+	}
+
+	public int available( ) {
+		return available;
+	}
+
+	public void requestStop( ) {
+		stopRequested = true;
+	}
+
+	int cell( int x, int y, int z ) {
+		return ((z >> zShift) * cellsY + (y >> SHIFT)) * cellsX + (x >> SHIFT);
+	}
+
+	public long bytesAllocated( ) {
+		return (long)available * cellsX * cellsY * cellsZ * 4 * 2;
+	}
+
+	/* Working out the distances from another landmark needs a
+	   SearchNodeStore that covers the whole image while it's
+	   going on, and the two arrays of distances that are kept: */
+
+	long bytesForNextLandmark( ) {
+		return (long)width * height * depth * SearchNodeStore.BYTES_PER_VOXEL +
+			(long)cellsX * cellsY * cellsZ * 4 * 2;
+	}
+
+	/* Whether there's room for another landmark within the
+	   budget and in the memory that the JVM has left: */
+
+	boolean roomForNextLandmark( ) {
+		long needed = bytesForNextLandmark();
+		if( memoryBudget > 0 && bytesAllocated() + needed > memoryBudget )
+			return false;
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return needed < free;
+	}
+
+	@Override
+	public void run( ) {
+
+		int x = 0, y = 0, z = 0;
+
+		try {
+			for( int k = 0; k < lowest.length; ++k ) {
+
+				landmark_x[k] = x;
+				landmark_y[k] = y;
+				landmark_z[k] = z;
+
+				if( ! roomForNextLandmark() ) {
+					if (SimpleNeuriteTracer.verbose) System.out.println( "Not enough memory for the distances from another landmark" );
+					break;
+				}
+
+				if( ! distancesFrom( k ) )
+					break;
+
+				available = k + 1;
+
+				// The next landmark is in the block furthest
+				// from all the landmarks so far:
+
+				int furthest = 0;
+				float furthestDistance = -1;
+				for( int c = 0; c < lowest[k].length; ++c ) {
+					float nearest = Float.MAX_VALUE;
+					for( int j = 0; j <= k; ++j )
+						nearest = Math.min( nearest, lowest[j][c] );
+					if( nearest > furthestDistance ) {
+						furthest = c;
+						furthestDistance = nearest;
+					}
+				}
+
+				x = (furthest % cellsX) << SHIFT;
+				y = ((furthest / cellsX) % cellsY) << SHIFT;
+				z = (furthest / (cellsX * cellsY)) << zShift;
+			}
+		} catch( OutOfMemoryError e ) {
+			// roomForNextLandmark() should stop this from
+			// happening, but if something else used the
+			// memory just carry on with the landmarks that
+			// are ready:
+			IJ.log( "Ran out of memory working out the distances from landmark " + (available + 1) );
+		}
+
+		if (SimpleNeuriteTracer.verbose) System.out.println( "Finished with " + available + " landmarks" );
+	}
+
+	/* Dijkstra's algorithm from landmark k to every voxel, with
+	   the symmetric costs described above.  Returns false if it
+	   was stopped. */
+
+	boolean distancesFrom( int k ) {
+
+		SearchNodeStore nodes = new SearchNodeStore( width, height, depth );
+		SearchNodeQueue open = new SearchNodeRadixHeap( nodes );
+		Neighbourhood neighbourhood = new Neighbourhood( 26, width, height, depth,
+								 costs.x_spacing, costs.y_spacing, costs.z_spacing );
+		double minimum = costs.minimum_cost_per_unit_distance;
+
+		float [] low = new float[cellsX * cellsY * cellsZ];
+		float [] high = new float[low.length];
+		Arrays.fill( low, Float.MAX_VALUE );
+
+		nodes.set( landmark_x[k], landmark_y[k], landmark_z[k], 0, SearchNodeStore.NONE, SearchThread.OPEN_FROM_START );
+		open.add( nodes.id( landmark_x[k], landmark_y[k], landmark_z[k] ), 0 );
+
+		while( open.size() > 0 ) {
+
+			if( stopRequested )
+				return false;
+
+			int p = open.poll();
+
+			int p_x = nodes.x( p );
+			int p_y = nodes.y( p );
+			int p_z = nodes.z( p );
+			float p_g = nodes.getG( p_x, p_y, p_z );
+
+			nodes.setStatus( p_x, p_y, p_z, SearchThread.CLOSED_FROM_START );
+
+			int c = cell( p_x, p_y, p_z );
+			if( p_g < low[c] )
+				low[c] = p_g;
+			if( p_g > high[c] )
+				high[c] = p_g;
+
+			double p_cost = Math.max( minimum, costs.costMovingTo( p_x, p_y, p_z ) );
+
+			boolean interior = neighbourhood.isInterior( p_x, p_y, p_z );
+
+			for( int n = 0; n < neighbourhood.size; ++n ) {
+
+				int new_x = p_x + neighbourhood.dx[n];
+				int new_y = p_y + neighbourhood.dy[n];
+				int new_z = p_z + neighbourhood.dz[n];
+
+				if( ! interior && ! neighbourhood.inBounds( new_x, new_y, new_z ) )
+					continue;
+
+				byte status = nodes.getStatus( new_x, new_y, new_z );
+				if( status == SearchThread.CLOSED_FROM_START )
+					continue;
+
+				double cost = Math.min( p_cost, Math.max( minimum, costs.costMovingTo( new_x, new_y, new_z ) ) );
+				float g = (float) ( p_g + neighbourhood.step[n] * cost );
+
+				if( status == SearchNodeStore.ABSENT ) {
+					nodes.set( new_x, new_y, new_z, g, p, SearchThread.OPEN_FROM_START );
+					open.add( nodes.id( new_x, new_y, new_z ), g );
+				} else if( g < nodes.getG( new_x, new_y, new_z ) ) {
+					nodes.set( new_x, new_y, new_z, g, p, SearchThread.OPEN_FROM_START );
+					open.update( nodes.id( new_x, new_y, new_z ), g );
+				}
+			}
+		}
+
+		lowest[k] = low;
+		highest[k] = high;
+		return true;
+	}
+
+	/* The lower bound on the cost of a path between the voxels
+	   in blocks c and d from the first n landmarks: */
+
+	double lowerBound( int c, int d, int n ) {
+		double bound = 0;
+		for( int k = 0; k < n; ++k ) {
+			double b = Math.max( lowest[k][d] - highest[k][c], lowest[k][c] - highest[k][d] );
+			if( b > bound )
+				bound = b;
+		}
+		return bound;
+	}
+
+	@Override
+	public String toString( ) {
+		return "Landmarks (" + available + " of " + lowest.length + " ready)";
+	}
+}
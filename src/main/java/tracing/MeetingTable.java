@@ -0,0 +1,152 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* When the two directions of a bidirectional search run in
+   different threads (see SearchThread.setParallel) neither thread
+   can safely look at the other's SearchNodeStore, so each also
+   publishes the g of every node that it reaches or improves here.
+   After publishing a node, a thread reads the other direction's g
+   for the same node; since both are volatile accesses, at least one
+   of the two threads is guaranteed to see the other's value, so
+   every node that is reached from both ends is offered as a meeting
+   point.
+
+   The table uses the same node indices as SearchNodeStore and is
+   divided into the same bricks, which are only allocated when a
+   node in them is first published.  The length of the best path
+   found through a meeting point so far (mu) and that node are only
+   changed while synchronized on this object. */
+
+public class MeetingTable {
+
+	static final int BRICK_BITS = SearchNodeStore.BRICK_BITS;
+	static final int BRICK_SIZE = 1 << BRICK_BITS;
+
+	static final int UNREACHED = Float.floatToIntBits( Float.POSITIVE_INFINITY );
+
+	final AtomicReferenceArray< AtomicIntegerArray > fromStart;
+	final AtomicReferenceArray< AtomicIntegerArray > fromGoal;
+
+	volatile float bestLength = Float.POSITIVE_INFINITY;
+	volatile int bestNode = SearchNodeStore.NONE;
+
+	volatile boolean finished = false;
+
+	/* The smallest f in each direction's open list, as last
+	   published by that direction's thread.  With a consistent
+	   heuristic these never decrease, so a stale value is still
+	   a lower bound on the length of any path that hasn't been
+	   found yet: */
+
+	volatile float minimumFFromStart = 0;
+	volatile float minimumFFromGoal = 0;
+
+	public MeetingTable( int bricks ) {
+		fromStart = new AtomicReferenceArray< AtomicIntegerArray >( bricks );
+		fromGoal = new AtomicReferenceArray< AtomicIntegerArray >( bricks );
+	}
+
+	AtomicIntegerArray brick( AtomicReferenceArray< AtomicIntegerArray > table, int b ) {
+		AtomicIntegerArray a = table.get( b );
+		if( a == null ) {
+			a = new AtomicIntegerArray( BRICK_SIZE );
+			for( int i = 0; i < BRICK_SIZE; ++i )
+				a.lazySet( i, UNREACHED );
+			if( ! table.compareAndSet( b, null, a ) )
+				a = table.get( b );
+		}
+		return a;
+	}
+
+	/* Record that the node id has been reached with cost g in
+	   one direction, and return the cost of reaching it in the
+	   other direction (or infinity if it hasn't been) */
+
+	public float publish( boolean isFromStart, int id, float g ) {
+		int b = id >>> BRICK_BITS;
+		int offset = id & (BRICK_SIZE - 1);
+		brick( isFromStart ? fromStart : fromGoal, b ).set( offset, Float.floatToIntBits( g ) );
+		AtomicIntegerArray other = (isFromStart ? fromGoal : fromStart).get( b );
+		if( other == null )
+			return Float.POSITIVE_INFINITY;
+		return Float.intBitsToFloat( other.get( offset ) );
+	}
+
+	public synchronized void offer( int id, float length ) {
+		if( length < bestLength ) {
+			bestLength = length;
+			bestNode = id;
+		}
+	}
+
+	public void setMinimumF( boolean isFromStart, float f ) {
+		if( isFromStart )
+			minimumFFromStart = f;
+		else
+			minimumFFromGoal = f;
+	}
+
+	/* True if no path can be shorter than the best one through
+	   a meeting point found so far: */
+
+	public boolean bestIsShortest( ) {
+		return Math.max( minimumFFromStart, minimumFFromGoal ) >= bestLength;
+	}
+
+	public float getBestLength( ) {
+		return bestLength;
+	}
+
+	public int getBestNode( ) {
+		return bestNode;
+	}
+
+	/* Either thread calls this to tell the other to stop: */
+
+	public void finish( ) {
+		finished = true;
+	}
+
+	public boolean isFinished( ) {
+		return finished;
+	}
+
+	/* Called between runs of the two threads (e.g. after the
+	   search region has grown) so that they can carry on; the
+	   published nodes are kept, but nodes may have gone back on
+	   the open lists, so the smallest f in each is unknown: */
+
+	public void restart( ) {
+		minimumFFromStart = 0;
+		minimumFFromGoal = 0;
+		finished = false;
+	}
+}
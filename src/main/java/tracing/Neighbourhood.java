@@ -0,0 +1,140 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* The offsets to the neighbours of a voxel that a search considers,
+   and the (calibrated) length of the step to each of them, worked out
+   once per search rather than for every neighbour of every node.
+
+   The connectivity may be 6 (neighbours that share a face), 18 (a
+   face or an edge) or 26 (a face, an edge or a corner).  For a
+   single slice only the neighbours in the same plane are included,
+   i.e. 4 or 8 connectivity. */
+
+public class Neighbourhood {
+
+	public final int connectivity;
+
+	final int size;
+	final int [] dx;
+	final int [] dy;
+	final int [] dz;
+	final double [] step;
+
+	final int width;
+	final int height;
+	final int depth;
+
+	/* The limits (inclusive) of the part of the image that may be
+	   searched; the whole image unless restrictTo() is called: */
+
+	int xMin, yMin, zMin;
+	int xMax, yMax, zMax;
+
+	public Neighbourhood( int connectivity,
+			      int width, int height, int depth,
+			      float x_spacing, float y_spacing, float z_spacing ) {
+
+		if( connectivity != 6 && connectivity != 18 && connectivity != 26 )
+			throw new IllegalArgumentException( "The connectivity must be 6, 18 or 26, not " + connectivity );
+
+		this.connectivity = connectivity;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		restrictTo( null );
+
+		int maximumDiffs = (connectivity == 6) ? 1 : (connectivity == 18) ? 2 : 3;
+		int zRange = (depth > 1) ? 1 : 0;
+
+		int [] tdx = new int[26], tdy = new int[26], tdz = new int[26];
+		double [] tstep = new double[26];
+		int n = 0;
+
+		// This is the same order that SearchThread always used:
+		for( int zdiff = -zRange; zdiff <= zRange; zdiff++ )
+			for( int xdiff = -1; xdiff <= 1; xdiff++ )
+				for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
+					int diffs = Math.abs( xdiff ) + Math.abs( ydiff ) + Math.abs( zdiff );
+					if( diffs == 0 || diffs > maximumDiffs )
+						continue;
+					double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+					double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+					double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+					tdx[n] = xdiff;
+					tdy[n] = ydiff;
+					tdz[n] = zdiff;
+					tstep[n] = Math.sqrt( xdiffsq + ydiffsq + zdiffsq );
+					++ n;
+				}
+
+		size = n;
+		dx = new int[n];
+		dy = new int[n];
+		dz = new int[n];
+		step = new double[n];
+		System.arraycopy( tdx, 0, dx, 0, n );
+		System.arraycopy( tdy, 0, dy, 0, n );
+		System.arraycopy( tdz, 0, dz, 0, n );
+		System.arraycopy( tstep, 0, step, 0, n );
+	}
+
+	/* Only consider neighbours inside region, or the whole image
+	   if region is null: */
+
+	void restrictTo( SearchRegion region ) {
+		if( region == null ) {
+			xMin = yMin = zMin = 0;
+			xMax = width - 1;
+			yMax = height - 1;
+			zMax = depth - 1;
+		} else {
+			xMin = region.xMin;
+			yMin = region.yMin;
+			zMin = region.zMin;
+			xMax = region.xMax;
+			yMax = region.yMax;
+			zMax = region.zMax;
+		}
+	}
+
+	/* If this is true then every neighbour of (x,y,z) is within
+	   bounds, so there's no need to check each one: */
+
+	boolean isInterior( int x, int y, int z ) {
+		return x > xMin && x < xMax &&
+			y > yMin && y < yMax &&
+			(depth == 1 || (z > zMin && z < zMax));
+	}
+
+	boolean inBounds( int x, int y, int z ) {
+		return x >= xMin && x <= xMax &&
+			y >= yMin && y <= yMax &&
+			z >= zMin && z <= zMax;
+	}
+}
@@ -113,6 +113,7 @@ public class NeuriteTracerResultsDialog
 	protected JMenuItem addPathsToManagerMenuItem;
 	protected JMenuItem exportCSVMenuItemAgain;
 	protected JMenuItem sendToTrakEM2;
+	protected JMenuItem tracingOptionsMenuItem;
 
 	protected JCheckBoxMenuItem mipOverlayMenuItem;
 	protected JCheckBoxMenuItem drawDiametersXYMenuItem;
@@ -775,6 +776,10 @@ public class NeuriteTracerResultsDialog
 		sendToTrakEM2.addActionListener(this);
 		fileMenu.add(sendToTrakEM2);
 
+		tracingOptionsMenuItem = new JMenuItem("Tracing options...");
+		tracingOptionsMenuItem.addActionListener(this);
+		fileMenu.add(tracingOptionsMenuItem);
+
 		quitMenuItem = new JMenuItem("Quit");
 		quitMenuItem.addActionListener(this);
 		fileMenu.add(quitMenuItem);
@@ -1431,6 +1436,10 @@ public class NeuriteTracerResultsDialog
 
 			exitRequested();
 
+		} else if( source == tracingOptionsMenuItem ) {
+
+			showTracingOptions();
+
 		}  else if( source == showOrHidePathList ) {
 
 			togglePathListVisibility();
@@ -1575,6 +1584,35 @@ public class NeuriteTracerResultsDialog
 		}
 	}
 
+	/* The settings that change how each search is done, which
+	   can also be set from a macro with the field names as keys
+	   (e.g. "search_margin=20"): */
+
+	protected void showTracingOptions() {
+		GenericDialog gd = new GenericDialog("Tracing Options");
+		String [] connectivities = { "6", "18", "26" };
+		gd.addChoice("Connectivity (neighbours of each voxel):", connectivities, "" + plugin.getConnectivity());
+		gd.addNumericField("Search_margin (0 for none):", plugin.searchMargin, 0, 6, "voxels");
+		gd.addNumericField("Landmarks (0 for none):", plugin.landmarkCount, 0);
+		gd.addCheckbox("Trace_coarse-to-fine", plugin.coarseToFine);
+		gd.addCheckbox("Log_coarse-to-fine_accuracy", plugin.reportCoarseToFineAccuracy);
+		gd.addNumericField("Anytime_weight (1 for off):", plugin.anytimeWeight, 1);
+		gd.addCheckbox("Reuse_search_tree from the same start point", plugin.reuseSearchTree);
+		gd.addNumericField("Search_memory_budget (0 for none):", plugin.searchMemoryBudget / (1024 * 1024), 0, 6, "MiB");
+		gd.showDialog();
+		if( gd.wasCanceled() )
+			return;
+
+		plugin.setConnectivity( Integer.parseInt( gd.getNextChoice() ) );
+		plugin.setSearchMargin( Math.max( 0, (int)gd.getNextNumber() ) );
+		plugin.setLandmarkCount( Math.max( 0, (int)gd.getNextNumber() ) );
+		plugin.setCoarseToFine( gd.getNextBoolean() );
+		plugin.setReportCoarseToFineAccuracy( gd.getNextBoolean() );
+		plugin.setAnytimeWeight( Math.max( 1, gd.getNextNumber() ) );
+		plugin.setReuseSearchTree( gd.getNextBoolean() );
+		plugin.setSearchMemoryBudget( Math.max( 0, (long)gd.getNextNumber() ) * 1024 * 1024 );
+	}
+
 	public void thresholdChanged( double f ) {
 		fw.thresholdChanged(f);
 	}
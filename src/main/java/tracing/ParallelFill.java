@@ -0,0 +1,440 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+
+/* This does the search for a FillerThread with several threads,
+   for when the filler has been asked to use more than one (see
+   FillerThread.setThreads().)  It's a version of delta-stepping:
+
+   The bricks of the SearchNodeStore are split between the threads
+   (see SearchNodeStore.setPartitions()), and each thread keeps the
+   open nodes in its own bricks in its own heap, and is the only one
+   that changes those bricks.  When a thread finds a better route to
+   a node in another thread's bricks it sends it to that thread
+   instead, and the messages are passed on at the end of each round.
+
+   In each round, every thread expands all its open nodes with g
+   below a limit, and then takes in the messages sent to it.  When
+   there are no open nodes below the limit left in any thread, the
+   nodes below it can't get any better, and the limit is raised to
+   delta above the smallest g of any open node.  A node may be
+   expanded again if a better route to it turns up in the same
+   phase, so delta is adjusted to keep the phases big enough to be
+   worth sharing out but not so big that many nodes are expanded
+   more than once.
+
+   However the work is shared out, each node ends up with the same
+   g as the sequential search would give it, so the fill is the
+   same, apart from which of two equally good predecessors a node
+   has. */
+
+class ParallelFill {
+
+	static final byte OPEN = SearchThread.OPEN_FROM_START;
+	static final byte CLOSED = SearchThread.CLOSED_FROM_START;
+
+	/* How often the search stops so that it can be paused, have a
+	   snapshot taken, check its memory budget, etc.; this is
+	   about as often as SearchThread.run() checks: */
+
+	static final long CONTROL_EVERY_MILLISECONDS = 100;
+	static final int CONTROL_EVERY_NODES_PER_THREAD = 1000;
+
+	/* Try to expand about this many nodes in each thread in each
+	   phase: */
+
+	static final int NODES_PER_PHASE_PER_THREAD = 4096;
+
+	/* A thread ends its part of a round early if the search has
+	   been paused or something wants a snapshot, which it checks
+	   after expanding this many nodes: */
+
+	static final int CHECK_EVERY_NODES = 1024;
+
+	final FillerThread filler;
+	final SearchNodeStore nodes;
+	final Worker [] workers;
+
+	/* The threads wait for each other at these after expanding
+	   their nodes, after taking in their messages, and (only when
+	   controlNeeded is set) while the first thread deals with
+	   pausing, snapshots, progress reports and so on: */
+
+	final Phaser expanded;
+	final Phaser received;
+	final Phaser controlled;
+
+	/* These are only changed while all the threads are waiting,
+	   at the end of a round: */
+
+	float limit;
+	float delta;
+	long expandedThisPhase;
+	boolean controlNeeded;
+	boolean finished;
+	long lastControlMilliseconds;
+	long expandedSinceControl;
+	int exitReason = SearchThread.CANCELLED;
+
+	/* The smallest g of any open node, for progress reports: */
+
+	volatile float minimumOpen = Float.POSITIVE_INFINITY;
+
+	Throwable failure;
+
+	ParallelFill( FillerThread filler, int threads ) {
+		this.filler = filler;
+		this.nodes = filler.nodes_as_image_from_start;
+		workers = new Worker[threads];
+		for( int i = 0; i < threads; ++i )
+			workers[i] = new Worker( i, threads );
+		expanded = new Phaser( threads );
+		received = new Phaser( threads ) {
+			@Override
+			protected boolean onAdvance( int phase, int parties ) {
+				try {
+					endOfRound();
+				} catch( Throwable t ) {
+					fail( t );
+				}
+				return false;
+			}
+		};
+		controlled = new Phaser( threads );
+	}
+
+	final class Worker implements Runnable {
+
+		final int index;
+		final SearchNodeHeap open;
+
+		/* The messages for each of the other threads: */
+
+		final int [][] sendIds;
+		final float [][] sendG;
+		final int [][] sendPredecessors;
+		final int [] sent;
+
+		long expandedThisRound;
+		float minimum;
+
+		Worker( int index, int threads ) {
+			this.index = index;
+			open = new SearchNodeHeap( nodes );
+			sendIds = new int[threads][16];
+			sendG = new float[threads][16];
+			sendPredecessors = new int[threads][16];
+			sent = new int[threads];
+		}
+
+		void send( int to, int id, float g, int predecessor ) {
+			int n = sent[to];
+			if( n == sendIds[to].length ) {
+				sendIds[to] = Arrays.copyOf( sendIds[to], n * 2 );
+				sendG[to] = Arrays.copyOf( sendG[to], n * 2 );
+				sendPredecessors[to] = Arrays.copyOf( sendPredecessors[to], n * 2 );
+			}
+			sendIds[to][n] = id;
+			sendG[to][n] = g;
+			sendPredecessors[to][n] = predecessor;
+			sent[to] = n + 1;
+		}
+
+		/* This is the inner loop of SearchThread.run(), but
+		   for a filler: there's no goal, heuristic, corridor
+		   or other direction of the search to consider. */
+
+		void expand( ) {
+			Neighbourhood neighbourhood = filler.neighbourhood;
+			double minimumCost = filler.minimum_cost_per_unit_distance;
+			while( open.size() > 0 && open.peekKey() < limit ) {
+				int p = open.poll();
+				int p_x = nodes.x( p );
+				int p_y = nodes.y( p );
+				int p_z = nodes.z( p );
+				float p_g = nodes.getG( p_x, p_y, p_z );
+
+				nodes.setStatus( p_x, p_y, p_z, CLOSED );
+
+				boolean interior = neighbourhood.isInterior( p_x, p_y, p_z );
+
+				for( int n = 0; n < neighbourhood.size; ++n ) {
+
+					int new_x = p_x + neighbourhood.dx[n];
+					int new_y = p_y + neighbourhood.dy[n];
+					int new_z = p_z + neighbourhood.dz[n];
+
+					if( ! interior && ! neighbourhood.inBounds( new_x, new_y, new_z ) )
+						continue;
+
+					double cost = filler.costMovingTo( new_x, new_y, new_z );
+					if( cost < minimumCost )
+						cost = minimumCost;
+
+					float g = (float) ( p_g + neighbourhood.step[n] * cost );
+
+					int new_id = nodes.id( new_x, new_y, new_z );
+					int owner = nodes.partitionOfNode( new_id );
+					if( owner == index )
+						filler.relax( nodes, open, p,
+							      new_x, new_y, new_z, new_id,
+							      g, g, OPEN, CLOSED );
+					else
+						send( owner, new_id, g, p );
+				}
+				++ expandedThisRound;
+
+				// Don't keep a pause or a snapshot
+				// waiting until the round ends:
+				if( 0 == (expandedThisRound % CHECK_EVERY_NODES) &&
+				    (filler.snapshotWanted() || filler.getThreadStatus() != SearchThread.RUNNING) )
+					return;
+			}
+		}
+
+		void receive( ) {
+			for( Worker from : workers ) {
+				int n = from.sent[index];
+				int [] ids = from.sendIds[index];
+				float [] g = from.sendG[index];
+				int [] predecessors = from.sendPredecessors[index];
+				for( int i = 0; i < n; ++i ) {
+					int id = ids[i];
+					filler.relax( nodes, open, predecessors[i],
+						      nodes.x( id ), nodes.y( id ), nodes.z( id ), id,
+						      g[i], g[i], OPEN, CLOSED );
+				}
+				from.sent[index] = 0;
+			}
+			minimum = (open.size() > 0) ? open.peekKey() : Float.POSITIVE_INFINITY;
+		}
+
+		@Override
+		public void run( ) {
+			try {
+				while( true ) {
+					expand();
+					if( expanded.arriveAndAwaitAdvance() < 0 )
+						return;
+					receive();
+					if( received.arriveAndAwaitAdvance() < 0 )
+						return;
+					if( controlNeeded ) {
+						if( index == 0 )
+							control();
+						if( controlled.arriveAndAwaitAdvance() < 0 )
+							return;
+					}
+					if( finished )
+						return;
+				}
+			} catch( Throwable t ) {
+				fail( t );
+			}
+		}
+
+		long bytesAllocated( ) {
+			long result = open.bytesAllocated();
+			for( int i = 0; i < sent.length; ++i )
+				result += (long)sendIds[i].length * (4 + 4 + 4);
+			return result;
+		}
+	}
+
+	/* Stop all the threads, e.g. because one of them has run out
+	   of memory; the search thread rethrows this. */
+
+	synchronized void fail( Throwable t ) {
+		if( failure == null )
+			failure = t;
+		expanded.forceTermination();
+		received.forceTermination();
+		controlled.forceTermination();
+	}
+
+	/* This is run by the last thread to finish a round, while the
+	   others are waiting: */
+
+	void endOfRound( ) {
+		float minimum = Float.POSITIVE_INFINITY;
+		for( Worker w : workers ) {
+			minimum = Math.min( minimum, w.minimum );
+			expandedThisPhase += w.expandedThisRound;
+			expandedSinceControl += w.expandedThisRound;
+			w.expandedThisRound = 0;
+		}
+		minimumOpen = minimum;
+
+		if( minimum == Float.POSITIVE_INFINITY ) {
+			exitReason = SearchThread.POINTS_EXHAUSTED;
+			finished = true;
+		} else if( minimum >= limit )
+			startPhase( minimum );
+
+		long now = System.currentTimeMillis();
+		controlNeeded = finished ||
+			filler.snapshotWanted() ||
+			filler.getThreadStatus() != SearchThread.RUNNING ||
+			now - lastControlMilliseconds >= CONTROL_EVERY_MILLISECONDS ||
+			expandedSinceControl >= (long)CONTROL_EVERY_NODES_PER_THREAD * workers.length;
+		if( controlNeeded ) {
+			lastControlMilliseconds = now;
+			expandedSinceControl = 0;
+		}
+	}
+
+	void startPhase( float minimum ) {
+		int target = NODES_PER_PHASE_PER_THREAD * workers.length;
+		if( expandedThisPhase < target )
+			delta *= 2;
+		else if( expandedThisPhase > 8L * target )
+			delta /= 2;
+		expandedThisPhase = 0;
+		limit = Math.max( minimum + delta, Math.nextUp( minimum ) );
+	}
+
+	/* This is done by the first thread, which is the filler's own,
+	   while all the others are waiting: */
+
+	void control( ) {
+		if( finished )
+			return;
+
+		if( Thread.interrupted() )
+			filler.requestStop();
+
+		if( filler.getThreadStatus() == SearchThread.PAUSED )
+			filler.reportThreadStatus();
+		if( filler.getThreadStatus() == SearchThread.PAUSED || filler.snapshotWanted() )
+			filler.waitBetweenNodes();
+
+		if( filler.getThreadStatus() == SearchThread.STOPPING ) {
+			filler.reportThreadStatus();
+			exitReason = SearchThread.CANCELLED;
+			finished = true;
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if( (filler.timeoutSeconds > 0) && (now - startedAt > (1000L * filler.timeoutSeconds)) ) {
+			exitReason = SearchThread.TIMED_OUT;
+			finished = true;
+			return;
+		}
+
+		if( filler.overMemoryBudget() ) {
+			exitReason = SearchThread.OVER_MEMORY_BUDGET;
+			finished = true;
+			return;
+		}
+
+		if( (filler.reportEveryMilliseconds > 0) &&
+		    (now - filler.lastReportMilliseconds > filler.reportEveryMilliseconds) ) {
+			filler.reportPointsInSearch();
+			filler.lastReportMilliseconds = now;
+		}
+	}
+
+	long startedAt;
+
+	/* This is called in the filler's own thread, and returns when
+	   the search has finished and the listeners have been told
+	   how. */
+
+	void run( long startedAt ) throws Throwable {
+
+		this.startedAt = startedAt;
+		lastControlMilliseconds = System.currentTimeMillis();
+
+		nodes.setPartitions( workers.length );
+
+		// Hand out the open nodes to the threads whose bricks
+		// they're in:
+		SearchNodeQueue initial = filler.open_from_start;
+		float minimum = Float.POSITIVE_INFINITY;
+		while( initial.size() > 0 ) {
+			int id = initial.poll();
+			float g = nodes.getG( id );
+			workers[nodes.partitionOfNode( id )].open.add( id, g );
+			minimum = Math.min( minimum, g );
+		}
+
+		/* Start with a phase that should expand only a few
+		   nodes; startPhase() soon makes delta bigger if
+		   that's too few: */
+
+		delta = (float)Math.max( filler.minimum_cost_per_unit_distance, Float.MIN_NORMAL );
+		limit = Math.max( minimum + delta, Math.nextUp( minimum ) );
+		if( minimum == Float.POSITIVE_INFINITY ) {
+			exitReason = SearchThread.POINTS_EXHAUSTED;
+			finished = true;
+		}
+
+		if( ! finished ) {
+			// The filler has reserved a helper for each of
+			// the other workers:
+			Future<?> [] helpers = new Future<?>[workers.length - 1];
+			for( int i = 1; i < workers.length; ++i )
+				helpers[i-1] = SearchScheduler.startHelper( workers[i] );
+			workers[0].run();
+			for( Future<?> helper : helpers ) {
+				while( true ) {
+					try {
+						helper.get();
+						break;
+					} catch( InterruptedException e ) {
+						// The helpers stop as soon
+						// as this one does, so keep
+						// waiting
+					}
+				}
+			}
+		}
+
+		if( failure != null )
+			throw failure;
+
+		if( exitReason == SearchThread.OVER_MEMORY_BUDGET ) {
+			filler.stopOverBudget();
+		} else {
+			filler.setExitReason( exitReason );
+			filler.reportFinished( false );
+		}
+	}
+
+	long bytesAllocated( ) {
+		long result = 0;
+		for( Worker w : workers )
+			result += w.bytesAllocated();
+		return result;
+	}
+}
@@ -46,6 +46,8 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -785,6 +787,13 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		Fill toReload = allFills.get(index);
 
+		try {
+			toReload.loadNodes();
+		} catch( IOException e ) {
+			IJ.error("Couldn't read the nodes of the fill: "+e.getMessage());
+			return;
+		}
+
 		plugin.startFillerThread( FillerThread.fromFill( plugin.getImagePlus(),
 								 plugin.stackMin,
 								 plugin.stackMax,
@@ -799,6 +808,17 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		PrintWriter pw = null;
 
+		/* The nodes of the fills go in a FillNodesFile next to
+		   this one.  That's written under another name first
+		   and then renamed, since the nodes of fills that
+		   haven't been read yet may be copied from the file
+		   that it replaces: */
+
+		File nodesFile = FillNodesFile.forTracesFile( new File( fileName ) );
+		File newNodesFile = new File( nodesFile.getPath() + ".new" );
+		FillNodesFile.Writer nodesWriter = null;
+		FillNodesFile.Location [] nodesWritten = new FillNodesFile.Location[allFills.size()];
+
 		try {
 			if( compress )
 				pw = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fileName)),"UTF-8"));
@@ -854,6 +874,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			pw.println("  <!ATTLIST fill           metric            CDATA           #REQUIRED>");
 			pw.println("  <!ATTLIST fill           threshold         CDATA           #REQUIRED>");
 			pw.println("  <!ATTLIST fill           volume            CDATA           #IMPLIED>");
+			pw.println("  <!ATTLIST fill           nodesfile         CDATA           #IMPLIED>");
+			pw.println("  <!ATTLIST fill           nodesoffset       CDATA           #IMPLIED>");
+			pw.println("  <!ATTLIST fill           nodecount         CDATA           #IMPLIED>");
 			pw.println("  <!ATTLIST node           id                CDATA           #REQUIRED>");
 			pw.println("  <!ATTLIST node           x                 CDATA           #REQUIRED>");
 			pw.println("  <!ATTLIST node           y                 CDATA           #REQUIRED>");
@@ -951,15 +974,32 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				pw.println( "  </path>" );
 			}
 			// Now output the fills:
+			if( allFills.size() > 0 )
+				nodesWriter = new FillNodesFile.Writer( newNodesFile );
 			int fillIndex = 0;
 			for( Fill f : allFills ) {
-				f.writeXML( pw, fillIndex );
+				nodesWritten[fillIndex] = f.writeXML( pw, fillIndex, nodesWriter, nodesFile.getName() );
 				++ fillIndex;
 			}
 			pw.println("</tracings>");
 		} finally {
 			if( pw != null )
 				pw.close();
+			if( nodesWriter != null )
+				nodesWriter.close();
+		}
+
+		if( nodesWriter != null ) {
+			Files.move( newNodesFile.toPath(), nodesFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			// Fills whose nodes haven't been read yet should
+			// now read them from the new file:
+			for( int i = 0; i < allFills.size(); ++i ) {
+				Fill f = allFills.get(i);
+				if( ! f.nodesLoaded() )
+					f.setNodesLocation( new FillNodesFile.Location( nodesFile,
+											nodesWritten[i].offset,
+											nodesWritten[i].nodeCount ) );
+			}
 		}
 	}
 
@@ -1352,6 +1392,27 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 				current_fill.setThreshold(fillThreshold);
 
+				current_fill.setSpacing( parsed_x_spacing,
+							 parsed_y_spacing,
+							 parsed_z_spacing,
+							 parsed_units );
+
+				String volumeString = attributes.getValue("volume");
+				if( volumeString != null )
+					current_fill.setSavedVolume( Double.parseDouble(volumeString) );
+
+				// The nodes may be in a FillNodesFile, in
+				// which case they're only read when needed:
+				String nodesFileString = attributes.getValue("nodesfile");
+				if( nodesFileString != null ) {
+					if( loadingFrom == null )
+						throw new TracesFileFormatException("The nodes of the fills are in a separate file, but the name of the traces file isn't known");
+					long nodesOffset = Long.parseLong(attributes.getValue("nodesoffset"));
+					int nodeCount = Integer.parseInt(attributes.getValue("nodecount"));
+					File nodesFile = new File( loadingFrom.getAbsoluteFile().getParentFile(), nodesFileString );
+					current_fill.setNodesLocation( new FillNodesFile.Location( nodesFile, nodesOffset, nodeCount ) );
+				}
+
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <fill>");
 			}
@@ -1379,6 +1440,10 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				else
 					parsed_previous = Integer.parseInt(previousString);
 
+				if( ! current_fill.nodesLoaded() ) {
+					throw new TracesFileFormatException("A fill can't have <node> elements as well as a nodesfile attribute");
+				}
+
 				if( parsed_id != (last_fill_node_id + 1) ) {
 					throw new TracesFileFormatException("Fill node IDs weren't consecutive integers");
 				}
@@ -1424,6 +1489,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		} else if( qName.equals("fill") ) {
 
+			current_fill.trimToSize();
 			allFills.add( current_fill );
 
 		} else if( qName.equals("tracings") ) {
@@ -1905,23 +1971,34 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return TRACES_FILE_TYPE_SWC;
 	}
 
+	/* The traces file being loaded, if it's known, so that the
+	   FillNodesFile next to it can be found: */
+
+	File loadingFrom;
+
 	public boolean loadCompressedXML( String filename ) {
 		try {
 			if (verbose) System.out.println("Loading gzipped file...");
+			loadingFrom = new File(filename);
 			return load( new GZIPInputStream(new BufferedInputStream(new FileInputStream(filename))), null );
 		} catch( IOException ioe ) {
 			IJ.error("Couldn't open file '"+filename+"' for reading\n(n.b. it was expected to be compressed XML)");
 			return false;
+		} finally {
+			loadingFrom = null;
 		}
 	}
 
 	public boolean loadUncompressedXML( String filename ) {
 		try {
 			if (verbose) System.out.println("Loading uncompressed file...");
+			loadingFrom = new File(filename);
 			return load( new BufferedInputStream(new FileInputStream(filename)), null );
 		} catch( IOException ioe ) {
 			IJ.error("Couldn't open file '"+filename+"' for reading\n(n.b. it was expected to be XML)");
 			return false;
+		} finally {
+			loadingFrom = null;
 		}
 	}
 
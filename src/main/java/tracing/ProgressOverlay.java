@@ -0,0 +1,222 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+import stacks.ThreePanes;
+
+/* This keeps a raster for each of the three planes showing which
+   nodes of a search in the slice being displayed are open or closed,
+   so that drawing the progress of the search doesn't have to look at
+   every point in the plane on every repaint, which is very slow for
+   large images.
+
+   The search's SearchNodeStores tell this about every node whose
+   state changes, and those in the displayed slice of each plane are
+   queued until the next repaint, which only updates their pixels.
+   The raster is only rebuilt from scratch when the slice or the
+   threshold changes, or when so many nodes have changed that
+   that's quicker.  Each pixel is 0 for no node, 1 for an open node
+   or 2 for a closed one, and the colours are just the palette, so
+   changing them doesn't need a rebuild either. */
+
+public class ProgressOverlay {
+
+	static final byte NOTHING = 0;
+	static final byte OPEN = 1;
+	static final byte CLOSED = 2;
+
+	final SearchThread search;
+
+	final Plane [] planes = new Plane[3];
+
+	public ProgressOverlay( SearchThread search ) {
+		this.search = search;
+		planes[ThreePanes.XY_PLANE] = new Plane( search.width, search.height );
+		planes[ThreePanes.XZ_PLANE] = new Plane( search.width, search.depth );
+		planes[ThreePanes.ZY_PLANE] = new Plane( search.depth, search.height );
+	}
+
+	static class Plane {
+
+		final int width, height;
+
+		/* The slice that the raster shows, or -1 if none yet: */
+
+		volatile int slice = -1;
+
+		/* If this is true the raster must be rebuilt: */
+
+		volatile boolean stale = true;
+
+		double threshold;
+		Color openColor, closedColor;
+
+		/* The pixels are those of the image, whose palette has
+		   the colours above: */
+
+		BufferedImage image;
+		byte [] pixels;
+
+		/* The indices of the pixels that have changed since the
+		   last repaint: */
+
+		int [] pending = new int[256];
+		int pendingCount = 0;
+
+		Plane( int width, int height ) {
+			this.width = width;
+			this.height = height;
+		}
+
+		synchronized void changed( int i ) {
+			if( stale )
+				return;
+			if( pendingCount == pending.length ) {
+				// Rebuilding is quicker than catching up:
+				if( pendingCount >= (width * height) / 8 ) {
+					stale = true;
+					pendingCount = 0;
+					return;
+				}
+				int [] bigger = new int[pending.length * 2];
+				System.arraycopy( pending, 0, bigger, 0, pendingCount );
+				pending = bigger;
+			}
+			pending[pendingCount++] = i;
+		}
+	}
+
+	/* Called by the SearchNodeStores whenever the node at
+	   (x,y,z) changes: */
+
+	void changed( int x, int y, int z ) {
+		Plane p = planes[ThreePanes.XY_PLANE];
+		if( z == p.slice )
+			p.changed( y * p.width + x );
+		p = planes[ThreePanes.XZ_PLANE];
+		if( y == p.slice )
+			p.changed( z * p.width + x );
+		p = planes[ThreePanes.ZY_PLANE];
+		if( x == p.slice )
+			p.changed( y * p.width + z );
+	}
+
+	/* Forget everything, e.g. because the search has started
+	   using different SearchNodeStores: */
+
+	void invalidate( ) {
+		for( Plane p : planes )
+			p.stale = true;
+	}
+
+	byte pixelValue( int plane, int slice, int u, int v, double threshold ) {
+		byte status;
+		if( plane == ThreePanes.XY_PLANE )
+			status = search.anyNodeUnderThreshold( u, v, slice, threshold );
+		else if( plane == ThreePanes.XZ_PLANE )
+			status = search.anyNodeUnderThreshold( u, slice, v, threshold );
+		else
+			status = search.anyNodeUnderThreshold( slice, v, u, threshold );
+		// In an anytime search, nodes that are waiting for the
+		// next pass are open, and those from earlier passes are
+		// closed:
+		if( status == SearchThread.OPEN_FROM_START || status == SearchThread.OPEN_FROM_GOAL ||
+		    status == SearchThread.INCONSISTENT )
+			return OPEN;
+		if( status == SearchThread.CLOSED_FROM_START || status == SearchThread.CLOSED_FROM_GOAL ||
+		    status == SearchThread.CLOSED_EARLIER )
+			return CLOSED;
+		return NOTHING;
+	}
+
+	static int argb( Color c ) {
+		return (c == null) ? 0 : c.getRGB();
+	}
+
+	public void draw( int plane,
+			  int slice,
+			  double threshold,
+			  Color openColor,
+			  Color closedColor,
+			  TracerCanvas canvas,
+			  Graphics g ) {
+
+		Plane p = planes[plane];
+		BufferedImage image;
+
+		synchronized( p ) {
+
+			if( p.image == null || openColor != p.openColor || closedColor != p.closedColor ) {
+				int [] palette = { 0, argb( openColor ), argb( closedColor ) };
+				IndexColorModel colorModel = new IndexColorModel( 8, palette.length, palette, 0, true, -1, DataBuffer.TYPE_BYTE );
+				if( p.image == null ) {
+					p.image = new BufferedImage( p.width, p.height, BufferedImage.TYPE_BYTE_INDEXED, colorModel );
+					p.pixels = ((DataBufferByte)p.image.getRaster().getDataBuffer()).getData();
+				} else
+					p.image = new BufferedImage( colorModel, p.image.getRaster(), false, null );
+				p.openColor = openColor;
+				p.closedColor = closedColor;
+			}
+
+			if( p.stale || p.slice != slice || p.threshold != threshold ) {
+				p.slice = slice;
+				p.threshold = threshold;
+				p.stale = false;
+				p.pendingCount = 0;
+				for( int v = 0; v < p.height; ++v )
+					for( int u = 0; u < p.width; ++u )
+						p.pixels[v * p.width + u] = pixelValue( plane, slice, u, v, threshold );
+			} else {
+				for( int i = 0; i < p.pendingCount; ++i ) {
+					int pixel = p.pending[i];
+					p.pixels[pixel] = pixelValue( plane, slice, pixel % p.width, pixel / p.width, threshold );
+				}
+				p.pendingCount = 0;
+			}
+
+			image = p.image;
+		}
+
+		int pixel_size = (int)canvas.getMagnification();
+		if( pixel_size < 1 )
+			pixel_size = 1;
+
+		int x0 = canvas.myScreenX( 0 ) - pixel_size / 2;
+		int y0 = canvas.myScreenY( 0 ) - pixel_size / 2;
+		int x1 = canvas.myScreenX( p.width ) - pixel_size / 2;
+		int y1 = canvas.myScreenY( p.height ) - pixel_size / 2;
+
+		g.drawImage( image, x0, y0, x1, y1, 0, 0, p.width, p.height, null );
+	}
+}
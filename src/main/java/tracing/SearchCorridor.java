@@ -0,0 +1,99 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.util.BitSet;
+
+/* The voxels near a path that was found on a coarser version of the
+   image (see ImagePyramid), which a search on a finer version is then
+   confined to.  The corridor is kept as one bit for each voxel of
+   the coarse image, set for the voxels of the coarse path and those
+   within radius of them, and a voxel of the fine image is in the
+   corridor if the coarse voxel that covers it is.
+
+   If the search runs out of nodes in the corridor it carries on
+   without it (see SearchThread.growSearchRegion), so a poor coarse
+   path can make the search slower but not stop it finding a path. */
+
+public class SearchCorridor {
+
+	/* The size of the coarse image: */
+
+	final int width;
+	final int height;
+	final int depth;
+
+	/* How many voxels of the fine image there are in each voxel
+	   of the coarse one, along each axis: */
+
+	final int xRatio;
+	final int yRatio;
+	final int zRatio;
+
+	final BitSet cells;
+
+	/* coarsePath must be one that was found in the coarse image,
+	   so that its unscaled coordinates are voxels of that image. */
+
+	public SearchCorridor( Path coarsePath,
+			       int width, int height, int depth,
+			       int xRatio, int yRatio, int zRatio,
+			       int radius ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.xRatio = xRatio;
+		this.yRatio = yRatio;
+		this.zRatio = zRatio;
+
+		cells = new BitSet( width * height * depth );
+
+		int zRadius = (depth > 1) ? radius : 0;
+		for( int i = 0; i < coarsePath.size(); ++i ) {
+			int px = coarsePath.getXUnscaled( i );
+			int py = coarsePath.getYUnscaled( i );
+			int pz = coarsePath.getZUnscaled( i );
+			for( int z = Math.max( 0, pz - zRadius ); z <= Math.min( depth - 1, pz + zRadius ); ++z )
+				for( int y = Math.max( 0, py - radius ); y <= Math.min( height - 1, py + radius ); ++y ) {
+					int from = (z * height + y) * width;
+					cells.set( from + Math.max( 0, px - radius ),
+						   from + Math.min( width - 1, px + radius ) + 1 );
+				}
+		}
+	}
+
+	public boolean contains( int x, int y, int z ) {
+		int cx = x / xRatio, cy = y / yRatio, cz = z / zRatio;
+		if( cx >= width || cy >= height || cz >= depth )
+			return false;
+		return cells.get( (cz * height + cy) * width + cx );
+	}
+
+	public int cellsInCorridor( ) {
+		return cells.cardinality();
+	}
+}
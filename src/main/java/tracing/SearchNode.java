@@ -168,6 +168,10 @@ public class SearchNode implements Comparable {
 			searchStatusString = "closed from goal";
 		else if( searchStatus == SearchThread.FREE )
 			searchStatusString = "free";
+		else if( searchStatus == SearchThread.INCONSISTENT )
+			searchStatusString = "inconsistent";
+		else if( searchStatus == SearchThread.CLOSED_EARLIER )
+			searchStatusString = "closed in an earlier pass";
 		return "("+x+","+y+","+z+") h: "+h+" g: "+g+" f: "+f+" ["+searchStatusString+"]";
 	}
 
@@ -0,0 +1,221 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* A binary min-heap of node indices (see SearchNodeStore) ordered by
+   a float priority, which replaces PriorityQueue<SearchNode> in
+   SearchThread without needing an object per node.  Nodes with the
+   same priority are ordered by their index so that the order in
+   which the search proceeds is reproducible.
+
+   Each entry is a single long, with the bits of the priority in the
+   high word (changed so that their order as an int is the order of
+   the floats) and the node's index in the low word.  Comparing two
+   entries as longs then compares their priorities and then their
+   indices, as unsigned ints, in one go, and moving an entry is one
+   array access rather than two.
+
+   Each node's position in the heap is kept up to date in the
+   SearchNodeStore, so removing a node or changing its priority is
+   O(log n) rather than the linear scan that PriorityQueue.remove()
+   needs.  (See also SearchNodeRadixHeap, for searches without a
+   heuristic.) */
+
+public class SearchNodeHeap implements SearchNodeQueue {
+
+	final SearchNodeStore nodes;
+
+	long [] entries;
+	int size;
+
+	public SearchNodeHeap( SearchNodeStore nodes ) {
+		this( nodes, 1024 );
+	}
+
+	public SearchNodeHeap( SearchNodeStore nodes, int initialCapacity ) {
+		this.nodes = nodes;
+		entries = new long[initialCapacity];
+	}
+
+	/* For non-negative floats the bit patterns are already in
+	   order; flipping all but the sign bit of negative ones puts
+	   those in order too.  Adding 0.0 makes -0.0 the same as 0.0,
+	   which the float comparisons treat as equal. */
+
+	static long entry( int id, float key ) {
+		int bits = Float.floatToIntBits( key + 0.0f );
+		bits ^= (bits >> 31) & 0x7FFFFFFF;
+		return ((long)bits << 32) | (id & 0xFFFFFFFFL);
+	}
+
+	static int id( long entry ) {
+		return (int)entry;
+	}
+
+	static float key( long entry ) {
+		int bits = (int)(entry >>> 32);
+		bits ^= (bits >> 31) & 0x7FFFFFFF;
+		return Float.intBitsToFloat( bits );
+	}
+
+	public int size( ) {
+		return size;
+	}
+
+	/* The node at position i in the heap's array, for iterating
+	   over all of them in no particular order: */
+
+	public int get( int i ) {
+		return id( entries[i] );
+	}
+
+	public int peekId( ) {
+		if( size == 0 )
+			throw new RuntimeException( "BUG: peekId() called on an empty SearchNodeHeap" );
+		return id( entries[0] );
+	}
+
+	public float peekKey( ) {
+		if( size == 0 )
+			throw new RuntimeException( "BUG: peekKey() called on an empty SearchNodeHeap" );
+		return key( entries[0] );
+	}
+
+	public void add( int id, float key ) {
+		if( size == entries.length ) {
+			long [] newEntries = new long[entries.length * 2];
+			System.arraycopy( entries, 0, newEntries, 0, size );
+			entries = newEntries;
+		}
+		entries[size] = entry( id, key );
+		nodes.setHeapSlot( id, size );
+		siftUp( size++ );
+	}
+
+	/* Change the priority of a node that's already in the heap;
+	   this is usually a decrease, when a cheaper route to the
+	   node has been found. */
+
+	public void update( int id, float key ) {
+		int i = nodes.getHeapSlot( id );
+		if( i >= size || id( entries[i] ) != id )
+			throw new RuntimeException( "BUG: update() called for a node that isn't in the heap" );
+		long oldEntry = entries[i];
+		entries[i] = entry( id, key );
+		if( entries[i] < oldEntry )
+			siftUp( i );
+		else
+			siftDown( i );
+	}
+
+	/* Set the priority of the node at position i in the heap's
+	   array without restoring the heap order; heapify() must be
+	   called after changing any of them this way.  This is for
+	   changing the priorities of all the nodes at once, e.g. when
+	   the heuristic changes, which is O(n) rather than the
+	   O(n log n) of calling update() for each one. */
+
+	public void setKeyAt( int i, float key ) {
+		entries[i] = entry( id( entries[i] ), key );
+	}
+
+	public void heapify( ) {
+		for( int i = (size >>> 1) - 1; i >= 0; --i )
+			siftDown( i );
+	}
+
+	public boolean contains( int id ) {
+		int i = nodes.getHeapSlot( id );
+		return i < size && id( entries[i] ) == id;
+	}
+
+	public int poll( ) {
+		int result = peekId();
+		removeAt( 0 );
+		return result;
+	}
+
+	public boolean remove( int id ) {
+		if( ! contains( id ) )
+			return false;
+		removeAt( nodes.getHeapSlot( id ) );
+		return true;
+	}
+
+	void removeAt( int i ) {
+		-- size;
+		if( i == size )
+			return;
+		entries[i] = entries[size];
+		nodes.setHeapSlot( id( entries[i] ), i );
+		siftDown( i );
+		siftUp( i );
+	}
+
+	/* Rather than swapping entries on the way up or down, each
+	   sift holds the entry it's moving and shifts the others into
+	   the gap, so each level costs one array write and one
+	   update of a heap slot: */
+
+	void siftUp( int i ) {
+		long moving = entries[i];
+		while( i > 0 ) {
+			int parent = (i - 1) >>> 1;
+			long p = entries[parent];
+			if( moving >= p )
+				break;
+			entries[i] = p;
+			nodes.setHeapSlot( id( p ), i );
+			i = parent;
+		}
+		entries[i] = moving;
+		nodes.setHeapSlot( id( moving ), i );
+	}
+
+	void siftDown( int i ) {
+		long moving = entries[i];
+		while( true ) {
+			int child = 2 * i + 1;
+			if( child >= size )
+				break;
+			long c = entries[child];
+			if( child + 1 < size && entries[child + 1] < c )
+				c = entries[++child];
+			if( c >= moving )
+				break;
+			entries[i] = c;
+			nodes.setHeapSlot( id( c ), i );
+			i = child;
+		}
+		entries[i] = moving;
+		nodes.setHeapSlot( id( moving ), i );
+	}
+
+	public long bytesAllocated( ) {
+		return (long)entries.length * 8;
+	}
+}
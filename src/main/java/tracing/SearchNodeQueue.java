@@ -0,0 +1,73 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* The open list of a search: node indices (see SearchNodeStore)
+   ordered by a float priority.  The position of each node in the
+   queue is kept in the SearchNodeStore, so that a node's priority
+   can be changed without searching for it.
+
+   SearchNodeHeap works for any search.  SearchNodeRadixHeap is faster
+   but relies on the priorities that are taken off the queue never
+   decreasing, so it's only suitable for searches without a heuristic
+   (e.g. FillerThread), where the priority is just g. */
+
+public interface SearchNodeQueue {
+
+	public int size( );
+
+	/* The node at position i, for iterating over all of them in
+	   no particular order: */
+
+	public int get( int i );
+
+	public int peekId( );
+
+	public float peekKey( );
+
+	public void add( int id, float key );
+
+	/* Change the priority of a node that's already queued: */
+
+	public void update( int id, float key );
+
+	public boolean contains( int id );
+
+	public boolean remove( int id );
+
+	public int poll( );
+
+	/* Set the priority of the node at position i without
+	   restoring the order; heapify() must be called after
+	   changing any of them this way. */
+
+	public void setKeyAt( int i, float key );
+
+	public void heapify( );
+
+	public long bytesAllocated( );
+}
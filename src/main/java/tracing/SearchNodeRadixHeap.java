@@ -0,0 +1,258 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* A monotone priority queue for searches without a heuristic, where
+   the priority of each node is its g, so the priorities of the nodes
+   taken off the queue never decrease.  (This is a radix heap: see
+   Ahuja, Mehlhorn, Orlin and Tarjan, "Faster algorithms for the
+   shortest path problem", 1990.)
+
+   The priorities are non-negative floats, and for those the order of
+   the bit patterns as ints is the same as the order of the floats.
+   A node is kept in bucket 0 if its priority is the same as that of
+   the last node taken off the queue, or otherwise in the bucket given
+   by the highest bit in which the two differ.  Adding a node or
+   changing its priority is then O(1), with no comparisons, and each
+   node moves to a lower bucket at most 31 times before it's taken
+   off the queue.  This is much cheaper than the O(log n) sifting of
+   SearchNodeHeap when there are millions of open nodes.
+
+   Each node's bucket and its position in that bucket are kept in the
+   SearchNodeStore, in the slot that SearchNodeHeap uses for the
+   position in the heap.
+
+   If a node is added with a lower priority than the last one taken
+   off (which only happens when closed nodes are reopened, e.g. when
+   a search's region grows) the buckets are rebuilt around the new
+   priority, which is O(n) but rare. */
+
+public class SearchNodeRadixHeap implements SearchNodeQueue {
+
+	static final int BUCKETS = 32;
+	static final int POSITION_BITS = 27;
+	static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+
+	final SearchNodeStore nodes;
+
+	int [][] ids = new int[BUCKETS][];
+	int [][] keys = new int[BUCKETS][];
+	int [] bucketSizes = new int[BUCKETS];
+
+	int size;
+
+	/* The bits of the last priority taken off the queue: */
+
+	int last = 0;
+
+	public SearchNodeRadixHeap( SearchNodeStore nodes ) {
+		this.nodes = nodes;
+		for( int b = 0; b < BUCKETS; ++b ) {
+			ids[b] = new int[64];
+			keys[b] = new int[64];
+		}
+	}
+
+	public int size( ) {
+		return size;
+	}
+
+	static int bits( float key ) {
+		if( ! (key >= 0) )
+			throw new RuntimeException( "BUG: SearchNodeRadixHeap can't hold the priority " + key );
+		// This makes -0.0 the same as 0.0:
+		return Float.floatToIntBits( key + 0.0f );
+	}
+
+	int bucketFor( int keyBits ) {
+		return (keyBits == last) ? 0 : 32 - Integer.numberOfLeadingZeros( keyBits ^ last );
+	}
+
+	void insert( int id, int keyBits ) {
+		int b = bucketFor( keyBits );
+		int n = bucketSizes[b];
+		if( n == ids[b].length ) {
+			if( n == POSITION_MASK + 1 )
+				throw new RuntimeException( "Too many nodes with similar priorities in a SearchNodeRadixHeap" );
+			int newCapacity = Math.min( n * 2, POSITION_MASK + 1 );
+			int [] newIds = new int[newCapacity];
+			int [] newKeys = new int[newCapacity];
+			System.arraycopy( ids[b], 0, newIds, 0, n );
+			System.arraycopy( keys[b], 0, newKeys, 0, n );
+			ids[b] = newIds;
+			keys[b] = newKeys;
+		}
+		ids[b][n] = id;
+		keys[b][n] = keyBits;
+		bucketSizes[b] = n + 1;
+		nodes.setHeapSlot( id, (b << POSITION_BITS) | n );
+	}
+
+	/* Take the entry at position i out of bucket b, by moving
+	   the bucket's last entry into its place: */
+
+	void removeFromBucket( int b, int i ) {
+		int n = -- bucketSizes[b];
+		if( i != n ) {
+			ids[b][i] = ids[b][n];
+			keys[b][i] = keys[b][n];
+			nodes.setHeapSlot( ids[b][i], (b << POSITION_BITS) | i );
+		}
+	}
+
+	public void add( int id, float key ) {
+		int keyBits = bits( key );
+		if( keyBits < last )
+			rebuild( keyBits );
+		insert( id, keyBits );
+		++ size;
+	}
+
+	public void update( int id, float key ) {
+		if( ! contains( id ) )
+			throw new RuntimeException( "BUG: update() called for a node that isn't in the heap" );
+		int slot = nodes.getHeapSlot( id );
+		removeFromBucket( slot >>> POSITION_BITS, slot & POSITION_MASK );
+		-- size;
+		add( id, key );
+	}
+
+	public boolean contains( int id ) {
+		int slot = nodes.getHeapSlot( id );
+		int b = slot >>> POSITION_BITS, i = slot & POSITION_MASK;
+		return b < BUCKETS && i < bucketSizes[b] && ids[b][i] == id;
+	}
+
+	public boolean remove( int id ) {
+		if( ! contains( id ) )
+			return false;
+		int slot = nodes.getHeapSlot( id );
+		removeFromBucket( slot >>> POSITION_BITS, slot & POSITION_MASK );
+		-- size;
+		return true;
+	}
+
+	/* Make sure that bucket 0 has the nodes with the lowest
+	   priority in it, by taking the lowest non-empty bucket,
+	   setting last to the smallest priority in it and
+	   redistributing its nodes, which all go to lower buckets: */
+
+	void fillBucketZero( ) {
+		if( bucketSizes[0] > 0 )
+			return;
+		if( size == 0 )
+			throw new RuntimeException( "BUG: trying to take a node from an empty SearchNodeRadixHeap" );
+		int b = 1;
+		while( bucketSizes[b] == 0 )
+			++ b;
+		int n = bucketSizes[b];
+		int [] bucketIds = ids[b];
+		int [] bucketKeys = keys[b];
+		int minimum = bucketKeys[0];
+		for( int i = 1; i < n; ++i )
+			if( bucketKeys[i] < minimum )
+				minimum = bucketKeys[i];
+		last = minimum;
+		// Every node in bucket b differs from the new value of
+		// last only in lower bits, so insert() never puts any of
+		// them back in bucket b:
+		for( int i = 0; i < n; ++i )
+			insert( bucketIds[i], bucketKeys[i] );
+		bucketSizes[b] = 0;
+	}
+
+	public int peekId( ) {
+		fillBucketZero();
+		return ids[0][bucketSizes[0] - 1];
+	}
+
+	public float peekKey( ) {
+		fillBucketZero();
+		return Float.intBitsToFloat( last );
+	}
+
+	public int poll( ) {
+		int result = peekId();
+		removeFromBucket( 0, bucketSizes[0] - 1 );
+		-- size;
+		return result;
+	}
+
+	public int get( int i ) {
+		for( int b = 0; b < BUCKETS; ++b ) {
+			if( i < bucketSizes[b] )
+				return ids[b][i];
+			i -= bucketSizes[b];
+		}
+		throw new RuntimeException( "BUG: get() called with an index beyond the end of the SearchNodeRadixHeap" );
+	}
+
+	public void setKeyAt( int i, float key ) {
+		for( int b = 0; b < BUCKETS; ++b ) {
+			if( i < bucketSizes[b] ) {
+				keys[b][i] = bits( key );
+				return;
+			}
+			i -= bucketSizes[b];
+		}
+		throw new RuntimeException( "BUG: setKeyAt() called with an index beyond the end of the SearchNodeRadixHeap" );
+	}
+
+	public void heapify( ) {
+		int minimum = Integer.MAX_VALUE;
+		for( int b = 0; b < BUCKETS; ++b )
+			for( int i = 0; i < bucketSizes[b]; ++i )
+				minimum = Math.min( minimum, keys[b][i] );
+		rebuild( minimum );
+	}
+
+	/* Put all the nodes back in the buckets relative to a new
+	   value of last, which must be no more than any of their
+	   priorities: */
+
+	void rebuild( int newLast ) {
+		int [] allIds = new int[size];
+		int [] allKeys = new int[size];
+		int n = 0;
+		for( int b = 0; b < BUCKETS; ++b ) {
+			System.arraycopy( ids[b], 0, allIds, n, bucketSizes[b] );
+			System.arraycopy( keys[b], 0, allKeys, n, bucketSizes[b] );
+			n += bucketSizes[b];
+			bucketSizes[b] = 0;
+		}
+		last = newLast;
+		for( int i = 0; i < n; ++i )
+			insert( allIds[i], allKeys[i] );
+	}
+
+	public long bytesAllocated( ) {
+		long result = 0;
+		for( int b = 0; b < BUCKETS; ++b )
+			result += (long)ids[b].length * (4 + 4);
+		return result;
+	}
+}
@@ -0,0 +1,403 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* This holds the state of every node in one direction of a search
+   (the g value, the predecessor and the search status) in primitive
+   arrays, instead of as a SearchNode object per voxel.
+
+   The image is divided into bricks of (usually) 16x16x16 voxels, and
+   the arrays for a brick are only allocated the first time that the
+   search reaches a voxel in it; a table with one entry per brick
+   finds the arrays for a voxel in constant time.  A thin neurite
+   crossing a large stack therefore only costs memory in proportion
+   to the number of bricks it passes through, rather than a whole
+   slice for every slice that it touches.
+
+   Nodes are identified by an index made up of the brick number and
+   the offset of the voxel within that brick, which is treated as an
+   unsigned int so that large stacks can be searched.  The
+   predecessor of a node is stored as the index of the predecessor,
+   or NONE. */
+
+public class SearchNodeStore {
+
+	public static final int NONE = -1;
+
+	/* A status of zero means that the search has never reached
+	   this voxel; any other value is one of the statuses in
+	   SearchThread, e.g. SearchThread.OPEN_FROM_START */
+
+	public static final byte ABSENT = 0;
+
+	/* Each SearchNode object cost about 48 bytes on a 64 bit JVM
+	   (with compressed references), and was referenced from both
+	   a per-slice SearchNode[] and a PriorityQueue, so about 56
+	   bytes for every voxel that the search reached.  Here we pay
+	   a float, an int and a byte for every voxel in each brick
+	   that the search has touched, and another int for the
+	   node's position in a SearchNodeHeap: */
+
+	public static final int BYTES_PER_VOXEL = 4 + 4 + 1 + 4;
+
+	public static final int SEARCH_NODE_BYTES_PER_VOXEL = 56;
+
+	/* The number of voxels in a brick is always 1 << BRICK_BITS: */
+
+	static final int BRICK_BITS = 12;
+	static final int BRICK_SIZE = 1 << BRICK_BITS;
+
+	final int width;
+	final int height;
+	final int depth;
+
+	/* The dimensions of a brick are 1 << xBits, etc. */
+
+	final int xBits, yBits, zBits;
+	final int xMask, yMask, zMask;
+
+	final int bricksX, bricksY, bricksZ;
+	final int bricksPerLayer;
+
+	/* These are indexed by brick number, and then by the offset
+	   within the brick: */
+
+	float [][] g;
+	int [][] predecessor;
+	byte [][] status;
+	int [][] heapSlot;
+
+	/* A search that's split between threads (see ParallelFill)
+	   gives each thread the bricks of one partition, and only
+	   that thread changes them.  The counts below are kept
+	   separately for each partition, so that the threads don't
+	   have to share them; this is null while there's only one
+	   partition. */
+
+	int partitions = 1;
+	byte [] brickPartition;
+
+	int [] bricksAllocated = new int[1];
+
+	/* The number of allocated bricks whose heap slots have been
+	   let go of by releaseHeapSlots(): */
+
+	int [] heapSlotsReleased = new int[1];
+
+	/* The number of allocated bricks in each layer of bricks in z: */
+
+	int [][] bricksInLayer;
+
+	/* The number of nodes with each status, so that we don't
+	   need to keep a list of the closed nodes just to know how
+	   many there are: */
+
+	int [][] statusCounts = new int[1][256];
+
+	/* If this is set, it's told about every node whose state
+	   changes, so that it can redraw just those: */
+
+	volatile ProgressOverlay overlay;
+
+	public SearchNodeStore( int width, int height, int depth ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		/* Keep the bricks flat for stacks with few slices, so
+		   that we don't allocate lots of space below the last
+		   slice: */
+
+		int bits = 0;
+		while( bits < 4 && (1 << bits) < depth )
+			++ bits;
+		zBits = bits;
+		xBits = (BRICK_BITS - zBits) / 2;
+		yBits = BRICK_BITS - zBits - xBits;
+		xMask = (1 << xBits) - 1;
+		yMask = (1 << yBits) - 1;
+		zMask = (1 << zBits) - 1;
+
+		bricksX = (width + xMask) >> xBits;
+		bricksY = (height + yMask) >> yBits;
+		bricksZ = (depth + zMask) >> zBits;
+		bricksPerLayer = bricksX * bricksY;
+
+		long bricks = (long)bricksPerLayer * bricksZ;
+		if( (bricks << BRICK_BITS) >= 0xFFFFFFFFL )
+			throw new RuntimeException( "The image is too large to search: " +
+						    width + "x" + height + "x" + depth );
+
+		g = new float[(int)bricks][];
+		predecessor = new int[(int)bricks][];
+		status = new byte[(int)bricks][];
+		heapSlot = new int[(int)bricks][];
+		bricksInLayer = new int[1][bricksZ];
+	}
+
+	int partitionOf( int brick ) {
+		return (brickPartition == null) ? 0 : brickPartition[brick];
+	}
+
+	public int partitionOfNode( int id ) {
+		return partitionOf( id >>> BRICK_BITS );
+	}
+
+	/* Split the bricks between this many partitions, which must
+	   only be done while nothing else is using the store.  The
+	   bricks are dealt out in groups of 2x2x2, so that most
+	   neighbours are in the same partition, but scattered so
+	   that a search growing through one part of the image is
+	   still shared between all of them. */
+
+	public static final int MAXIMUM_PARTITIONS = Byte.MAX_VALUE;
+
+	public void setPartitions( int newPartitions ) {
+		if( newPartitions < 1 || newPartitions > MAXIMUM_PARTITIONS )
+			throw new IllegalArgumentException( "Can't split a search into " + newPartitions + " partitions" );
+		if( newPartitions == 1 )
+			brickPartition = null;
+		else {
+			brickPartition = new byte[status.length];
+			int groupsX = (bricksX + 1) >> 1;
+			int groupsY = (bricksY + 1) >> 1;
+			for( int b = 0; b < status.length; ++b ) {
+				int bx = b % bricksX;
+				int by = (b / bricksX) % bricksY;
+				int bz = b / bricksPerLayer;
+				int group = ((bz >> 1) * groupsY + (by >> 1)) * groupsX + (bx >> 1);
+				brickPartition[b] = (byte)(((group * 0x9E3779B1) >>> 8) % newPartitions);
+			}
+		}
+		partitions = newPartitions;
+
+		// Count everything again for the new partitions:
+		bricksAllocated = new int[partitions];
+		heapSlotsReleased = new int[partitions];
+		bricksInLayer = new int[partitions][bricksZ];
+		statusCounts = new int[partitions][256];
+		for( int b = 0; b < status.length; ++b ) {
+			byte [] s = status[b];
+			if( s == null )
+				continue;
+			int p = partitionOf( b );
+			++ bricksAllocated[p];
+			++ bricksInLayer[p][b / bricksPerLayer];
+			if( heapSlot[b] == null )
+				++ heapSlotsReleased[p];
+			for( int i = 0; i < BRICK_SIZE; ++i )
+				if( s[i] != ABSENT )
+					++ statusCounts[p][s[i] & 0xFF];
+		}
+	}
+
+	int brick( int x, int y, int z ) {
+		return ((z >> zBits) * bricksY + (y >> yBits)) * bricksX + (x >> xBits);
+	}
+
+	int offset( int x, int y, int z ) {
+		return (((z & zMask) << yBits | (y & yMask)) << xBits) | (x & xMask);
+	}
+
+	public int id( int x, int y, int z ) {
+		return (brick( x, y, z ) << BRICK_BITS) | offset( x, y, z );
+	}
+
+	public int x( int id ) {
+		int b = id >>> BRICK_BITS;
+		return ((b % bricksX) << xBits) | (id & xMask);
+	}
+
+	public int y( int id ) {
+		int b = id >>> BRICK_BITS;
+		return (((b % bricksPerLayer) / bricksX) << yBits) | ((id >> xBits) & yMask);
+	}
+
+	public int z( int id ) {
+		int b = id >>> BRICK_BITS;
+		return ((b / bricksPerLayer) << zBits) | ((id >> (xBits + yBits)) & zMask);
+	}
+
+	void allocateBrick( int b ) {
+		g[b] = new float[BRICK_SIZE];
+		predecessor[b] = new int[BRICK_SIZE];
+		status[b] = new byte[BRICK_SIZE];
+		heapSlot[b] = new int[BRICK_SIZE];
+		int p = partitionOf( b );
+		++ bricksAllocated[p];
+		++ bricksInLayer[p][b / bricksPerLayer];
+	}
+
+	public boolean anyNodesInSlice( int z ) {
+		for( int p = 0; p < partitions; ++p )
+			if( bricksInLayer[p][z >> zBits] > 0 )
+				return true;
+		return false;
+	}
+
+	public byte getStatus( int x, int y, int z ) {
+		byte [] s = status[brick( x, y, z )];
+		return (s == null) ? ABSENT : s[offset( x, y, z )];
+	}
+
+	public float getG( int x, int y, int z ) {
+		return g[brick( x, y, z )][offset( x, y, z )];
+	}
+
+	public int getPredecessor( int x, int y, int z ) {
+		return predecessor[brick( x, y, z )][offset( x, y, z )];
+	}
+
+	public void setStatus( int x, int y, int z, byte newStatus ) {
+		int b = brick( x, y, z );
+		byte [] s = status[b];
+		int [] counts = statusCounts[partitionOf( b )];
+		int i = offset( x, y, z );
+		-- counts[s[i] & 0xFF];
+		++ counts[newStatus & 0xFF];
+		s[i] = newStatus;
+		ProgressOverlay o = overlay;
+		if( o != null )
+			o.changed( x, y, z );
+	}
+
+	public void set( int x, int y, int z, float newG, int newPredecessor, byte newStatus ) {
+		int b = brick( x, y, z );
+		if( status[b] == null )
+			allocateBrick( b );
+		int i = offset( x, y, z );
+		g[b][i] = newG;
+		predecessor[b][i] = newPredecessor;
+		int [] counts = statusCounts[partitionOf( b )];
+		if( status[b][i] != ABSENT )
+			-- counts[status[b][i] & 0xFF];
+		++ counts[newStatus & 0xFF];
+		status[b][i] = newStatus;
+		ProgressOverlay o = overlay;
+		if( o != null )
+			o.changed( x, y, z );
+	}
+
+	public int count( byte withStatus ) {
+		int result = 0;
+		for( int p = 0; p < partitions; ++p )
+			result += statusCounts[p][withStatus & 0xFF];
+		return result;
+	}
+
+	/* Returns the indices of all the nodes with a particular
+	   status, in order of their index: */
+
+	public int [] nodesWithStatus( byte withStatus ) {
+		int [] result = new int[count(withStatus)];
+		int found = 0;
+		for( int b = 0; b < status.length && found < result.length; ++b ) {
+			byte [] s = status[b];
+			if( s == null )
+				continue;
+			for( int i = 0; i < BRICK_SIZE; ++i )
+				if( s[i] == withStatus )
+					result[found++] = (b << BRICK_BITS) | i;
+		}
+		return result;
+	}
+
+	public byte getStatus( int id ) {
+		byte [] s = status[id >>> BRICK_BITS];
+		return (s == null) ? ABSENT : s[id & (BRICK_SIZE - 1)];
+	}
+
+	public float getG( int id ) {
+		return g[id >>> BRICK_BITS][id & (BRICK_SIZE - 1)];
+	}
+
+	public int getPredecessor( int id ) {
+		return predecessor[id >>> BRICK_BITS][id & (BRICK_SIZE - 1)];
+	}
+
+	/* A node is in at most one of the open or closed lists for
+	   its direction of the search, so one slot per voxel is
+	   enough for the SearchNodeHeap to find it again: */
+
+	int getHeapSlot( int id ) {
+		int [] h = heapSlot[id >>> BRICK_BITS];
+		return (h == null) ? NO_HEAP_SLOT : h[id & (BRICK_SIZE - 1)];
+	}
+
+	void setHeapSlot( int id, int slot ) {
+		int b = id >>> BRICK_BITS;
+		if( heapSlot[b] == null ) {
+			heapSlot[b] = new int[BRICK_SIZE];
+			-- heapSlotsReleased[partitionOf( b )];
+		}
+		heapSlot[b][id & (BRICK_SIZE - 1)] = slot;
+	}
+
+	/* This is beyond the end of any open list, so a node whose
+	   heap slots have been released is never mistaken for one on
+	   it: */
+
+	static final int NO_HEAP_SLOT = Integer.MAX_VALUE;
+
+	/* Only the nodes on an open list need heap slots, so when a
+	   search is short of memory it can let go of those for every
+	   brick with no nodes whose status is openStatus; they're
+	   allocated again if one of its nodes is reopened.  This
+	   saves a third of the memory for the bricks that the search
+	   has finished with. */
+
+	public void releaseHeapSlots( byte openStatus ) {
+		for( int b = 0; b < status.length; ++b ) {
+			byte [] s = status[b];
+			if( s == null || heapSlot[b] == null )
+				continue;
+			boolean anyOpen = false;
+			for( int i = 0; i < BRICK_SIZE; ++i )
+				if( s[i] == openStatus ) {
+					anyOpen = true;
+					break;
+				}
+			if( ! anyOpen ) {
+				heapSlot[b] = null;
+				++ heapSlotsReleased[partitionOf( b )];
+			}
+		}
+	}
+
+	public long bytesAllocated( ) {
+		// The brick tables cost four references per brick:
+		long allocated = 0, released = 0;
+		for( int p = 0; p < partitions; ++p ) {
+			allocated += bricksAllocated[p];
+			released += heapSlotsReleased[p];
+		}
+		return allocated * BRICK_SIZE * BYTES_PER_VOXEL -
+			released * BRICK_SIZE * 4 +
+			(long)status.length * 4 * 4 +
+			((brickPartition == null) ? 0 : brickPartition.length);
+	}
+}
@@ -0,0 +1,124 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+/* A box that a search is confined to, made up of the bounding box of
+   the points that the search is between (e.g. the start and goal of
+   a TracerThread) plus a margin in voxels on every side, clipped to
+   the image.  Nothing outside the box is looked at, so a search in a
+   huge stack between two nearby points costs about the same as it
+   would in a small one: it can't flood across large dark regions
+   when the costs are flat.
+
+   If the search runs out of nodes inside the box without finding
+   its goal, the margin is doubled (see SearchThread.growSearchRegion)
+   until the box covers the whole image. */
+
+public class SearchRegion {
+
+	final int width;
+	final int height;
+	final int depth;
+
+	final int boxMinX, boxMinY, boxMinZ;
+	final int boxMaxX, boxMaxY, boxMaxZ;
+
+	int margin;
+
+	/* The limits of the region, inclusive: */
+
+	int xMin, yMin, zMin;
+	int xMax, yMax, zMax;
+
+	public SearchRegion( int width, int height, int depth,
+			     int x0, int y0, int z0,
+			     int x1, int y1, int z1,
+			     int margin ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		boxMinX = Math.min( x0, x1 );
+		boxMinY = Math.min( y0, y1 );
+		boxMinZ = Math.min( z0, z1 );
+		boxMaxX = Math.max( x0, x1 );
+		boxMaxY = Math.max( y0, y1 );
+		boxMaxZ = Math.max( z0, z1 );
+		this.margin = Math.max( margin, 0 );
+		update();
+	}
+
+	void update( ) {
+		xMin = Math.max( 0, boxMinX - margin );
+		yMin = Math.max( 0, boxMinY - margin );
+		zMin = Math.max( 0, boxMinZ - margin );
+		xMax = Math.min( width - 1, boxMaxX + margin );
+		yMax = Math.min( height - 1, boxMaxY + margin );
+		zMax = Math.min( depth - 1, boxMaxZ + margin );
+	}
+
+	public int getMargin( ) {
+		return margin;
+	}
+
+	public boolean coversImage( ) {
+		return xMin == 0 && yMin == 0 && zMin == 0 &&
+			xMax == width - 1 && yMax == height - 1 && zMax == depth - 1;
+	}
+
+	/* Doubles the margin; returns false (and does nothing) if the
+	   region already covers the image. */
+
+	public boolean grow( ) {
+		if( coversImage() )
+			return false;
+		margin = Math.max( 1, margin * 2 );
+		update();
+		return true;
+	}
+
+	public boolean contains( int x, int y, int z ) {
+		return x >= xMin && x <= xMax &&
+			y >= yMin && y <= yMax &&
+			z >= zMin && z <= zMax;
+	}
+
+	/* True if (x,y,z) is on a face of the region that isn't also
+	   a face of the image, i.e. if some of its neighbours in the
+	   image are outside the region: */
+
+	public boolean onInnerBoundary( int x, int y, int z ) {
+		return (x == xMin && xMin > 0) || (x == xMax && xMax < width - 1) ||
+			(y == yMin && yMin > 0) || (y == yMax && yMax < height - 1) ||
+			(z == zMin && zMin > 0) || (z == zMax && zMax < depth - 1);
+	}
+
+	@Override
+	public String toString( ) {
+		return "SearchRegion (" + xMin + "," + yMin + "," + zMin + ") to (" +
+			xMax + "," + yMax + "," + zMax + ") with margin " + margin;
+	}
+}
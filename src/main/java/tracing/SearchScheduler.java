@@ -0,0 +1,254 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Searches (SearchThread and its subclasses, and
+   TubularGeodesicsTracer) are Runnables, and are run by submitting
+   them here, so that there's a limit on how many run at once; any
+   more wait in a queue until one of the running searches finishes.
+   The worker threads are kept for a while after they're last used,
+   so that a run of searches doesn't create a thread for each one.
+
+   The futures returned by submit() are done when the search has
+   finished (and told its listeners.)  A search is cancelled with its
+   own requestStop() method, which also works for one that's still
+   queued: it reports that it was cancelled as soon as it starts.
+   Cancelling the future itself would stop a queued search from ever
+   telling its listeners that it has finished, so don't do that.
+
+   The workers are ordinary daemon threads, not virtual threads:
+   searches are CPU-bound, so they wouldn't gain anything from
+   them. */
+
+public class SearchScheduler {
+
+	static final long KEEP_ALIVE_SECONDS = 60;
+
+	ThreadPoolExecutor executor;
+
+	public SearchScheduler( int maximumConcurrentSearches ) {
+		this( maximumConcurrentSearches, "Search", Thread.NORM_PRIORITY );
+	}
+
+	/* The workers are named after name, and run at the given
+	   thread priority: */
+
+	public SearchScheduler( int maximumConcurrentSearches, final String name, final int priority ) {
+
+		final AtomicInteger created = new AtomicInteger();
+
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, name + " " + created.incrementAndGet() );
+				t.setDaemon( true );
+				t.setPriority( priority );
+				return t;
+			}
+		};
+
+		executor = new ThreadPoolExecutor( maximumConcurrentSearches,
+						   maximumConcurrentSearches,
+						   KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+						   new LinkedBlockingQueue<Runnable>(),
+						   factory );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/* Interactive traces and fills have a scheduler each, so that
+	   a fill, which keeps its worker while it's paused, can never
+	   keep a trace waiting, and traces never hold up fills.  Each
+	   runs as many searches at once as there are processors, and
+	   fills run at low priority.  Anything else that runs a batch
+	   of searches, such as Auto_Tracer or BatchTracer, should have
+	   a scheduler of its own. */
+
+	static SearchScheduler tracingScheduler;
+	static SearchScheduler fillingScheduler;
+
+	public static synchronized SearchScheduler getForTracing( ) {
+		if( tracingScheduler == null )
+			tracingScheduler = new SearchScheduler( Runtime.getRuntime().availableProcessors(),
+								"Trace", Thread.NORM_PRIORITY );
+		return tracingScheduler;
+	}
+
+	public static synchronized SearchScheduler getForFilling( ) {
+		if( fillingScheduler == null )
+			fillingScheduler = new SearchScheduler( Runtime.getRuntime().availableProcessors(),
+								"Fill", Thread.MIN_PRIORITY );
+		return fillingScheduler;
+	}
+
+	public void setMaximumConcurrentSearches( int maximum ) {
+		if( maximum < 1 )
+			throw new IllegalArgumentException( "At least one search must be allowed to run" );
+		if( maximum > executor.getMaximumPoolSize() ) {
+			executor.setMaximumPoolSize( maximum );
+			executor.setCorePoolSize( maximum );
+		} else {
+			executor.setCorePoolSize( maximum );
+			executor.setMaximumPoolSize( maximum );
+		}
+	}
+
+	public int getMaximumConcurrentSearches( ) {
+		return executor.getMaximumPoolSize();
+	}
+
+	/* The number of searches that are waiting for a free worker: */
+
+	public int queuedSearches( ) {
+		return executor.getQueue().size();
+	}
+
+	public Future<?> submit( SearchThread search ) {
+		return executor.submit( search );
+	}
+
+	public Future<?> submit( TubularGeodesicsTracer search ) {
+		return executor.submit( search );
+	}
+
+	/* Anything else that runs searches, e.g. one of the pairs
+	   that a BatchTracer traces: */
+
+	public Future<?> submit( Runnable task ) {
+		return executor.submit( task );
+	}
+
+	/* Work that isn't a search but goes with them, such as
+	   working out the distances from landmarks (see Landmarks) or
+	   saving a fill, is run one task at a time on a low-priority
+	   worker of its own, so that it never keeps a search waiting
+	   for a worker: */
+
+	ThreadPoolExecutor backgroundExecutor;
+
+	public synchronized Future<?> submitInBackground( Runnable task ) {
+		if( backgroundExecutor == null ) {
+			ThreadFactory factory = new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "Background search work" );
+					t.setDaemon( true );
+					t.setPriority( Thread.MIN_PRIORITY );
+					return t;
+				}
+			};
+			backgroundExecutor = new ThreadPoolExecutor( 1, 1,
+								     KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+								     new LinkedBlockingQueue<Runnable>(),
+								     factory );
+			backgroundExecutor.allowCoreThreadTimeOut( true );
+		}
+		return backgroundExecutor.submit( task );
+	}
+
+	/* A search that splits its own work between threads (the
+	   parallel bidirectional search, see SearchThread.setParallel(),
+	   and ParallelFill) gets the extra threads from here rather
+	   than starting its own.  There are at most as many of these
+	   helpers at once as there are processors, whichever scheduler
+	   the searches are running in.  They're only ever reserved
+	   with tryReserveHelpers(), which doesn't wait, and a search
+	   that can't get them does the work in its own worker instead,
+	   so no search waits for helpers that another one holds. */
+
+	static final Semaphore helperAllowance = new Semaphore( Runtime.getRuntime().availableProcessors() );
+
+	static ExecutorService helperExecutor;
+
+	/* Reserve up to wanted helpers, and return how many were
+	   reserved, which may be none; each must be given back with
+	   releaseHelpers() once the search has finished with it: */
+
+	public static int tryReserveHelpers( int wanted ) {
+		for( int n = wanted; n > 0; --n )
+			if( helperAllowance.tryAcquire( n ) )
+				return n;
+		return 0;
+	}
+
+	public static void releaseHelpers( int reserved ) {
+		helperAllowance.release( reserved );
+	}
+
+	/* Run task in one of the helpers that the caller has reserved,
+	   at the same priority as the caller's thread.  The future is
+	   done when the task has finished. */
+
+	public static Future<?> startHelper( final Runnable task ) {
+		final int priority = Thread.currentThread().getPriority();
+		Runnable atPriority = new Runnable() {
+			@Override
+			public void run( ) {
+				Thread.currentThread().setPriority( priority );
+				task.run();
+			}
+		};
+		synchronized( SearchScheduler.class ) {
+			if( helperExecutor == null ) {
+				final AtomicInteger created = new AtomicInteger();
+				ThreadFactory factory = new ThreadFactory() {
+					@Override
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread( r, "Search helper " + created.incrementAndGet() );
+						t.setDaemon( true );
+						return t;
+					}
+				};
+				// The reservations limit the number of
+				// helpers, so the pool needn't:
+				helperExecutor = new ThreadPoolExecutor( 0, Integer.MAX_VALUE,
+									 KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+									 new SynchronousQueue<Runnable>(),
+									 factory );
+			}
+			return helperExecutor.submit( atPriority );
+		}
+	}
+
+	/* Stop accepting searches; those already submitted are still
+	   run: */
+
+	public synchronized void shutdown( ) {
+		executor.shutdown();
+		if( backgroundExecutor != null )
+			backgroundExecutor.shutdown();
+	}
+}
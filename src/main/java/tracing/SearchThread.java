@@ -38,14 +38,14 @@ import java.awt.Graphics;
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
+import java.util.concurrent.Future;
 
-import stacks.ThreePanes;
+/* This is the search that explores the image using a variety of
+   strategies, for example to trace tubular structures or surfaces.
+   It's a Runnable, which is run by submitting it to a
+   SearchScheduler (or by calling run() directly.) */
 
-/* This is the thread that explores the image using a variety of
-   strategies, for example to trace tubular structures or surfaces. */
-
-public abstract class SearchThread extends Thread implements SearchInterface {
+public abstract class SearchThread implements Runnable, SearchInterface {
 
 	boolean verbose = SimpleNeuriteTracer.verbose;
 
@@ -55,6 +55,19 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	public static final byte CLOSED_FROM_GOAL  = 4;
 	public static final byte FREE              = 5; // Indicates that this node isn't in a list yet...
 
+	/* In an anytime search (see deferReopening) a node that was
+	   closed in the current pass but has since been reached by a
+	   better route is marked as INCONSISTENT, and only goes back
+	   on the open list for the next pass: */
+
+	public static final byte INCONSISTENT      = 6;
+
+	/* ... and a node that was closed in an earlier pass has this
+	   status, so that it's treated like a new node by the next
+	   pass, but is still drawn and counted as closed: */
+
+	public static final byte CLOSED_EARLIER    = 7;
+
 	/* This calculates the cost of moving to a new point in the
 	   image.  This does not take into account the distance to
 	   this new point, only the value at it.  This will be
@@ -67,28 +80,32 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	// bit value:
 
 	protected double costMovingTo( int new_x, int new_y, int new_z ) {
+		return intensityCost( new_x, new_y, new_z );
+	}
+
+	/* The costs for each value in the image, for the metric
+	   that the search uses (see IntensityCosts): */
+
+	IntensityCosts intensityCosts;
+
+	void setReciprocalCosts( boolean reciprocal ) {
+		intensityCosts = IntensityCosts.get( imageType, stackMin, stackMax, reciprocal );
+	}
 
-		double value_at_new_point = -1;
+	/* The cost of moving to (x,y,z) that only depends on the
+	   value there: */
+
+	final double intensityCost( int x, int y, int z ) {
 		switch(imageType) {
 		case ImagePlus.GRAY8:
 		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y*width+new_x] & 0xFF;
-			break;
+			return intensityCosts.cost( slices_data_b[z][y*width+x] );
 		case ImagePlus.GRAY16:
-			value_at_new_point = slices_data_s[new_z][new_y*width+new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
+			return intensityCosts.cost( slices_data_s[z][y*width+x] );
 		case ImagePlus.GRAY32:
-			value_at_new_point = slices_data_f[new_z][new_y*width+new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
+			return intensityCosts.cost( slices_data_f[z][y*width+x] );
 		}
-
-		if( value_at_new_point == 0 )
-			return 2.0;
-		else
-			return 1.0 / value_at_new_point;
-
+		return intensityCosts.costForScaled( -1 );
 	}
 
 	/* Use this for doing special progress updates, beyond what
@@ -96,14 +113,26 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	protected void reportPointsInSearch( ) {
 		for( SearchProgressCallback progress : progressListeners )
-			progress.pointsInSearch(this, open_from_start.size() + (bidirectional ? open_from_goal.size() : 0), closed_from_start.size() + (bidirectional ? closed_from_goal.size() : 0));
+			progress.pointsInSearch(this, openNodes(), closedNodes());
 	}
 
-	public int pointsConsideredInSearch( ) {
+	public int openNodes( ) {
 		return open_from_start.size() +
-			(bidirectional ? open_from_goal.size() : 0) +
-			closed_from_start.size() +
-			(bidirectional ? closed_from_goal.size() : 0);
+			(bidirectional ? open_from_goal.size() : 0);
+	}
+
+	/* The closed set is just the nodes whose status is closed
+	   in nodes_as_image_from_start or nodes_as_image_from_goal: */
+
+	public int closedNodes( ) {
+		return nodes_as_image_from_start.count( CLOSED_FROM_START ) +
+			nodes_as_image_from_start.count( CLOSED_EARLIER ) +
+			nodes_as_image_from_start.count( INCONSISTENT ) +
+			(bidirectional ? nodes_as_image_from_goal.count( CLOSED_FROM_GOAL ) : 0);
+	}
+
+	public int pointsConsideredInSearch( ) {
+		return openNodes() + closedNodes();
 	}
 
 	/* This is a factory method for creating specialized search
@@ -168,15 +197,43 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	int height;
 	int depth;
 
+	/* The offsets to the neighbours of a point and the length of
+	   each of those steps are worked out once for each search
+	   (see Neighbourhood) rather than for every point expanded: */
+
+	Neighbourhood neighbourhood;
+
 	/* The search may only be bidirectional if definedGoal is true */
 
 	boolean bidirectional;
 
+	/* If this is true then the two directions of a bidirectional
+	   search are expanded at the same time in two threads, rather
+	   than taking turns in this one: */
+
+	boolean parallel = false;
+
+	/* This must be called before the search is run, and has
+	   no effect unless the search is bidirectional. */
+
+	public void setParallel( boolean parallel ) {
+		this.parallel = parallel;
+	}
+
 	/* If there is no definedGoal then the search is just
 	   Dijkstra's algorithm (h = 0 in the A* search algorithm. */
 
 	boolean definedGoal;
 
+	/* If this is true then a closed node that is reached by a
+	   better route is not put back on the open list straight
+	   away, but marked as INCONSISTENT, so that each node is
+	   expanded at most once in each pass of an anytime search.
+	   Nodes from earlier passes have the status CLOSED_EARLIER,
+	   and are treated like new ones. */
+
+	boolean deferReopening = false;
+
 	boolean startPaused;
 
 	int timeoutSeconds;
@@ -215,9 +272,8 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		synchronized (this) {
 			if (verbose) System.out.println("... entered synchronized");
 			if( threadStatus == PAUSED ) {
-				if (verbose) System.out.println("was paused so interrupting");
-				this.interrupt();
-				if (verbose) System.out.println("done interrupting");
+				if (verbose) System.out.println("was paused so waking it up");
+				notifyAll();
 			}
 			threadStatus = STOPPING;
 			reportThreadStatus();
@@ -229,7 +285,93 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	/** Override this method if you want to find out when a point
 	 * was first discovered:
 	 */
-	protected void addingNode( SearchNode n ) { }
+	protected void addingNode( int x, int y, int z ) { }
+
+	/* Wait until the search is unpaused or stopped.  (The search
+	   may be running in a SearchScheduler's worker rather than in
+	   this thread, so this is the way to wake it, not
+	   interrupt().)  Being interrupted, e.g. because the worker is
+	   being shut down, stops the search. */
+
+	synchronized void waitWhilePaused( ) {
+		while( threadStatus == PAUSED ) {
+			try {
+				wait();
+			} catch( InterruptedException e ) {
+				threadStatus = STOPPING;
+			}
+		}
+	}
+
+	/* Other threads can look at the state of a search (e.g. to
+	   make a Fill from it) between calls to beginSnapshot() and
+	   endSnapshot(), which wait until the search isn't in the
+	   middle of expanding a node and then stop it from starting
+	   another.  A sequential search checks for this before each
+	   node; a parallel one only stops changing when it finishes,
+	   so a snapshot of one waits until then.  This is much
+	   cheaper than taking a lock for every node. */
+
+	private volatile int snapshotsWaiting;
+
+	/* Whether the search might be changing the nodes; this can
+	   only be changed in a block synchronized on this object: */
+
+	private boolean searching;
+
+	private Thread searchingThread;
+
+	protected void beginSnapshot( ) {
+		boolean interrupted = false;
+		synchronized (this) {
+			++ snapshotsWaiting;
+			// Listeners that the search calls may take a
+			// snapshot, and the search can't be changing
+			// anything while they're running:
+			if( Thread.currentThread() != searchingThread ) {
+				while( searching ) {
+					try {
+						wait();
+					} catch( InterruptedException e ) {
+						interrupted = true;
+					}
+				}
+			}
+		}
+		if( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	protected synchronized void endSnapshot( ) {
+		-- snapshotsWaiting;
+		notifyAll();
+	}
+
+	/* Called by the search between nodes, when it's paused or
+	   something wants a snapshot: */
+
+	boolean snapshotWanted( ) {
+		return snapshotsWaiting > 0;
+	}
+
+	synchronized void waitBetweenNodes( ) {
+		searching = false;
+		notifyAll();
+		while( snapshotsWaiting > 0 || threadStatus == PAUSED ) {
+			try {
+				wait();
+			} catch( InterruptedException e ) {
+				threadStatus = STOPPING;
+			}
+		}
+		searching = true;
+	}
+
+	synchronized void stoppedSearching( ) {
+		searching = false;
+		searchingThread = null;
+		notifyAll();
+	}
 
 	public void reportThreadStatus( ) {
 		for( SearchProgressCallback progress : progressListeners )
@@ -237,6 +379,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	}
 
 	public void reportFinished( boolean success ) {
+		stoppedSearching();
 		for( SearchProgressCallback progress : progressListeners )
 			progress.finished( this, success );
 	}
@@ -250,10 +393,9 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			if (verbose) System.out.println("... entered synchronized");
 			switch( threadStatus) {
 			case PAUSED:
-				if (verbose) System.out.println("paused, going to switch to running - interrupting first");
-				this.interrupt();
-				if (verbose) System.out.println("finished interrupting");
+				if (verbose) System.out.println("paused, going to switch to running - waking it up");
 				threadStatus = RUNNING;
+				notifyAll();
 				break;
 			case RUNNING:
 				if (verbose) System.out.println("running, going to switch to paused");
@@ -320,6 +462,8 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			}
 		}
 
+		setReciprocalCosts( true );
+
 		Calibration calibration = imagePlus.getCalibration();
 
 		x_spacing = (float)calibration.pixelWidth;
@@ -340,40 +484,304 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		this.timeoutSeconds = timeoutSeconds;
 		this.reportEveryMilliseconds = reportEveryMilliseconds;
 
-		closed_from_start = new PriorityQueue<SearchNode>();
-		open_from_start = new PriorityQueue<SearchNode>();
-		if( bidirectional ) {
-			closed_from_goal = new PriorityQueue<SearchNode>();
-			open_from_goal = new PriorityQueue<SearchNode>();
-		}
+		nodes_as_image_from_start = new SearchNodeStore( width, height, depth );
+		if( bidirectional )
+			nodes_as_image_from_goal = new SearchNodeStore( width, height, depth );
+
+		/* Without a heuristic the priority of a node is just g,
+		   so the faster SearchNodeRadixHeap can be used: */
 
-		nodes_as_image_from_start = new SearchNode[depth][];
+		if( definedGoal )
+			open_from_start = new SearchNodeHeap( nodes_as_image_from_start );
+		else
+			open_from_start = new SearchNodeRadixHeap( nodes_as_image_from_start );
 		if( bidirectional )
-			nodes_as_image_from_goal = new SearchNode[depth][];
+			open_from_goal = new SearchNodeHeap( nodes_as_image_from_goal );
 
 		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
+		setConnectivity( 26 );
+
 		progressListeners = new ArrayList< SearchProgressCallback >();
 	}
 
-	PriorityQueue<SearchNode> closed_from_start;
-	PriorityQueue<SearchNode> open_from_start;
+	/* Consider only the 6 face-connected or 18 face- and
+	   edge-connected neighbours of each point instead of all 26.
+	   This must be called before the search is run. */
+
+	public void setConnectivity( int connectivity ) {
+		neighbourhood = new Neighbourhood( connectivity,
+						   width, height, depth,
+						   x_spacing, y_spacing, z_spacing );
+		neighbourhood.restrictTo( region );
+	}
+
+	/* If this is set then only the voxels in the region are
+	   searched, until the search runs out of nodes in it: */
+
+	SearchRegion region;
+
+	/* This must be called before the search is run, and the
+	   nodes that the search starts from must be in the region. */
+
+	public void setSearchRegion( SearchRegion region ) {
+		this.region = region;
+		neighbourhood.restrictTo( region );
+	}
+
+	public SearchRegion getSearchRegion( ) {
+		return region;
+	}
+
+	/* Unlike setSearchRegion(), this confines a search that's
+	   already going on, from the search's own thread between
+	   nodes (e.g. in reduceMemory().)  The nodes already on the
+	   open lists stay there, even those outside the region, but
+	   only their neighbours in the region are added.  If the
+	   search then runs out of open nodes, growSearchRegion()
+	   reopens the closed nodes outside the region and on its
+	   boundary, so none of the neighbours that were skipped are
+	   lost. */
+
+	void confineSearchTo( SearchRegion region ) {
+		this.region = region;
+		neighbourhood.restrictTo( region );
+	}
+
+	/* If this is set then only the voxels in the corridor are
+	   searched, until the search runs out of nodes in it: */
+
+	SearchCorridor corridor;
+
+	/* This must be called before the search is run, and the
+	   nodes that the search starts from must be in the corridor. */
+
+	public void setSearchCorridor( SearchCorridor corridor ) {
+		this.corridor = corridor;
+	}
+
+	/* Called when the open lists are empty: if the search was
+	   confined to a corridor, carry on without it, putting all the
+	   closed nodes back on the open lists, since any of them might
+	   have had neighbours outside the corridor.  Otherwise, if the
+	   search was confined to a region that doesn't cover the whole
+	   image, double its margin and put the closed nodes on its old
+	   boundary (whose neighbours outside the region were never
+	   looked at) back on the open lists, along with any that were
+	   outside it, such as a goal beyond the region.  Either way the
+	   search carries on from where it was, rather than starting
+	   again.  Returns true if there are any open nodes again. */
+
+	boolean growSearchRegion( ) {
+		if( corridor != null ) {
+			if (verbose) System.out.println( "Searching outside the corridor" );
+			corridor = null;
+			reopenBoundary( null, true );
+			if( bidirectional )
+				reopenBoundary( null, false );
+			if( open_from_start.size() > 0 || (bidirectional && open_from_goal.size() > 0) )
+				return true;
+		}
+		while( region != null && region.grow() ) {
+			if (verbose) System.out.println( "Growing the search to " + region );
+			// The neighbourhood still has the old limits:
+			SearchRegion old = new SearchRegion( width, height, depth,
+							     neighbourhood.xMin, neighbourhood.yMin, neighbourhood.zMin,
+							     neighbourhood.xMax, neighbourhood.yMax, neighbourhood.zMax,
+							     0 );
+			neighbourhood.restrictTo( region );
+			reopenBoundary( old, true );
+			if( bidirectional )
+				reopenBoundary( old, false );
+			if( open_from_start.size() > 0 || (bidirectional && open_from_goal.size() > 0) )
+				return true;
+		}
+		return false;
+	}
+
+	/* If old is null then all the closed nodes are reopened: */
+
+	void reopenBoundary( SearchRegion old, boolean fromStart ) {
+		SearchNodeStore nodes = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+		SearchNodeQueue open_queue = fromStart ? open_from_start : open_from_goal;
+		byte closedStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
+		byte openStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+		// Nodes expanded in earlier passes of an anytime
+		// search count as closed here:
+		int [][] closedLists = { nodes.nodesWithStatus( closedStatus ),
+					 nodes.nodesWithStatus( CLOSED_EARLIER ) };
+		for( int [] closed : closedLists )
+			for( int i = 0; i < closed.length; ++i ) {
+				int id = closed[i];
+				int x = nodes.x( id ), y = nodes.y( id ), z = nodes.z( id );
+				if( old != null && old.contains( x, y, z ) && ! old.onInnerBoundary( x, y, z ) )
+					continue;
+				float g = nodes.getG( x, y, z );
+				nodes.setStatus( x, y, z, openStatus );
+				open_queue.add( id, g + estimateCostToGoal( x, y, z, fromStart ) );
+			}
+	}
+
+	/* The open lists hold the indices of nodes (see
+	   SearchNodeStore), the state of each node is kept in
+	   nodes_as_image_from_start and nodes_as_image_from_goal.
+	   There's no closed list as such, since the closed nodes are
+	   never needed in priority order: their status in the store
+	   is enough. */
+
+	SearchNodeQueue open_from_start;
 
 	// The next two are null if the search is not bidirectional
-	PriorityQueue<SearchNode> closed_from_goal;
-	PriorityQueue<SearchNode> open_from_goal;
+	SearchNodeQueue open_from_goal;
+
+	/* Choose between SearchNodeRadixHeap and SearchNodeHeap for
+	   the open list of a search without a defined goal (with a
+	   goal, only SearchNodeHeap will do.)  Any nodes that have
+	   already been added are moved to the new open list. */
+
+	public void setRadixHeap( boolean useRadixHeap ) {
+		if( definedGoal && useRadixHeap )
+			throw new IllegalArgumentException( "A radix heap can only be used for a search without a goal" );
+		if( useRadixHeap == (open_from_start instanceof SearchNodeRadixHeap) )
+			return;
+		SearchNodeQueue old = open_from_start;
+		if( useRadixHeap )
+			open_from_start = new SearchNodeRadixHeap( nodes_as_image_from_start );
+		else
+			open_from_start = new SearchNodeHeap( nodes_as_image_from_start );
+		for( int i = 0; i < old.size(); ++i ) {
+			int id = old.get( i );
+			int x = nodes_as_image_from_start.x( id );
+			int y = nodes_as_image_from_start.y( id );
+			int z = nodes_as_image_from_start.z( id );
+			open_from_start.add( id, nodes_as_image_from_start.getG( x, y, z ) +
+					     estimateCostToGoal( x, y, z, true ) );
+		}
+	}
 
-	SearchNode [][] nodes_as_image_from_start;
-	SearchNode [][] nodes_as_image_from_goal;
+	SearchNodeStore nodes_as_image_from_start;
+	SearchNodeStore nodes_as_image_from_goal;
 
 	public void printStatus() {
 		System.out.println("... with " + open_from_start.size() + " open nodes at the start" );
-		System.out.println(" ... and " + closed_from_start.size() + " closed nodes at the start" );
+		System.out.println(" ... and " + nodes_as_image_from_start.count( CLOSED_FROM_START ) + " closed nodes at the start" );
 		if( bidirectional ) {
 			System.out.println("... with " + open_from_goal.size() + " open nodes at the goal" );
-			System.out.println(" ... and " + closed_from_goal.size() + " closed nodes at the goal" );
+			System.out.println(" ... and " + nodes_as_image_from_goal.count( CLOSED_FROM_GOAL ) + " closed nodes at the goal" );
 		} else
 			System.out.println(" ... unidirectional search");
+		System.out.println(" ... using " + bytesPerExploredVoxel() + " bytes per explored voxel (" +
+				   SearchNodeStore.SEARCH_NODE_BYTES_PER_VOXEL + " with SearchNode objects)" );
+	}
+
+	/* If this is more than zero then the search tries to keep
+	   the memory that it allocates for its nodes and open lists
+	   (see bytesAllocated()) within this many bytes.  Once it has
+	   used REDUCE_MEMORY_AT of the budget it tries to use less
+	   (see reduceMemory()), and if it reaches the budget anyway
+	   it stops with the exit reason OVER_MEMORY_BUDGET, keeping
+	   what it has found so far (see stoppedOverBudget()), rather
+	   than running until there's an OutOfMemoryError. */
+
+	long memoryBudget = 0;
+
+	static final double REDUCE_MEMORY_AT = 0.75;
+
+	/* Once memory has been reduced, it's only tried again after
+	   the search has used this much more of its budget: */
+
+	static final double REDUCE_MEMORY_EVERY = 0.125;
+
+	long reduceMemoryAt;
+
+	/* This must be called before the search is run: */
+
+	public void setMemoryBudget( long bytes ) {
+		memoryBudget = bytes;
+		reduceMemoryAt = (long)( REDUCE_MEMORY_AT * bytes );
+	}
+
+	public long getMemoryBudget( ) {
+		return memoryBudget;
+	}
+
+	/* Returns true if the search has reached its memory budget
+	   and should stop: */
+
+	boolean overMemoryBudget( ) {
+		if( memoryBudget <= 0 )
+			return false;
+		long used = bytesAllocated();
+		if( used >= reduceMemoryAt ) {
+			reduceMemory();
+			used = bytesAllocated();
+			if (verbose) System.out.println( "Reduced the memory used by the search to " + used + " bytes" );
+			reduceMemoryAt = used + (long)( REDUCE_MEMORY_EVERY * memoryBudget );
+		}
+		return used >= memoryBudget;
+	}
+
+	/* Called when the search is getting close to its memory
+	   budget.  This lets go of the heap slots of the nodes that
+	   can't be on an open list any more; subclasses may also
+	   confine the search, e.g. to a region around a goal. */
+
+	protected void reduceMemory( ) {
+		nodes_as_image_from_start.releaseHeapSlots( OPEN_FROM_START );
+		if( bidirectional )
+			nodes_as_image_from_goal.releaseHeapSlots( OPEN_FROM_GOAL );
+	}
+
+	/* Called when the search stops because it has reached its
+	   memory budget, before the listeners are told, so that a
+	   subclass can make what it can of the nodes found so far: */
+
+	protected void stoppedOverBudget( ) {
+	}
+
+	void stopOverBudget( ) {
+		if (verbose) System.out.println( "Stopping at the memory budget of " + memoryBudget + " bytes" );
+		stoppedOverBudget();
+		setExitReason(OVER_MEMORY_BUDGET);
+		reportFinished( false );
+	}
+
+	public long bytesAllocated( ) {
+		long result = nodes_as_image_from_start.bytesAllocated() +
+			open_from_start.bytesAllocated();
+		if( bidirectional )
+			result += nodes_as_image_from_goal.bytesAllocated() +
+				open_from_goal.bytesAllocated();
+		return result;
+	}
+
+	/* This can be compared with
+	   SearchNodeStore.SEARCH_NODE_BYTES_PER_VOXEL, the cost of
+	   the old SearchNode-based implementation: */
+
+	public double bytesPerExploredVoxel( ) {
+		int points = pointsConsideredInSearch();
+		if( points == 0 )
+			return 0;
+		return bytesAllocated() / (double)points;
+	}
+
+	/* Build a Path by following the predecessors back from
+	   (x,y,z).  If reversed is false then the path starts from
+	   the origin of the search and ends at (x,y,z), otherwise it
+	   starts at (x,y,z): */
+
+	Path pathFrom( SearchNodeStore nodes, int x, int y, int z, boolean reversed ) {
+		Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units);
+		int id = nodes.id( x, y, z );
+		do {
+			x = nodes.x( id );
+			y = nodes.y( id );
+			z = nodes.z( id );
+			result.addPointDouble( x * x_spacing, y * y_spacing, z * z_spacing );
+			id = nodes.getPredecessor( x, y, z );
+		} while( id != SearchNodeStore.NONE );
+		return reversed ? result : result.reversed();
 	}
 
 	@Override
@@ -386,28 +794,39 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			if (verbose) System.out.println("... was asked to start it in the " + (startPaused ? "paused" : "unpaused") + " state.");
 
 			synchronized (this) {
-				threadStatus = startPaused ? PAUSED : RUNNING;
+				// It may have been stopped before it started,
+				// e.g. while queued in a SearchScheduler:
+				if( threadStatus != STOPPING )
+					threadStatus = startPaused ? PAUSED : RUNNING;
 				reportThreadStatus();
+				searchingThread = Thread.currentThread();
+				searching = true;
 			}
 
+			// Let any snapshot that was already being
+			// taken finish before changing anything:
+			if( snapshotsWaiting > 0 )
+				waitBetweenNodes();
+
 			long started_at = lastReportMilliseconds = System.currentTimeMillis();
 
 			int loops_at_last_report = 0;
 			int loops = 0;
 
+			if( searchWithThreads( started_at ) )
+				return;
+
 			/*
-			  We maintain the list of nodes in the search in a
-			  couple of different data structures here, which is
-			  bad for memory usage but good for the speed of the
-			  search.
-
-			  As well as keeping the nodes in priority lists, we
-			  keep them in a set of arrays that are indexed in the
-			  same way as voxels in the image.
+			  We keep the indices of nodes in the priority lists,
+			  and the state of each node (g, predecessor and
+			  status) in arrays that are indexed in the same way
+			  as voxels in the image, so there's no object
+			  allocated for each node.
 			*/
 
 			while( (open_from_start.size() > 0) ||
-			       (bidirectional && (open_from_goal.size() > 0)) ) {
+			       (bidirectional && (open_from_goal.size() > 0)) ||
+			       growSearchRegion() ) {
 
 				if( threadStatus == STOPPING ) {
 					reportThreadStatus();
@@ -415,11 +834,12 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 					reportFinished(false);
 					return;
 				} else if( threadStatus == PAUSED ) {
-					try {
-						reportThreadStatus();
-						Thread.sleep(4000);
-					} catch( InterruptedException e ) {
-					}
+					reportThreadStatus();
+					waitBetweenNodes();
+					continue;
+				} else if( snapshotsWaiting > 0 ) {
+					waitBetweenNodes();
+					continue;
 				}
 
 				// We only check every thousandth loop for
@@ -438,6 +858,11 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 						return;
 					}
 
+					if( overMemoryBudget() ) {
+						stopOverBudget();
+						return;
+					}
+
 					long since_last_report = currentMilliseconds - lastReportMilliseconds;
 
 					if( (reportEveryMilliseconds > 0) && (since_last_report > reportEveryMilliseconds ) ) {
@@ -454,155 +879,107 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 					}
 				}
 
+				// Expand the smaller of the two open lists,
+				// unless it's empty:
+
 				boolean fromStart = true;
 				if( bidirectional )
-					fromStart = open_from_goal.size() > open_from_start.size();
+					fromStart = open_from_goal.size() == 0 ||
+						( open_from_start.size() > 0 &&
+						  open_from_goal.size() > open_from_start.size() );
 
-				PriorityQueue<SearchNode> open_queue = fromStart ? open_from_start : open_from_goal;
-				PriorityQueue<SearchNode> closed_queue = fromStart ? closed_from_start : closed_from_goal;
+				SearchNodeQueue open_queue = fromStart ? open_from_start : open_from_goal;
 
-				SearchNode [][] nodes_as_image_this_search = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
-				SearchNode [][] nodes_as_image_other_search = fromStart ? nodes_as_image_from_goal : nodes_as_image_from_start;
+				SearchNodeStore nodes_as_image_this_search = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+				SearchNodeStore nodes_as_image_other_search = fromStart ? nodes_as_image_from_goal : nodes_as_image_from_start;
 
-				SearchNode p = null;
+				byte openStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+				byte closedStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
 
 				if( open_queue.size() == 0 )
 					continue;
 
-				// p = get_highest_priority( open_from_start, open_from_start_hash );
-				p = open_queue.poll();
-				if( p == null )
-					continue;
+				int p = open_queue.poll();
+
+				int p_x = nodes_as_image_this_search.x( p );
+				int p_y = nodes_as_image_this_search.y( p );
+				int p_z = nodes_as_image_this_search.z( p );
+				float p_g = nodes_as_image_this_search.getG( p_x, p_y, p_z );
 
 				// Has the route from the start found the goal?
-				if( definedGoal && atGoal( p.x, p.y, p.z, fromStart ) ) {
+				if( definedGoal && atGoal( p_x, p_y, p_z, fromStart ) ) {
 					if (verbose) System.out.println( "Found the goal!" );
-					if( fromStart )
-						foundGoal( p.asPath( x_spacing, y_spacing, z_spacing, spacing_units ) );
-					else
-						foundGoal( p.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units ) );
+					foundGoal( pathFrom( nodes_as_image_this_search, p_x, p_y, p_z, ! fromStart ) );
+					if( refineAfterGoal( p ) )
+						continue;
 					setExitReason(SUCCESS);
 					reportFinished( true );
 					return;
 				}
 
-				p.searchStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
-				closed_queue.add( p );
-				nodes_as_image_this_search[p.z][p.y*width+p.x] = p;
+				nodes_as_image_this_search.setStatus( p_x, p_y, p_z, closedStatus );
 
-				// Now look at the neighbours of p.  We're going to consider
-				// the 26 neighbours in 3D.
+				// Now look at the neighbours of p.  Unless the
+				// connectivity has been changed, we're going to
+				// consider the 26 neighbours in 3D.
 
-				for( int zdiff = -1; zdiff <= 1; zdiff++ ) {
+				boolean interior = neighbourhood.isInterior( p_x, p_y, p_z );
 
-					int new_z = p.z + zdiff;
-					if( new_z < 0 || new_z >= depth )
-						continue;
-
-					if( nodes_as_image_this_search[new_z] == null ) {
-						nodes_as_image_this_search[new_z] = new SearchNode[width*height];
-					}
+				for( int n = 0; n < neighbourhood.size; ++n ) {
 
-					for( int xdiff = -1; xdiff <= 1; xdiff++ )
-						for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
+					int new_x = p_x + neighbourhood.dx[n];
+					int new_y = p_y + neighbourhood.dy[n];
+					int new_z = p_z + neighbourhood.dz[n];
 
-							if( (xdiff == 0) && (ydiff == 0) && (zdiff == 0) )
-								continue;
+					if( ! interior && ! neighbourhood.inBounds( new_x, new_y, new_z ) )
+						continue;
 
-							int new_x = p.x + xdiff;
-							int new_y = p.y + ydiff;
+					if( corridor != null && ! corridor.contains( new_x, new_y, new_z ) )
+						continue;
 
-							if( new_x < 0 || new_x >= width )
-								continue;
+					float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
 
-							if( new_y < 0 || new_y >= height )
-								continue;
+					double cost_moving_to_new_point = costMovingTo( new_x, new_y, new_z );
+					if( cost_moving_to_new_point < minimum_cost_per_unit_distance ) {
+						cost_moving_to_new_point = minimum_cost_per_unit_distance;
+					}
 
-							double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
-							double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
-							double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+					float g_for_new_point = (float) ( p_g + neighbourhood.step[n] * cost_moving_to_new_point );
 
-							float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
+					float f_for_new_point = h_for_new_point + g_for_new_point;
 
-							double cost_moving_to_new_point = costMovingTo( new_x, new_y, new_z );
-							if( cost_moving_to_new_point < minimum_cost_per_unit_distance ) {
-								cost_moving_to_new_point = minimum_cost_per_unit_distance;
-							}
+					int new_id = nodes_as_image_this_search.id( new_x, new_y, new_z );
 
-							float g_for_new_point = (float) ( p.g + Math.sqrt( xdiffsq + ydiffsq + zdiffsq ) * cost_moving_to_new_point );
+					relax( nodes_as_image_this_search, open_queue, p,
+					       new_x, new_y, new_z, new_id,
+					       g_for_new_point, f_for_new_point,
+					       openStatus, closedStatus );
 
-							float f_for_new_point = h_for_new_point + g_for_new_point;
+					if( bidirectional ) {
 
-							SearchNode newNode = createNewNode( new_x, new_y, new_z,
-											    g_for_new_point, h_for_new_point,
-											    p, FREE );
+						byte statusInOtherSearch = nodes_as_image_other_search.getStatus( new_x, new_y, new_z );
 
-							// Is this newNode really new?
-							SearchNode alreadyThereInThisSearch = nodes_as_image_this_search[new_z][new_y*width+new_x];
+						// If this is true then we've finished.
 
-							if( alreadyThereInThisSearch == null ) {
+						if( statusInOtherSearch == CLOSED_FROM_START ||
+						    statusInOtherSearch == CLOSED_FROM_GOAL ) {
 
-								newNode.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-								open_queue.add( newNode );
-								addingNode( newNode );
-								nodes_as_image_this_search[new_z][new_y*width+new_x] = newNode;
+							Path result = null;
 
+							if( fromStart ) {
+								result = pathFrom( nodes_as_image_this_search, p_x, p_y, p_z, false );
+								result.add( pathFrom( nodes_as_image_other_search, new_x, new_y, new_z, true ) );
 							} else {
-
-								// The other alternative is that this node is already in one
-								// of the lists working from the start but has a better way
-								// of getting to that point.
-
-								if( alreadyThereInThisSearch.f > f_for_new_point ) {
-
-									if( alreadyThereInThisSearch.searchStatus == (fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL) ) {
-
-										open_queue.remove( alreadyThereInThisSearch );
-										alreadyThereInThisSearch.setFrom( newNode );
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-										open_queue.add( alreadyThereInThisSearch );
-
-									} else if( alreadyThereInThisSearch.searchStatus == (fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL) ) {
-
-										closed_queue.remove( alreadyThereInThisSearch );
-										alreadyThereInThisSearch.setFrom( newNode );
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-										open_queue.add( alreadyThereInThisSearch );
-									}
-								}
-							}
-
-							if( bidirectional && nodes_as_image_other_search[new_z] != null ) {
-
-								SearchNode alreadyThereInOtherSearch = nodes_as_image_other_search[new_z][new_y*width+new_x];
-								if( alreadyThereInOtherSearch != null ) {
-
-									Path result = null;
-
-									// If either of the next two if conditions are true
-									// then we've finished.
-
-									if( alreadyThereInOtherSearch != null &&
-									    (alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_START ||
-									     alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_GOAL) ) {
-
-										if( fromStart ) {
-											result = p.asPath( x_spacing, y_spacing, z_spacing, spacing_units );
-											Path fromGoalReversed = alreadyThereInOtherSearch.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units );
-											result.add( fromGoalReversed );
-										} else {
-											result = alreadyThereInOtherSearch.asPath( x_spacing, y_spacing, z_spacing, spacing_units );
-											result.add( p.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units ) );
-										}
-										if (verbose) System.out.println("Searches met!");
-										foundGoal( result );
-										setExitReason(SUCCESS);
-										reportFinished( true );
-										return;
-									}
-								}
+								result = pathFrom( nodes_as_image_other_search, new_x, new_y, new_z, false );
+								result.add( pathFrom( nodes_as_image_this_search, p_x, p_y, p_z, true ) );
 							}
+							if (verbose) System.out.println("Searches met!");
+							foundGoal( result );
+							setExitReason(SUCCESS);
+							reportFinished( true );
+							return;
 						}
+					}
 				}
 				++ loops;
 			}
@@ -637,11 +1014,374 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				new TextWindow("Exception in SearchThread", s, w, h);
 			else
 				IJ.log(s);
+		} finally {
+			stoppedSearching();
 		}
 		return;
 
 	}
 
+	/* A search that uses more than one thread does the whole
+	   search in this method, including telling the listeners how
+	   it finished, and returns true; otherwise it returns false
+	   and the search is done in this thread by run().  The
+	   parallel bidirectional search is only correct with a
+	   consistent heuristic (see MeetingTable), so otherwise it's
+	   done sequentially. */
+
+	protected boolean searchWithThreads( long started_at ) throws Throwable {
+		if( bidirectional && parallel && heuristicIsConsistent() ) {
+			// If no helper is free, the search is done
+			// sequentially after all:
+			if( SearchScheduler.tryReserveHelpers( 1 ) == 1 ) {
+				try {
+					runInParallel( started_at );
+				} finally {
+					SearchScheduler.releaseHelpers( 1 );
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* The nodes reached by the two threads of a parallel
+	   bidirectional search are published here: */
+
+	MeetingTable meeting;
+
+	/* The search from the start is done in this thread and the
+	   search from the goal in a helper (see
+	   SearchScheduler.startHelper()).  Both stop when
+	   the smallest f in either open list is at least mu, the
+	   length of the best path found so far through a node that
+	   both directions have reached.  The heuristic never
+	   overestimates the cost to the end that each direction is
+	   heading for, so at that point no path through a node that
+	   is still open can be shorter than mu, and the path through
+	   the meeting node is the shortest one.  For the same reason
+	   a node whose f is at least mu is never added.
+
+	   If the directions haven't met when one of them runs out of
+	   open nodes, the search region or corridor is grown or
+	   dropped as in run(), once both threads have stopped, and
+	   the two threads carry on from there. */
+
+	void runInParallel( final long started_at ) throws Throwable {
+
+		meeting = new MeetingTable( nodes_as_image_from_start.g.length );
+		publishOpenNodes( true );
+		publishOpenNodes( false );
+
+		while( true ) {
+
+			boolean timedOut = ! expandInParallel( started_at );
+
+			if( threadStatus == STOPPING ) {
+				reportThreadStatus();
+				setExitReason(CANCELLED);
+				reportFinished(false);
+				return;
+			}
+
+			if( timedOut ) {
+				if (verbose) System.out.println("Timed out...");
+				setExitReason(TIMED_OUT);
+				reportFinished( false );
+				return;
+			}
+
+			if( overBudget ) {
+				stopOverBudget();
+				return;
+			}
+
+			if( meeting.getBestNode() != SearchNodeStore.NONE )
+				break;
+
+			/* The nodes that are reopened have already been
+			   published, so the MeetingTable is still up to
+			   date: */
+
+			if( ! growSearchRegion() ) {
+				if (verbose) System.out.println( "FAILED to find a route." );
+				setExitReason(POINTS_EXHAUSTED);
+				reportFinished( false );
+				return;
+			}
+
+			meeting.restart();
+		}
+
+		int m = meeting.getBestNode();
+		if (verbose) System.out.println("Searches met with length " + meeting.getBestLength() );
+		foundGoal( pathThroughMeeting( m ) );
+		setExitReason(SUCCESS);
+		reportFinished( true );
+	}
+
+	/* Expand the nodes from both ends at once until the search
+	   from either end stops (see searchInParallel), and wait for
+	   the helper to finish.  The caller must have reserved the
+	   helper.  Returns false if the search timed out. */
+
+	boolean expandInParallel( final long started_at ) throws Throwable {
+
+		final Throwable [] helperFailure = new Throwable[1];
+
+		Future<?> helper = SearchScheduler.startHelper( new Runnable() {
+			@Override
+			public void run( ) {
+				try {
+					searchInParallel( false, started_at );
+				} catch( Throwable t ) {
+					helperFailure[0] = t;
+				} finally {
+					meeting.finish();
+				}
+			}
+		} );
+
+		boolean timedOut = false;
+		try {
+			timedOut = ! searchInParallel( true, started_at );
+		} finally {
+			meeting.finish();
+			while( true ) {
+				try {
+					helper.get();
+					break;
+				} catch( InterruptedException e ) {
+					// The helper stops soon after
+					// meeting.finish(), so keep waiting
+				}
+			}
+		}
+
+		if( helperFailure[0] != null )
+			throw helperFailure[0];
+
+		return ! timedOut;
+	}
+
+	/* The path from the start to the goal through the node m,
+	   which both directions of a parallel search have reached: */
+
+	Path pathThroughMeeting( int m ) {
+
+		int m_x = nodes_as_image_from_start.x( m );
+		int m_y = nodes_as_image_from_start.y( m );
+		int m_z = nodes_as_image_from_start.z( m );
+
+		Path result = pathFrom( nodes_as_image_from_start, m_x, m_y, m_z, false );
+		int afterMeeting = nodes_as_image_from_goal.getPredecessor( m_x, m_y, m_z );
+		if( afterMeeting != SearchNodeStore.NONE )
+			result.add( pathFrom( nodes_as_image_from_goal,
+					      nodes_as_image_from_goal.x( afterMeeting ),
+					      nodes_as_image_from_goal.y( afterMeeting ),
+					      nodes_as_image_from_goal.z( afterMeeting ),
+					      true ) );
+		return result;
+	}
+
+	/* The nodes that the search starts from have to be in the
+	   MeetingTable too, so that the other direction can find
+	   them: */
+
+	void publishOpenNodes( boolean fromStart ) {
+		SearchNodeQueue open_queue = fromStart ? open_from_start : open_from_goal;
+		SearchNodeStore nodes = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+		for( int i = 0; i < open_queue.size(); ++i ) {
+			int id = open_queue.get( i );
+			meeting.publish( fromStart, id, nodes.getG( nodes.x( id ), nodes.y( id ), nodes.z( id ) ) );
+		}
+	}
+
+	/* Expand the nodes from one end of a parallel search until
+	   the stopping condition described above is met, the other
+	   direction has stopped or the search is cancelled.  The
+	   thread searching from the start also deals with timeouts,
+	   progress reports and the memory budget (which it can only
+	   enforce by stopping the search, since the other direction
+	   is still changing its nodes.)  Returns false if the search
+	   timed out. */
+
+	volatile boolean overBudget = false;
+
+	boolean searchInParallel( boolean fromStart, long started_at ) {
+
+		SearchNodeQueue open_queue = fromStart ? open_from_start : open_from_goal;
+		SearchNodeStore nodes = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+
+		byte openStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+		byte closedStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
+
+		int loops = 0;
+
+		while( open_queue.size() > 0 ) {
+
+			if( meeting.isFinished() || threadStatus == STOPPING )
+				return true;
+
+			if( threadStatus == PAUSED ) {
+				if( fromStart )
+					reportThreadStatus();
+				waitWhilePaused();
+				continue;
+			}
+
+			if( fromStart && 0 == (loops % 1000) ) {
+
+				long currentMilliseconds = System.currentTimeMillis();
+
+				if( (timeoutSeconds > 0) && (currentMilliseconds - started_at > (1000 * timeoutSeconds)) )
+					return false;
+
+				if( memoryBudget > 0 && bytesAllocated() >= memoryBudget ) {
+					overBudget = true;
+					meeting.finish();
+					return true;
+				}
+
+				if( (reportEveryMilliseconds > 0) &&
+				    (currentMilliseconds - lastReportMilliseconds > reportEveryMilliseconds) ) {
+					if (verbose) printStatus();
+					reportPointsInSearch();
+					lastReportMilliseconds = currentMilliseconds;
+				}
+			}
+
+			meeting.setMinimumF( fromStart, open_queue.peekKey() );
+			if( meeting.bestIsShortest() )
+				break;
+
+			int p = open_queue.poll();
+
+			int p_x = nodes.x( p );
+			int p_y = nodes.y( p );
+			int p_z = nodes.z( p );
+			float p_g = nodes.getG( p_x, p_y, p_z );
+
+			nodes.setStatus( p_x, p_y, p_z, closedStatus );
+
+			boolean interior = neighbourhood.isInterior( p_x, p_y, p_z );
+
+			for( int n = 0; n < neighbourhood.size; ++n ) {
+
+				int new_x = p_x + neighbourhood.dx[n];
+				int new_y = p_y + neighbourhood.dy[n];
+				int new_z = p_z + neighbourhood.dz[n];
+
+				if( ! interior && ! neighbourhood.inBounds( new_x, new_y, new_z ) )
+					continue;
+
+				if( corridor != null && ! corridor.contains( new_x, new_y, new_z ) )
+					continue;
+
+				float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
+
+				double cost_moving_to_new_point = costMovingTo( new_x, new_y, new_z );
+				if( cost_moving_to_new_point < minimum_cost_per_unit_distance ) {
+					cost_moving_to_new_point = minimum_cost_per_unit_distance;
+				}
+
+				float g_for_new_point = (float) ( p_g + neighbourhood.step[n] * cost_moving_to_new_point );
+
+				float f_for_new_point = h_for_new_point + g_for_new_point;
+
+				// No path through this node can be shorter than mu:
+				if( f_for_new_point >= meeting.getBestLength() )
+					continue;
+
+				int new_id = nodes.id( new_x, new_y, new_z );
+
+				if( relax( nodes, open_queue, p,
+					   new_x, new_y, new_z, new_id,
+					   g_for_new_point, f_for_new_point,
+					   openStatus, closedStatus ) ) {
+
+					float g_in_other_direction = meeting.publish( fromStart, new_id, g_for_new_point );
+					if( g_in_other_direction != Float.POSITIVE_INFINITY )
+						meeting.offer( new_id, g_for_new_point + g_in_other_direction );
+				}
+			}
+			++ loops;
+		}
+
+		meeting.finish();
+		return true;
+	}
+
+	/* Record that (new_x,new_y,new_z) can be reached from the
+	   node p with cost g, if that's a better route than any that
+	   has been found to it so far.  Returns true if the node was
+	   added or its g was reduced. */
+
+	boolean relax( SearchNodeStore nodes, SearchNodeQueue open_queue, int p,
+		       int new_x, int new_y, int new_z, int new_id,
+		       float g, float f,
+		       byte openStatus, byte closedStatus ) {
+
+		// Is this node really new?
+		byte statusInThisSearch = nodes.getStatus( new_x, new_y, new_z );
+
+		if( statusInThisSearch == SearchNodeStore.ABSENT ) {
+
+			nodes.set( new_x, new_y, new_z, g, p, openStatus );
+			open_queue.add( new_id, f );
+			addingNode( new_x, new_y, new_z );
+			return true;
+
+		}
+
+		// The other alternative is that this node is already in one
+		// of the lists working from the start but has a better way
+		// of getting to that point.  (The heuristic only depends
+		// on the position, so it's enough to compare g.)
+
+		if( nodes.getG( new_x, new_y, new_z ) > g ) {
+
+			if( statusInThisSearch == openStatus ) {
+
+				nodes.set( new_x, new_y, new_z, g, p, openStatus );
+				open_queue.update( new_id, f );
+				return true;
+
+			} else if( deferReopening &&
+				   (statusInThisSearch == closedStatus || statusInThisSearch == INCONSISTENT) ) {
+
+				nodes.set( new_x, new_y, new_z, g, p, INCONSISTENT );
+				return true;
+
+			} else if( statusInThisSearch == closedStatus || statusInThisSearch == CLOSED_EARLIER ) {
+
+				nodes.set( new_x, new_y, new_z, g, p, openStatus );
+				open_queue.add( new_id, f );
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/* This is called when the search from the start reaches the
+	   goal, after foundGoal(), with the goal's index.  If it
+	   returns true then the search carries on, looking for a
+	   better path, instead of finishing.  The goal is no longer
+	   on the open list at this point. */
+
+	protected boolean refineAfterGoal( int goal ) {
+		return false;
+	}
+
+	/* Subclasses whose heuristic may decrease by more than the
+	   cost of a step along the way should override this to
+	   return false: */
+
+	protected boolean heuristicIsConsistent( ) {
+		return true;
+	}
+
 	/* This is the heuristic value for the A* search.  There's no
 	 * defined goal in this default superclass implementation, so
 	 * always return 0 so we end up with Dijkstra's algorithm. */
@@ -655,12 +1395,14 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	public static int TIMED_OUT = 2;
 	public static int POINTS_EXHAUSTED = 3;
 	public static int OUT_OF_MEMORY = 4;
+	public static int OVER_MEMORY_BUDGET = 5;
 
 	public static String [] exitReasonStrings = { "SUCCESS",
 						      "CANCELLED",
 						      "TIMED_OUT",
 						      "POINTS_EXHAUSTED",
-						      "OUT_OF_MEMORY" };
+						      "OUT_OF_MEMORY",
+						      "OVER_MEMORY_BUDGET" };
 
 	protected int exitReason;
 
@@ -675,24 +1417,44 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		return exitReason;
 	}
 
-	SearchNode anyNodeUnderThreshold( int x, int y, int z, double threshold ) {
-		SearchNode [] startSlice = nodes_as_image_from_start[z];
-		SearchNode [] goalSlice = null;
-		if( nodes_as_image_from_goal != null )
-			goalSlice = nodes_as_image_from_goal[z];
-		int index = y*width+x;
-		SearchNode n = null;
-		if( startSlice != null ) {
-			n = startSlice[index];
-			if( n != null && threshold >= 0 && n.g > threshold )
-				n = null;
-			if( n == null && goalSlice != null ) {
-				n = goalSlice[index];
-				if( threshold >= 0 && n.g > threshold )
-					n = null;
-			}
+	/* Returns the status of the node at (x,y,z) in either
+	   direction of the search, or SearchNodeStore.ABSENT if there
+	   is no node there whose g is no more than threshold.  (A
+	   negative threshold means that any node will do.) */
+
+	byte anyNodeUnderThreshold( int x, int y, int z, double threshold ) {
+		byte status = nodes_as_image_from_start.getStatus( x, y, z );
+		if( status != SearchNodeStore.ABSENT &&
+		    (threshold < 0 || nodes_as_image_from_start.getG( x, y, z ) <= threshold) )
+			return status;
+		if( nodes_as_image_from_goal != null ) {
+			status = nodes_as_image_from_goal.getStatus( x, y, z );
+			if( status != SearchNodeStore.ABSENT &&
+			    (threshold < 0 || nodes_as_image_from_goal.getG( x, y, z ) <= threshold) )
+				return status;
+		}
+		return SearchNodeStore.ABSENT;
+	}
+
+	/* The rasters that the progress of the search is drawn from,
+	   which are only created when it is first drawn: */
+
+	ProgressOverlay overlay;
+
+	synchronized ProgressOverlay getOverlay( ) {
+		if( overlay == null )
+			overlay = new ProgressOverlay( this );
+		/* The stores may have been replaced since the last time
+		   (e.g. by a SearchTreeCache), so make sure they're
+		   reporting their changes to the overlay: */
+		if( nodes_as_image_from_start.overlay != overlay ||
+		    (nodes_as_image_from_goal != null && nodes_as_image_from_goal.overlay != overlay) ) {
+			nodes_as_image_from_start.overlay = overlay;
+			if( nodes_as_image_from_goal != null )
+				nodes_as_image_from_goal.overlay = overlay;
+			overlay.invalidate();
 		}
-		return n;
+		return overlay;
 	}
 
 	/* This draws over the Graphics object the current progress of
@@ -704,97 +1466,50 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				  TracerCanvas canvas,
 				  Graphics g ){
 
-		for( int i = 0; i < 2; ++i ) {
-
-			/* The first time through we draw the nodes in
-			   the open list, the second time through we
-			   draw the nodes in the closed list. */
-
-			byte start_status = (i == 0) ? OPEN_FROM_START : CLOSED_FROM_START;
-			byte goal_status = (i == 0) ? OPEN_FROM_GOAL : CLOSED_FROM_GOAL;
-			Color c = (i == 0) ? openColor : closedColor;
-			if( c == null )
-				continue;
+		if( openColor == null && closedColor == null )
+			return;
 
-			g.setColor(c);
-
-			int pixel_size = (int)canvas.getMagnification();
-			if( pixel_size < 1 )
-				pixel_size = 1;
-
-			if( plane == ThreePanes.XY_PLANE ) {
-				int z = currentSliceInPlane;
-				for( int y = 0; y < height; ++y )
-					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
-						if( status == start_status || status == goal_status )
-							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
-					}
-			} else if( plane == ThreePanes.XZ_PLANE ) {
-				int y = currentSliceInPlane;
-				for( int z = 0; z < depth; ++ z )
-					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
-						if( status == start_status || status == goal_status )
-							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2, pixel_size, pixel_size );
-					}
-			} else if( plane == ThreePanes.ZY_PLANE ) {
-				int x = currentSliceInPlane;
-				for( int y = 0; y < height; ++y )
-					for( int z = 0; z < depth; ++z ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
-						if( status == start_status || status == goal_status )
-							g.fillRect( canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
-					}
-			}
-		}
+		getOverlay().draw( plane, currentSliceInPlane, drawingThreshold,
+				   openColor, closedColor, canvas, g );
 	}
 
 	// Add a node, ignoring requests to add duplicate nodes:
 
 	public void addNode( SearchNode n, boolean fromStart ) {
 
-		SearchNode [][] nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+		SearchNodeStore nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
 
-		if( nodes_as_image[n.z] == null ) {
-			nodes_as_image[n.z] = new SearchNode[width*height];
-		}
-
-		if( nodes_as_image[n.z][n.y*width+n.x] != null ) {
+		if( nodes_as_image.getStatus( n.x, n.y, n.z ) != SearchNodeStore.ABSENT ) {
 			// Then there's already a node there:
 			return;
 		}
 
+		SearchNode predecessor = n.getPredecessor();
+		int predecessorId = SearchNodeStore.NONE;
+		if( predecessor != null )
+			predecessorId = nodes_as_image.id( predecessor.x, predecessor.y, predecessor.z );
+
+		int id = nodes_as_image.id( n.x, n.y, n.z );
+
 		if( n.searchStatus == OPEN_FROM_START ) {
 
-			open_from_start.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			nodes_as_image.set( n.x, n.y, n.z, n.g, predecessorId, n.searchStatus );
+			open_from_start.add( id, n.f );
 
 		} else if( n.searchStatus == OPEN_FROM_GOAL ) {
 			assert bidirectional && definedGoal;
 
-			open_from_goal.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			nodes_as_image.set( n.x, n.y, n.z, n.g, predecessorId, n.searchStatus );
+			open_from_goal.add( id, n.f );
 
 		} else if( n.searchStatus == CLOSED_FROM_START ) {
 
-			closed_from_start.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			nodes_as_image.set( n.x, n.y, n.z, n.g, predecessorId, n.searchStatus );
 
 		} else if( n.searchStatus == CLOSED_FROM_GOAL ) {
 			assert bidirectional && definedGoal;
 
-			closed_from_goal.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			nodes_as_image.set( n.x, n.y, n.z, n.g, predecessorId, n.searchStatus );
 
 		}
 
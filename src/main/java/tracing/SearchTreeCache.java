@@ -0,0 +1,156 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+
+/* When the user tries several end points for a path from the same
+   start point, each TracerThread would otherwise explore the same
+   area around the start point again.  If a TracerThread is given one
+   of these (see TracerThread.setSearchTreeCache) it searches from the
+   start point only, and the nodes that it explored (i.e. a shortest
+   path tree rooted at the start point, and its frontier) are kept
+   here afterwards.  The next TracerThread from the same start point,
+   with the same image and cost settings, carries on from that state:
+   if its goal is already closed then the path is just read back from
+   the predecessors, otherwise the search resumes from the frontier
+   with the heuristic for the new goal.  (The heuristic is consistent,
+   so the g of every closed node is already the lowest possible,
+   whatever goal it was closed on the way to.)
+
+   Only one TracerThread can use the saved state at a time.  It's
+   discarded if the search that was using it fails in a way that
+   might have left it inconsistent, or if it grows beyond
+   maximumBytes. */
+
+public class SearchTreeCache {
+
+	long maximumBytes;
+
+	SearchNodeStore nodes;
+	SearchNodeQueue open;
+
+	/* The TracerThread that's currently using the saved state,
+	   or null: */
+
+	TracerThread user;
+
+	/* The search that the saved state is for: */
+
+	ImagePlus imagePlus;
+	float stackMin, stackMax;
+	int start_x, start_y, start_z;
+	boolean reciprocal;
+	boolean singleSlice;
+	boolean useHessian;
+	ComputeCurvatures hessian;
+	double multiplier;
+	float [][] tubeness;
+	int connectivity;
+
+	public SearchTreeCache( ) {
+		this( Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	public SearchTreeCache( long maximumBytes ) {
+		this.maximumBytes = maximumBytes;
+	}
+
+	boolean isFor( TracerThread t ) {
+		return nodes != null &&
+			imagePlus == t.imagePlus &&
+			stackMin == t.stackMin &&
+			stackMax == t.stackMax &&
+			start_x == t.start_x &&
+			start_y == t.start_y &&
+			start_z == t.start_z &&
+			reciprocal == t.reciprocal &&
+			singleSlice == t.singleSlice &&
+			useHessian == t.useHessian &&
+			hessian == t.hessian &&
+			multiplier == t.multiplier &&
+			tubeness == t.tubeness &&
+			connectivity == t.neighbourhood.connectivity;
+	}
+
+	/* Called by a TracerThread when its search starts.  If the
+	   saved state is for the same search then the thread should
+	   carry on with the returned store, otherwise the thread's
+	   own store (which just holds the start point) is kept from
+	   now on and that is returned.  Returns null if another
+	   thread is using the saved state. */
+
+	synchronized SearchNodeStore startUsing( TracerThread t ) {
+		if( user != null )
+			return null;
+		user = t;
+		if( isFor( t ) )
+			return nodes;
+		nodes = t.nodes_as_image_from_start;
+		open = t.open_from_start;
+		imagePlus = t.imagePlus;
+		stackMin = t.stackMin;
+		stackMax = t.stackMax;
+		start_x = t.start_x;
+		start_y = t.start_y;
+		start_z = t.start_z;
+		reciprocal = t.reciprocal;
+		singleSlice = t.singleSlice;
+		useHessian = t.useHessian;
+		hessian = t.hessian;
+		multiplier = t.multiplier;
+		tubeness = t.tubeness;
+		connectivity = t.neighbourhood.connectivity;
+		return nodes;
+	}
+
+	/* Called by the TracerThread when its search has finished;
+	   if consistent is false then the saved state is discarded: */
+
+	synchronized void finishedUsing( TracerThread t, boolean consistent ) {
+		if( user != t )
+			return;
+		user = null;
+		if( ! consistent || bytesAllocated() > maximumBytes )
+			invalidate();
+	}
+
+	public synchronized void invalidate( ) {
+		nodes = null;
+		open = null;
+		imagePlus = null;
+		hessian = null;
+		tubeness = null;
+	}
+
+	public synchronized long bytesAllocated( ) {
+		if( nodes == null )
+			return 0;
+		return nodes.bytesAllocated() + open.bytesAllocated();
+	}
+}
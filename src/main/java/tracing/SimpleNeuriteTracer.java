@@ -83,7 +83,7 @@ import stacks.ThreePanes;
 */
 
 public class SimpleNeuriteTracer extends ThreePanes
-	implements SearchProgressCallback, GaussianGenerationCallback, PathAndFillListener {
+	implements AnytimeProgressCallback, GaussianGenerationCallback, PathAndFillListener {
 
 	public static final String PLUGIN_VERSION = getVersion();
 	protected static final boolean verbose = false;
@@ -161,6 +161,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 	public void cancelSearch( boolean cancelFillToo ) {
 		if( currentSearchThread != null )
 			currentSearchThread.requestStop();
+		stopAccuracyReport();
 		if( tubularGeodesicsThread != null )
 			tubularGeodesicsThread.requestStop();
 		endJoin = null;
@@ -190,7 +191,10 @@ public class SimpleNeuriteTracer extends ThreePanes
 			if (verbose) System.out.println("["+Thread.currentThread()+"] going to lock filler in plugin.saveFill");
 			synchronized(filler) {
 				if (verbose) System.out.println("["+Thread.currentThread()+"] acquired it");
-				if( FillerThread.PAUSED == filler.getThreadStatus() ) {
+				// A fill that stopped at its memory budget
+				// won't change any more either:
+				if( FillerThread.PAUSED == filler.getThreadStatus() ||
+				    filler.getExitReason() == SearchThread.OVER_MEMORY_BUDGET ) {
 					// Then we can go ahead and save:
 					pathAndFillManager.addFill( filler.getFill() );
 					// ... and then stop filling:
@@ -258,18 +262,28 @@ public class SimpleNeuriteTracer extends ThreePanes
 					IJ.error("Bug! Succeeded, but null result.");
 					return;
 				}
-				if( endJoin != null ) {
-					result.setEndJoin( endJoin, endJoinPoint );
-				}
-				setTemporaryPath( result );
+				replaceTemporaryPath( result );
+				if( source == currentSearchThread )
+					startAccuracyReport( ((TracerThread)source).getAccuracyReport() );
 
-				resultsDialog.changeState(NeuriteTracerResultsDialog.QUERY_KEEP);
+			} else if( temporaryPath == null &&
+				   source == currentSearchThread &&
+				   currentSearchThread.getExitReason() == SearchThread.OVER_MEMORY_BUDGET &&
+				   source.getResult() != null ) {
 
-			} else {
+				// Offer the path as far as the search got
+				// towards the target point:
+				replaceTemporaryPath( source.getResult() );
+				IJ.showStatus( "The search reached its memory budget; showing the path as far as it got" );
+
+			} else if( temporaryPath == null ) {
 
 				resultsDialog.changeState(NeuriteTracerResultsDialog.PARTIAL_PATH);
 			}
 
+			// (Otherwise an anytime search has already found
+			// a path, and the user can still keep that one.)
+
 			// Indicate in the dialog that we've finished...
 
 			if (source == currentSearchThread) {
@@ -283,6 +297,39 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	}
 
+	/* An anytime search has found a better path than the last
+	   one, but is still looking; show it as the temporary path so
+	   that the user can keep it without waiting: */
+
+	synchronized public void improvedPath( SearchInterface source, Path path, double bound ) {
+		if( source != currentSearchThread )
+			return;
+		replaceTemporaryPath( path );
+		IJ.showStatus( "Found a path at most " + IJ.d2s( bound, 2 ) +
+			       " times as costly as the best one; still looking..." );
+	}
+
+	synchronized void replaceTemporaryPath( Path path ) {
+		if( temporaryPath != null && temporaryPath.endJoins != null )
+			temporaryPath.unsetEndJoin();
+		if( endJoin != null )
+			path.setEndJoin( endJoin, endJoinPoint );
+		setTemporaryPath( path );
+		resultsDialog.changeState(NeuriteTracerResultsDialog.QUERY_KEEP);
+	}
+
+	/* If the temporary path was found by an anytime search that
+	   is still going, it's kept or discarded without waiting for
+	   a better one: */
+
+	synchronized void stopRefiningTemporaryPath( ) {
+		if( currentSearchThread == null )
+			return;
+		currentSearchThread.requestStop();
+		currentSearchThread = null;
+		removeSphere( targetBallName );
+	}
+
 	public void pointsInSearch( SearchInterface source, int inOpen, int inClosed ) {
 		// Just use this signal to repaint the canvas, in case there's
 		// been no mouse movement.
@@ -744,6 +791,178 @@ public class SimpleNeuriteTracer extends ThreePanes
 		return newImp;
 	}
 
+	/* If reuseSearchTree is true, the nodes explored by the last
+	   search are kept here, so that trying another end point from
+	   the same start point doesn't repeat that work.  Those
+	   searches are only from the start point, so this is off by
+	   default, and each search starts from scratch (with the two
+	   directions searched in parallel if possible.)  The search
+	   tree isn't reused if there's a search margin or landmarks,
+	   since those don't work with it. */
+
+	SearchTreeCache searchTreeCache = new SearchTreeCache();
+	volatile boolean reuseSearchTree = false;
+
+	public void setReuseSearchTree( boolean reuse ) {
+		reuseSearchTree = reuse;
+		if( ! reuse )
+			searchTreeCache.invalidate();
+	}
+
+	/* If coarseToFine is true, each search first finds the path
+	   in downsampled copies of the image and then only searches
+	   near it at full resolution (instead of reusing the search
+	   tree.)  The downsampled copies are only made once for each
+	   image: */
+
+	volatile boolean coarseToFine = false;
+	ImagePyramid imagePyramid = null;
+
+	public void setCoarseToFine( boolean enable ) {
+		coarseToFine = enable;
+	}
+
+	/* If this is true as well, each path found coarse-to-fine is
+	   compared with the one found at full resolution, and the
+	   difference is logged (see TracerThread.setReportAccuracy): */
+
+	volatile boolean reportCoarseToFineAccuracy = false;
+
+	public void setReportCoarseToFineAccuracy( boolean report ) {
+		reportCoarseToFineAccuracy = report;
+	}
+
+	/* The comparison runs in the background after the path is
+	   shown, and is stopped if the search is cancelled or another
+	   comparison starts: */
+
+	TracerThread.AccuracyReport accuracyReport = null;
+
+	synchronized void startAccuracyReport( TracerThread.AccuracyReport report ) {
+		stopAccuracyReport();
+		if( report == null )
+			return;
+		accuracyReport = report;
+		searchScheduler.submitInBackground( report );
+	}
+
+	synchronized void stopAccuracyReport( ) {
+		if( accuracyReport != null )
+			accuracyReport.requestStop();
+		accuracyReport = null;
+	}
+
+	synchronized ImagePyramid getImagePyramid( ) {
+		if( imagePyramid == null || ! imagePyramid.isFor( xy, tubeness ) )
+			imagePyramid = new ImagePyramid( xy, tubeness );
+		return imagePyramid;
+	}
+
+	/* If this is greater than zero, each search is first confined
+	   to the box around its start and end points plus this many
+	   voxels on each side. */
+
+	volatile int searchMargin = 0;
+
+	public void setSearchMargin( int margin ) {
+		searchMargin = margin;
+	}
+
+	/* If this is more than one, each search is an anytime search
+	   (see TracerThread.setAnytime) whose heuristic starts off
+	   multiplied by this weight, so that a path appears quickly
+	   and is then improved until it's the best one (unless the
+	   image is being searched coarse-to-fine.)  Landmarks aren't
+	   used for anytime searches. */
+
+	volatile double anytimeWeight = 1;
+
+	public void setAnytimeWeight( double weight ) {
+		anytimeWeight = weight;
+	}
+
+	/* If landmarkCount is more than zero, the distances from that
+	   many landmarks are worked out in the background for the
+	   current image and cost settings, and each search uses those
+	   that are ready for a better heuristic (see Landmarks).  They
+	   aren't possible if the costs come from the Hessian rather
+	   than from tubeness. */
+
+	volatile int landmarkCount = 0;
+	Landmarks landmarks = null;
+
+	public void setLandmarkCount( int count ) {
+		landmarkCount = count;
+		if( count <= 0 )
+			discardLandmarks();
+	}
+
+	/* Returns the landmarks for the search t if any of them are
+	   ready, and starts working them out if necessary: */
+
+	synchronized Landmarks getLandmarks( TracerThread t ) {
+		if( landmarkCount <= 0 || (t.useHessian && t.tubeness == null) )
+			return null;
+		if( landmarks == null || ! landmarks.isFor( t ) || landmarks.getCount() != landmarkCount ) {
+			discardLandmarks();
+			landmarks = new Landmarks( new CostSettings( t ), landmarkCount );
+			landmarks.setMemoryBudget( searchMemoryBudget );
+			searchScheduler.submitInBackground( landmarks );
+		}
+		return landmarks.available() > 0 ? landmarks : null;
+	}
+
+	synchronized void discardLandmarks( ) {
+		if( landmarks != null )
+			landmarks.requestStop();
+		landmarks = null;
+	}
+
+	/* Each search (tracing or filling) stops once it has
+	   allocated this many bytes for its nodes, keeping what it
+	   has found so far (see SearchThread.setMemoryBudget()), so
+	   that a search across a huge stack can't use up all the
+	   memory that Fiji has; zero means that there's no limit.
+	   It's kept in the preferences, so that Auto_Tracer uses the
+	   same budget for its searches.  When tracing with the
+	   Hessian, the costs cached between searches (see CostCache)
+	   count against the budget too: the cache may use up to
+	   COST_CACHE_SHARE of it, and each search gets the rest. */
+
+	static final double COST_CACHE_SHARE = 0.5;
+
+	static final String SEARCH_MEMORY_BUDGET_KEY = "tracing.Simple_Neurite_Tracer.searchMemoryBudget";
+
+	static long savedSearchMemoryBudget( ) {
+		return (long)Prefs.get( SEARCH_MEMORY_BUDGET_KEY, Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	volatile long searchMemoryBudget = savedSearchMemoryBudget();
+
+	public void setSearchMemoryBudget( long bytes ) {
+		searchMemoryBudget = bytes;
+		Prefs.set( SEARCH_MEMORY_BUDGET_KEY, bytes );
+		Prefs.savePreferences();
+		synchronized (this) {
+			if( hessianCostCache != null )
+				hessianCostCache.setMaximumBytes( costCacheLimit() );
+		}
+	}
+
+	long costCacheLimit( ) {
+		if( searchMemoryBudget > 0 )
+			return (long)( COST_CACHE_SHARE * searchMemoryBudget );
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/* The traces are run by searchScheduler and the fills by
+	   fillScheduler, which limit how many can run at once; a fill
+	   that's paused keeps its worker, so they're kept apart (see
+	   SearchScheduler.getForTracing()): */
+
+	SearchScheduler searchScheduler = SearchScheduler.getForTracing();
+	SearchScheduler fillScheduler = SearchScheduler.getForFilling();
+
 	/* If non-null, holds a reference to the currently searching thread: */
 
 	TracerThread currentSearchThread;
@@ -816,7 +1035,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 			tubularGeodesicsThread.addProgressListener( this );
 
-			tubularGeodesicsThread.start();
+			searchScheduler.submit( tubularGeodesicsThread );
 
 		} else {
 
@@ -843,10 +1062,40 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 			currentSearchThread.setDrawingColors( Color.CYAN, null );
 			currentSearchThread.setDrawingThreshold( -1 );
+			currentSearchThread.setConnectivity( connectivity );
+			Landmarks readyLandmarks = getLandmarks( currentSearchThread );
+			if( coarseToFine && ! (hessianEnabled && tubeness == null) ) {
+				currentSearchThread.setImagePyramid( getImagePyramid() );
+				currentSearchThread.setReportAccuracy( reportCoarseToFineAccuracy );
+			} else if( anytimeWeight > 1 ) {
+				currentSearchThread.setAnytime( anytimeWeight );
+				// The bound on each path that the anytime
+				// search finds needs a consistent heuristic:
+				readyLandmarks = null;
+			} else if( reuseSearchTree && searchMargin <= 0 && landmarkCount <= 0 )
+				currentSearchThread.setSearchTreeCache( searchTreeCache );
+			else if( readyLandmarks == null && ! (hessianEnabled && tubeness == null) )
+				// The parallel search's stopping rule needs a
+				// consistent heuristic, which the one with
+				// landmarks isn't, and the Hessian can't be
+				// evaluated from two threads at once:
+				currentSearchThread.setParallel( Runtime.getRuntime().availableProcessors() > 1 );
+			if( searchMargin > 0 )
+				currentSearchThread.setSearchMargin( searchMargin );
+			if( readyLandmarks != null )
+				currentSearchThread.setLandmarks( readyLandmarks );
+			long budget = searchMemoryBudget;
+			if( hessianEnabled && tubeness == null ) {
+				CostCache costCache = getHessianCostCache( resultsDialog.getMultiplier() );
+				currentSearchThread.setCostCache( costCache );
+				if( budget > 0 )
+					budget = Math.max( 1, budget - costCache.getMaximumBytes() );
+			}
+			currentSearchThread.setMemoryBudget( budget );
 
 			currentSearchThread.addProgressListener( this );
 
-			currentSearchThread.start();
+			searchScheduler.submit( currentSearchThread );
 
 		}
 
@@ -859,6 +1108,8 @@ public class SimpleNeuriteTracer extends ThreePanes
 			// Just ignore the request to confirm a path (there isn't one):
 			return;
 
+		stopRefiningTemporaryPath();
+
 		currentPath.add( temporaryPath );
 
 		PointInImage last = currentPath.lastPoint();
@@ -894,6 +1145,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 			return;
 		}
 
+		stopRefiningTemporaryPath();
 		removeSphere( targetBallName );
 
 		if( temporaryPath.endJoins != null ) {
@@ -1135,6 +1387,16 @@ public class SimpleNeuriteTracer extends ThreePanes
 		imagePlus.show();
 	}
 
+	/* Save an image of the fill straight to a TIFF file, without
+	   making the whole stack in memory first: */
+
+	public boolean saveFillAsTiff( boolean realData, String path ) {
+		FillerThread f = filler;
+		if( f == null )
+			return false;
+		return f.saveFillAsTiff( realData, path );
+	}
+
 	public void setPositionAllPanes( int x, int y, int z ) {
 
 		xy.setSlice( z + 1 );
@@ -1235,10 +1497,13 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		filler.addProgressListener(this);
 		filler.addProgressListener(resultsDialog.fw);
+		filler.setConnectivity( connectivity );
+		filler.setMemoryBudget( searchMemoryBudget );
+		filler.setThreads( fillThreads );
 
 		addThreadToDraw(filler);
 
-		filler.start();
+		fillScheduler.submit( filler );
 
 		resultsDialog.changeState(NeuriteTracerResultsDialog.FILLING_PATHS);
 
@@ -1248,6 +1513,29 @@ public class SimpleNeuriteTracer extends ThreePanes
 	// (FIXME: check that that is true)
 	FillerThread filler = null;
 
+	/* A fill is done in one thread unless this is more than one,
+	   in which case it's shared out between up to that many
+	   threads (see FillerThread.setThreads()).  That's faster, but
+	   takes processors from any traces running at the same time,
+	   so it's only done if it's asked for in the fill window: */
+
+	volatile int fillThreads = 1;
+
+	public void setFillThreads( int threads ) {
+		if( threads < 1 || threads > maximumFillThreads() )
+			throw new IllegalArgumentException( "The number of threads for a fill must be between 1 and " + maximumFillThreads() );
+		fillThreads = threads;
+	}
+
+	public int getFillThreads( ) {
+		return fillThreads;
+	}
+
+	static int maximumFillThreads( ) {
+		return Math.min( Runtime.getRuntime().availableProcessors(),
+				 SearchNodeStore.MAXIMUM_PARTITIONS );
+	}
+
 	synchronized public void startFillingPaths( Set<Path> fromPaths ) {
 
 		// currentlyFilling = true;
@@ -1266,11 +1554,14 @@ public class SimpleNeuriteTracer extends ThreePanes
 		filler.addProgressListener( this );
 		filler.addProgressListener( resultsDialog.fw );
 
+		filler.setConnectivity( connectivity );
 		filler.setSourcePaths( fromPaths );
+		filler.setMemoryBudget( searchMemoryBudget );
+		filler.setThreads( fillThreads );
 
 		resultsDialog.setFillListVisible(true);
 
-		filler.start();
+		fillScheduler.submit( filler );
 
 		resultsDialog.changeState(NeuriteTracerResultsDialog.FILLING_PATHS);
 
@@ -1288,6 +1579,21 @@ public class SimpleNeuriteTracer extends ThreePanes
 		return Math.min(Math.abs(x_spacing),Math.min(Math.abs(y_spacing),Math.abs(z_spacing)));
 	}
 
+	/* The number of neighbours of each point (6, 18 or 26) that
+	   are considered when tracing and filling: */
+
+	volatile int connectivity = 26;
+
+	public void setConnectivity( int connectivity ) {
+		if( connectivity != 6 && connectivity != 18 && connectivity != 26 )
+			throw new IllegalArgumentException( "The connectivity must be 6, 18 or 26, not " + connectivity );
+		this.connectivity = connectivity;
+	}
+
+	public int getConnectivity() {
+		return connectivity;
+	}
+
 	volatile boolean hessianEnabled = false;
 	ComputeCurvatures hessian = null;
 	/* This variable just stores the sigma which the current
@@ -1295,6 +1601,25 @@ public class SimpleNeuriteTracer extends ThreePanes
 	   (or -1 if 'hessian' is null) ... */
 	volatile double hessianSigma = -1;
 
+	/* The costs that TracerThread works out from 'hessian' are
+	   kept here between searches, since finding the eigenvalues
+	   at each point is slow.  This is replaced whenever the
+	   sigma or the multiplier changes, and is limited to its
+	   share of the search memory budget: */
+
+	CostCache hessianCostCache = null;
+
+	synchronized CostCache getHessianCostCache( double multiplier ) {
+		if( hessianCostCache == null || ! hessianCostCache.isFor( hessian, hessianSigma, multiplier ) )
+			hessianCostCache = new CostCache( width, height, depth, hessian, hessianSigma, multiplier,
+							  costCacheLimit() );
+		return hessianCostCache;
+	}
+
+	synchronized void discardHessianCostCache() {
+		hessianCostCache = null;
+	}
+
 	public void startHessian() {
 		if( hessian == null ) {
 			resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
@@ -1306,6 +1631,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 			if( newSigma != hessianSigma ) {
 				resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
 				hessianSigma = newSigma;
+				discardHessianCostCache();
 				hessian = new ComputeCurvatures( xy, hessianSigma, this, true );
 				new Thread(hessian).start();
 			}
@@ -1360,6 +1686,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 			hessianEnabled = false;
 			hessian = null;
 			hessianSigma = -1;
+			discardHessianCostCache();
 			resultsDialog.gaussianCalculated(false);
 			IJ.showProgress(1.0);
 			return;
@@ -1755,6 +2082,8 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	@Override
 	public void closeAndReset() {
+		discardLandmarks();
+		stopAccuracyReport();
 		// Dispose xz/zy images unless the user stored some annotations (ROIs)
 		// on the image overlay or modified them somehow. In that case, restore
 		// them to the user
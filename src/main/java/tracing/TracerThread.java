@@ -28,6 +28,7 @@
 package tracing;
 
 import features.ComputeCurvatures;
+import ij.IJ;
 import ij.ImagePlus;
 
 /* This is the thread that explores between two points in an image,
@@ -47,8 +48,611 @@ public class TracerThread extends SearchThread {
         ComputeCurvatures hessian;
 	double multiplier;
 
+	/* If this is set, the costs calculated from the Hessian are
+	   looked up here first, and stored here otherwise: */
+
+	CostCache costCache;
+
+	public void setCostCache( CostCache costCache ) {
+		this.costCache = costCache;
+	}
+
         Path result;
 
+	/* If this is set the search is only from the start point, and
+	   the explored nodes are kept for later searches from the same
+	   point.  The cache isn't used if the search is also confined
+	   to a region or uses landmarks (see run()): */
+
+	SearchTreeCache searchTreeCache;
+
+	/* This must be called before the search is run: */
+
+	public void setSearchTreeCache( SearchTreeCache searchTreeCache ) {
+		this.searchTreeCache = searchTreeCache;
+		bidirectional = false;
+		nodes_as_image_from_goal = null;
+		open_from_goal = null;
+	}
+
+	/* Confine the search to the bounding box of the start and
+	   goal plus margin voxels on each side, which is grown if
+	   necessary (see SearchRegion).  This must be called before
+	   the search is run. */
+
+	public void setSearchMargin( int margin ) {
+		setSearchRegion( regionWithMargin( margin ) );
+	}
+
+	SearchRegion regionWithMargin( int margin ) {
+		return new SearchRegion( width, height, depth,
+					 start_x, start_y, start_z,
+					 goal_x, goal_y, goal_z,
+					 margin );
+	}
+
+	/* When the search is getting close to its memory budget it
+	   is confined to the region that setSearchMargin() would
+	   have given it (see SearchThread.confineSearchTo()), with a
+	   margin of a quarter of the distance between the start and
+	   goal, but at least this many voxels: */
+
+	static final int MINIMUM_BUDGET_MARGIN = 16;
+
+	@Override
+	protected void reduceMemory( ) {
+		super.reduceMemory();
+		if( region == null && corridor == null && searchTreeCache == null ) {
+			int extent = Math.max( Math.abs( goal_x - start_x ),
+					       Math.max( Math.abs( goal_y - start_y ),
+							 Math.abs( goal_z - start_z ) ) );
+			confineSearchTo( regionWithMargin( Math.max( MINIMUM_BUDGET_MARGIN, extent / 4 ) ) );
+		}
+	}
+
+	/* If the search stops at its memory budget, the result is
+	   the best path found so far: the last one found by an
+	   anytime search, the path through the best node where the
+	   two directions of a parallel search met, or failing those
+	   the path from the start to the explored node nearest to the
+	   goal.  The exit reason is OVER_MEMORY_BUDGET either way. */
+
+	@Override
+	protected void stoppedOverBudget( ) {
+
+		if( result != null )
+			return;
+
+		if( meeting != null && meeting.getBestNode() != SearchNodeStore.NONE ) {
+			result = pathThroughMeeting( meeting.getBestNode() );
+			return;
+		}
+
+		SearchNodeStore nodes = nodes_as_image_from_start;
+		int [][] closedLists = { nodes.nodesWithStatus( CLOSED_FROM_START ),
+					 nodes.nodesWithStatus( CLOSED_EARLIER ) };
+		int nearest = SearchNodeStore.NONE;
+		double nearestDistanceSquared = Double.MAX_VALUE;
+		for( int [] closed : closedLists )
+			for( int i = 0; i < closed.length; ++i ) {
+				int id = closed[i];
+				double xdiff = (nodes.x( id ) - goal_x) * x_spacing;
+				double ydiff = (nodes.y( id ) - goal_y) * y_spacing;
+				double zdiff = (nodes.z( id ) - goal_z) * z_spacing;
+				double distanceSquared = xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
+				if( distanceSquared < nearestDistanceSquared ) {
+					nearest = id;
+					nearestDistanceSquared = distanceSquared;
+				}
+			}
+
+		if( nearest != SearchNodeStore.NONE )
+			result = pathFrom( nodes, nodes.x( nearest ), nodes.y( nearest ), nodes.z( nearest ), false );
+	}
+
+	/* If this is set then a path is first found in the coarser
+	   versions of the image, and the search at each finer scale
+	   is confined to a corridor around the path found at the
+	   scale before (see SearchCorridor).  This makes no
+	   difference unless the start and goal are far enough apart
+	   for the coarse paths to be worth finding, and it isn't
+	   possible if the costs come from the eigenvalues of the
+	   Hessian, rather than from the tubeness or the intensity.
+	   This must be called before the search is run. */
+
+	ImagePyramid imagePyramid;
+
+	public void setImagePyramid( ImagePyramid imagePyramid ) {
+		this.imagePyramid = imagePyramid;
+	}
+
+	/* The search at a coarser scale, if one is going on: */
+
+	volatile TracerThread coarseSearch;
+
+	/* In voxels of the coarse image: */
+
+	static final int CORRIDOR_RADIUS = 2;
+	static final int MINIMUM_COARSE_DISTANCE = 16;
+
+	/* If this is true then, once a path has been found with the
+	   image pyramid, getAccuracyReport() returns a task that
+	   finds the path at full resolution and logs the difference
+	   (see AccuracyReport.)  It's left to the caller to run, so
+	   that it doesn't hold up the worker that this search ran on,
+	   and it can be stopped like a search: */
+
+	boolean reportAccuracy = false;
+	volatile AccuracyReport accuracyReport = null;
+	long coarseToFineStarted;
+
+	public void setReportAccuracy( boolean reportAccuracy ) {
+		this.reportAccuracy = reportAccuracy;
+	}
+
+	public AccuracyReport getAccuracyReport( ) {
+		return accuracyReport;
+	}
+
+	@Override
+	public void requestStop( ) {
+		TracerThread coarse = coarseSearch;
+		if( coarse != null )
+			coarse.requestStop();
+		super.requestStop();
+	}
+
+	@Override
+	public void run( ) {
+
+		if( searchTreeCache == null ) {
+			if( imagePyramid == null )
+				super.run();
+			else
+				searchCoarseToFine();
+			return;
+		}
+
+		/* The saved tree has to be usable whatever the next
+		   goal is, so it can't be confined to a region, and
+		   its closed nodes have to have the lowest possible g,
+		   which needs a consistent heuristic.  A search that
+		   was given either of those keeps them and doesn't use
+		   the cache, nor does one that finds another search
+		   using it: */
+
+		SearchNodeStore nodes = null;
+		if( region == null && heuristicIsConsistent() )
+			nodes = searchTreeCache.startUsing( this );
+		if( nodes == null ) {
+			searchTreeCache = null;
+			super.run();
+			return;
+		}
+
+		if( nodes != nodes_as_image_from_start ) {
+
+			nodes_as_image_from_start = nodes;
+			open_from_start = searchTreeCache.open;
+
+			if( nodes.getStatus( goal_x, goal_y, goal_z ) == CLOSED_FROM_START ) {
+				result = pathFrom( nodes, goal_x, goal_y, goal_z, false );
+				setExitReason(SUCCESS);
+				reportFinished( true );
+				return;
+			}
+
+			// Otherwise the frontier needs the heuristic for
+			// this goal:
+
+			rekeyOpenList();
+		}
+
+		/* The exit reason is only left unset if there was an
+		   exception part way through expanding a node: */
+
+		setExitReason( -1 );
+		super.run();
+		releaseSearchTreeCache();
+	}
+
+	/* Recalculate the priority of every node in the open list
+	   from the start, after the goal or the weight of the
+	   heuristic has changed: */
+
+	void rekeyOpenList( ) {
+		rekeyOpenList( true );
+		if( bidirectional )
+			rekeyOpenList( false );
+	}
+
+	void rekeyOpenList( boolean fromStart ) {
+		SearchNodeStore nodes = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+		SearchNodeQueue open_queue = fromStart ? open_from_start : open_from_goal;
+		for( int i = 0; i < open_queue.size(); ++i ) {
+			int id = open_queue.get( i );
+			int x = nodes.x( id ), y = nodes.y( id ), z = nodes.z( id );
+			open_queue.setKeyAt( i, nodes.getG( x, y, z ) + estimateCostToGoal( x, y, z, fromStart ) );
+		}
+		open_queue.heapify();
+	}
+
+	/* If this is set then the heuristic also uses the distances
+	   from the landmarks that were ready when it was set (see
+	   Landmarks), which are often a much better estimate.  The
+	   heuristic is then not quite consistent, so the search tree
+	   isn't reused if this is set, the two directions of
+	   the search aren't run in parallel, and it shouldn't be
+	   used for an anytime search.  This must be called before
+	   the search is run. */
+
+	Landmarks landmarks;
+	int landmarksUsed;
+	int startCell, goalCell;
+
+	public void setLandmarks( Landmarks landmarks ) {
+		this.landmarks = landmarks;
+		landmarksUsed = 0;
+		if( landmarks != null ) {
+			landmarksUsed = landmarks.available();
+			startCell = landmarks.cell( start_x, start_y, start_z );
+			goalCell = landmarks.cell( goal_x, goal_y, goal_z );
+		}
+		rekeyOpenList();
+	}
+
+	@Override
+	protected boolean heuristicIsConsistent( ) {
+		return landmarksUsed == 0;
+	}
+
+	/* In an anytime search the heuristic is multiplied by this
+	   weight, which makes the search much more direct, at the
+	   cost of a path that may be up to weight times as costly as
+	   the best one.  Each time the goal is reached the path is
+	   reported to any AnytimeProgressCallback listeners, the
+	   weight is reduced by WEIGHT_STEP and the search carries on
+	   from the nodes it has already explored, until the weight is
+	   one and the path found is the best one.  This is ARA*
+	   (Likhachev, Gordon and Thrun, "ARA*: Anytime A* with
+	   Provable Bounds on Sub-Optimality", NIPS 2003.) */
+
+	double heuristicWeight = 1;
+
+	static final double WEIGHT_STEP = 0.5;
+
+	/* The cost of the last path reported, so that a pass that
+	   finds the same path again doesn't report it: */
+
+	float reportedG = Float.POSITIVE_INFINITY;
+
+	/* This must be called before the search is run.  The
+	   search is only from the start point.  The bound reported
+	   with each path assumes that the heuristic is consistent, so
+	   don't use landmarks (see setLandmarks()) as well. */
+
+	public void setAnytime( double initialWeight ) {
+		heuristicWeight = Math.max( 1, initialWeight );
+		deferReopening = heuristicWeight > 1;
+		bidirectional = false;
+		nodes_as_image_from_goal = null;
+		open_from_goal = null;
+		rekeyOpenList();
+	}
+
+	@Override
+	protected boolean refineAfterGoal( int goal ) {
+
+		SearchNodeStore nodes = nodes_as_image_from_start;
+		float goalG = nodes.getG( goal );
+
+		if( heuristicWeight <= 1 || goalG == 0 )
+			return false;
+
+		/* No path can cost less than the smallest unweighted f
+		   of the nodes that are still to be expanded, including
+		   the goal: */
+
+		int [] inconsistent = nodes.nodesWithStatus( INCONSISTENT );
+		double lowestF = goalG;
+		for( int i = 0; i < open_from_start.size() + inconsistent.length; ++i ) {
+			int id = (i < open_from_start.size()) ? open_from_start.get( i ) : inconsistent[i - open_from_start.size()];
+			int x = nodes.x( id ), y = nodes.y( id ), z = nodes.z( id );
+			lowestF = Math.min( lowestF, nodes.getG( x, y, z ) + estimateCostToGoal( x, y, z, true ) / heuristicWeight );
+		}
+
+		double bound = Math.min( heuristicWeight, goalG / lowestF );
+		if( bound <= 1 )
+			return false;
+
+		if (verbose) System.out.println( "Found a path within " + bound + " of the best with weight " + heuristicWeight );
+		if( goalG < reportedG ) {
+			reportImprovedPath( result, bound );
+			reportedG = goalG;
+		}
+
+		heuristicWeight = Math.max( 1, heuristicWeight - WEIGHT_STEP );
+		deferReopening = heuristicWeight > 1;
+
+		/* The next pass starts with the goal and the
+		   inconsistent nodes on the open list, and the nodes
+		   closed in this pass may be expanded again: */
+
+		open_from_start.add( goal, goalG );
+		for( int i = 0; i < inconsistent.length; ++i ) {
+			int id = inconsistent[i];
+			nodes.setStatus( nodes.x( id ), nodes.y( id ), nodes.z( id ), OPEN_FROM_START );
+			open_from_start.add( id, nodes.getG( id ) );
+		}
+		int [] closed = nodes.nodesWithStatus( CLOSED_FROM_START );
+		for( int i = 0; i < closed.length; ++i ) {
+			int id = closed[i];
+			nodes.setStatus( nodes.x( id ), nodes.y( id ), nodes.z( id ), CLOSED_EARLIER );
+		}
+
+		rekeyOpenList();
+		return true;
+	}
+
+	void reportImprovedPath( Path path, double bound ) {
+		for( SearchProgressCallback progress : progressListeners ) {
+			if( progress instanceof AnytimeProgressCallback ) {
+				AnytimeProgressCallback anytimeProgress = (AnytimeProgressCallback)progress;
+				anytimeProgress.improvedPath( this, path, bound );
+			}
+		}
+	}
+
+	void searchCoarseToFine( ) {
+
+		coarseToFineStarted = System.currentTimeMillis();
+
+		SearchCorridor corridor = corridorFromPyramid();
+
+		if( getThreadStatus() == STOPPING ) {
+			setExitReason(CANCELLED);
+			reportFinished( false );
+			return;
+		}
+
+		if( corridor != null )
+			setSearchCorridor( corridor );
+
+		super.run();
+	}
+
+	/* Find the path at each scale of the pyramid from the
+	   coarsest to the finest, and return the corridor around the
+	   last one, or null if there isn't one. */
+
+	SearchCorridor corridorFromPyramid( ) {
+
+		if( useHessian && tubeness == null )
+			return null;
+
+		double xdiff = goal_x - start_x, ydiff = goal_y - start_y, zdiff = goal_z - start_z;
+		double distance = Math.sqrt( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
+
+		Path coarsePath = null;
+		ImagePlus coarseImage = null;
+		int pathFactor = 1, pathZFactor = 1;
+
+		for( int level = ImagePyramid.LEVELS - 1; level >= 0; --level ) {
+
+			int factor = imagePyramid.getFactor( level );
+			int zFactor = imagePyramid.getZFactor( level );
+
+			if( distance / factor < MINIMUM_COARSE_DISTANCE )
+				continue;
+
+			ImagePlus image = imagePyramid.getLevel( level );
+
+			TracerThread t = new TracerThread( image,
+							   stackMin,
+							   stackMax,
+							   0, // timeout in seconds
+							   0, // reportEveryMilliseconds
+							   start_x / factor,
+							   start_y / factor,
+							   start_z / zFactor,
+							   goal_x / factor,
+							   goal_y / factor,
+							   goal_z / zFactor,
+							   reciprocal,
+							   singleSlice,
+							   null,
+							   multiplier,
+							   imagePyramid.getTubeness( level ),
+							   useHessian );
+			t.setConnectivity( neighbourhood.connectivity );
+			if( coarsePath != null )
+				t.setSearchCorridor( new SearchCorridor( coarsePath,
+									 coarseImage.getWidth(),
+									 coarseImage.getHeight(),
+									 coarseImage.getStackSize(),
+									 pathFactor / factor,
+									 pathFactor / factor,
+									 pathZFactor / zFactor,
+									 CORRIDOR_RADIUS ) );
+
+			if( getThreadStatus() == STOPPING )
+				return null;
+			coarseSearch = t;
+			t.run();
+			coarseSearch = null;
+
+			if( t.getExitReason() != SUCCESS )
+				return null;
+
+			coarsePath = t.getResult();
+			coarseImage = image;
+			pathFactor = factor;
+			pathZFactor = zFactor;
+		}
+
+		if( coarsePath == null )
+			return null;
+
+		return new SearchCorridor( coarsePath,
+					   coarseImage.getWidth(),
+					   coarseImage.getHeight(),
+					   coarseImage.getStackSize(),
+					   pathFactor,
+					   pathFactor,
+					   pathZFactor,
+					   CORRIDOR_RADIUS );
+	}
+
+	/* The total cost of moving along a path found in this image,
+	   as the search would count it: */
+
+	double pathCost( Path path ) {
+		double cost = 0;
+		for( int i = 1; i < path.size(); ++i ) {
+			int x = path.getXUnscaled( i ), y = path.getYUnscaled( i ), z = path.getZUnscaled( i );
+			double xdiff = (x - path.getXUnscaled( i - 1 )) * x_spacing;
+			double ydiff = (y - path.getYUnscaled( i - 1 )) * y_spacing;
+			double zdiff = (z - path.getZUnscaled( i - 1 )) * z_spacing;
+			double c = costMovingTo( x, y, z );
+			if( c < minimum_cost_per_unit_distance )
+				c = minimum_cost_per_unit_distance;
+			cost += Math.sqrt( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff ) * c;
+		}
+		return cost;
+	}
+
+	/* The mean distance from each point on a to the nearest
+	   point on b: */
+
+	static double meanDistance( Path a, Path b ) {
+		double [] p = new double[3];
+		double [] q = new double[3];
+		double total = 0;
+		for( int i = 0; i < a.size(); ++i ) {
+			a.getPointDouble( i, p );
+			double best = Double.MAX_VALUE;
+			for( int j = 0; j < b.size(); ++j ) {
+				b.getPointDouble( j, q );
+				double xdiff = p[0] - q[0], ydiff = p[1] - q[1], zdiff = p[2] - q[2];
+				best = Math.min( best, xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
+			}
+			total += Math.sqrt( best );
+		}
+		return total / a.size();
+	}
+
+	/* The search for the same path at full resolution, for
+	   comparison with the one found coarse-to-fine.  This may run
+	   at the same time as the next search, so there's none if the
+	   costs come from the Hessian rather than from tubeness, since
+	   working those out isn't safe from two threads at once. */
+
+	public class AccuracyReport implements Runnable {
+
+		final long milliseconds;
+
+		volatile boolean stopRequested = false;
+		volatile TracerThread full = null;
+
+		AccuracyReport( long milliseconds ) {
+			this.milliseconds = milliseconds;
+		}
+
+		public void requestStop( ) {
+			stopRequested = true;
+			TracerThread t = full;
+			if( t != null )
+				t.requestStop();
+		}
+
+		@Override
+		public void run( ) {
+
+			if( stopRequested )
+				return;
+
+			TracerThread t = new TracerThread( imagePlus,
+							   stackMin,
+							   stackMax,
+							   0, // timeout in seconds
+							   0, // reportEveryMilliseconds
+							   start_x, start_y, start_z,
+							   goal_x, goal_y, goal_z,
+							   reciprocal,
+							   singleSlice,
+							   hessian,
+							   multiplier,
+							   tubeness,
+							   useHessian );
+			t.setConnectivity( neighbourhood.connectivity );
+			t.setMemoryBudget( memoryBudget );
+
+			// If requestStop() was called before this was
+			// set, it has set stopRequested:
+			full = t;
+			if( stopRequested )
+				return;
+
+			long started = System.currentTimeMillis();
+			t.run();
+			long fullMilliseconds = System.currentTimeMillis() - started;
+
+			if( t.getExitReason() == CANCELLED )
+				return;
+
+			if( t.getExitReason() != SUCCESS ) {
+				IJ.log( "Couldn't find the path at full resolution to compare with the coarse-to-fine one" );
+				return;
+			}
+
+			Path fullPath = t.getResult();
+
+			IJ.log( "Coarse-to-fine path: length " + result.getRealLength() + " " + spacing_units +
+				", cost " + t.pathCost( result ) + ", " + pointsConsideredInSearch() +
+				" points searched in " + milliseconds + "ms" );
+			IJ.log( "Full resolution path: length " + fullPath.getRealLength() + " " + spacing_units +
+				", cost " + t.pathCost( fullPath ) + ", " + t.pointsConsideredInSearch() +
+				" points searched in " + fullMilliseconds + "ms" );
+			IJ.log( "Mean distance from the coarse-to-fine path to the full resolution one: " +
+				meanDistance( result, fullPath ) + " " + spacing_units );
+		}
+	}
+
+	/* The listeners may well start another search as soon as
+	   they're told that this one has finished, so let go of the
+	   cache first: */
+
+	@Override
+	public void reportFinished( boolean success ) {
+		releaseSearchTreeCache();
+		if( success && reportAccuracy && imagePyramid != null && result != null &&
+		    ! (useHessian && tubeness == null) )
+			accuracyReport = new AccuracyReport( System.currentTimeMillis() - coarseToFineStarted );
+		super.reportFinished( success );
+	}
+
+	void releaseSearchTreeCache( ) {
+
+		if( searchTreeCache == null )
+			return;
+
+		/* The goal was taken off the open list when it was
+		   found, but its neighbours haven't been looked at, so
+		   it must go back there for the next search: */
+
+		if( exitReason == SUCCESS &&
+		    nodes_as_image_from_start.getStatus( goal_x, goal_y, goal_z ) == OPEN_FROM_START ) {
+			int id = nodes_as_image_from_start.id( goal_x, goal_y, goal_z );
+			if( ! open_from_start.contains( id ) )
+				open_from_start.add( id, nodes_as_image_from_start.getG( goal_x, goal_y, goal_z ) );
+		}
+
+		searchTreeCache.finishedUsing( this, exitReason >= 0 &&
+					       exitReason != OUT_OF_MEMORY &&
+					       exitReason != OVER_MEMORY_BUDGET );
+		searchTreeCache = null;
+	}
+
 	@Override
 	protected boolean atGoal( int x, int y, int z, boolean fromStart ) {
 		if( fromStart )
@@ -113,6 +717,7 @@ public class TracerThread extends SearchThread {
 		       reportEveryMilliseconds );
 
                 this.reciprocal = reciprocal;
+		setReciprocalCosts( reciprocal );
 		this.singleSlice = singleSlice;
                 this.hessian = hessian;
 		this.tubeness = tubeness;
@@ -157,12 +762,6 @@ public class TracerThread extends SearchThread {
         }
 
 
-        /* If we're taking the reciprocal of the value at the new
-         * point as our cost, then values of zero cause a problem.
-         * This is the value that we use instead of zero there. */
-
-        static final double RECIPROCAL_FUDGE = 0.5;
-
         /* This cost doesn't take into account the distance between
          * the points - it will be post-multiplied by that value.
          *
@@ -173,125 +772,117 @@ public class TracerThread extends SearchThread {
 	@Override
         protected double costMovingTo( int new_x, int new_y, int new_z ) {
 
-		double value_at_new_point = -1;
-
-		switch(imageType) {
-		case ImagePlus.GRAY8:
-		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y*width+new_x] & 0xFF;
-			break;
-		case ImagePlus.GRAY16:
-		{
-			value_at_new_point = slices_data_s[new_z][new_y*width+new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
-		}
-		case ImagePlus.GRAY32:
-		{
-			value_at_new_point = slices_data_f[new_z][new_y*width+new_x];
-			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
-			break;
-		}
+		if( ! useHessian ) {
+			// The reciprocal or 256 minus the value there,
+			// looked up in a table (see IntensityCosts):
+			return intensityCost( new_x, new_y, new_z );
 		}
 
                 double cost;
 
-		if( useHessian ) {
+		if( tubeness == null ) {
 
-			if( tubeness == null ) {
+			if( costCache == null ) {
+				cost = hessianCost( new_x, new_y, new_z );
+			} else {
+				cost = costCache.get( new_x, new_y, new_z );
+				if( cost == 0 ) {
+					// Use the cost as it's cached, so that it's
+					// the same whether it was cached or not:
+					cost = (float)hessianCost( new_x, new_y, new_z );
+					costCache.put( new_x, new_y, new_z, cost );
+				}
+			}
 
-				if( singleSlice ) {
+		} else {
 
-					double [] hessianEigenValues = new double[2];
+			// Then this saves a lot of time:
+			float measure = tubeness[new_z][new_y*width+new_x];
+			if( measure == 0 )
+				measure = 0.2f;
+			cost = 1 / measure;
 
-					boolean real = hessian.hessianEigenvaluesAtPoint2D( new_x, new_y,
-											    true, hessianEigenValues, false, true, x_spacing, y_spacing );
+		}
 
-					// Just use the absolute value
-					// of the largest eigenvalue
-					// (if it's < 0)
+                return cost;
+        }
 
-					if( real && (hessianEigenValues[1] < 0) ) {
+	/* The cost of moving to (x,y,z) derived from the
+	 * eigenvalues of the Hessian at that point: */
 
-						double measure = Math.abs( hessianEigenValues[1] );
-						if( measure == 0 ) // This should never happen in practice...
-							measure = 0.2;
+	double hessianCost( int new_x, int new_y, int new_z ) {
 
-						measure *= multiplier;
-						if( measure > 256 )
-							measure = 256;
+		double cost;
 
-						cost = 1 / measure;
+		if( singleSlice ) {
 
-					} else {
+			double [] hessianEigenValues = new double[2];
 
-						cost = 1 / 0.2;
+			boolean real = hessian.hessianEigenvaluesAtPoint2D( new_x, new_y,
+									    true, hessianEigenValues, false, true, x_spacing, y_spacing );
 
-					}
+			// Just use the absolute value
+			// of the largest eigenvalue
+			// (if it's < 0)
 
-				} else {
+			if( real && (hessianEigenValues[1] < 0) ) {
 
-					double [] hessianEigenValues = new double[3];
+				double measure = Math.abs( hessianEigenValues[1] );
+				if( measure == 0 ) // This should never happen in practice...
+					measure = 0.2;
 
-					boolean real = hessian.hessianEigenvaluesAtPoint3D( new_x, new_y, new_z,
-											    true, hessianEigenValues, false, true, x_spacing, y_spacing, z_spacing );
+				measure *= multiplier;
+				if( measure > 256 )
+					measure = 256;
 
-					/* FIXME: there's lots of literature on how to
-					   pick this rule (see Sato et al,
-					   "Three-dimensional multi-scale line filter
-					   for segmentation and visualization of
-					   curvilinear structures in medical images".
-					   The rule I'm using here probably isn't optimal. */
+				cost = 1 / measure;
 
-					double e1 = hessianEigenValues[1];
-					double e2 = hessianEigenValues[2];
+			} else {
 
-					if( real && (e1 < 0) && (e2 < 0) ) {
+				cost = 1 / 0.2;
 
-						double measure = Math.sqrt( e1 * e2 );
+			}
 
-						if( measure == 0 ) // This should never happen in practice...
-							measure = 0.2;
+		} else {
 
-						measure *= multiplier;
-						if( measure > 256 )
-							measure = 256;
+			double [] hessianEigenValues = new double[3];
 
-						cost = 1 / measure;
+			boolean real = hessian.hessianEigenvaluesAtPoint3D( new_x, new_y, new_z,
+									    true, hessianEigenValues, false, true, x_spacing, y_spacing, z_spacing );
 
-					} else {
+			/* FIXME: there's lots of literature on how to
+			   pick this rule (see Sato et al,
+			   "Three-dimensional multi-scale line filter
+			   for segmentation and visualization of
+			   curvilinear structures in medical images".
+			   The rule I'm using here probably isn't optimal. */
 
-						cost = 1 / 0.2;
+			double e1 = hessianEigenValues[1];
+			double e2 = hessianEigenValues[2];
 
-					}
+			if( real && (e1 < 0) && (e2 < 0) ) {
 
-				}
+				double measure = Math.sqrt( e1 * e2 );
 
+				if( measure == 0 ) // This should never happen in practice...
+					measure = 0.2;
 
-			} else {
+				measure *= multiplier;
+				if( measure > 256 )
+					measure = 256;
 
-				// Then this saves a lot of time:
-				float measure = tubeness[new_z][new_y*width+new_x];
-				if( measure == 0 )
-					measure = 0.2f;
 				cost = 1 / measure;
 
-			}
+			} else {
 
-		} else {
+				cost = 1 / 0.2;
 
-                        if( reciprocal ) {
-                                cost = 1 / RECIPROCAL_FUDGE;
-                                if( value_at_new_point != 0 )
-                                        cost = 1.0 / value_at_new_point;
-                        } else {
-                                cost = 256 - value_at_new_point;
-                        }
+			}
 
 		}
 
-                return cost;
-        }
+		return cost;
+	}
 
 	@Override
         float estimateCostToGoal( int current_x, int current_y, int current_z, boolean fromStart ) {
@@ -302,7 +893,17 @@ public class TracerThread extends SearchThread {
 
                 double distance = Math.sqrt( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
 
-                return (float) ( minimum_cost_per_unit_distance * distance );
+		double estimate = minimum_cost_per_unit_distance * distance;
+
+		if( landmarksUsed > 0 ) {
+			double bound = landmarks.lowerBound( landmarks.cell( current_x, current_y, current_z ),
+							     fromStart ? goalCell : startCell,
+							     landmarksUsed );
+			if( bound > estimate )
+				estimate = bound;
+		}
+
+                return (float) ( heuristicWeight * estimate );
 	}
 
 }
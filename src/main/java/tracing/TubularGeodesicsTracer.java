@@ -35,7 +35,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 
-public class TubularGeodesicsTracer extends Thread implements SearchInterface {
+public class TubularGeodesicsTracer implements Runnable, SearchInterface {
 
 	public TubularGeodesicsTracer( File oofFile,
 				float start_x_image,
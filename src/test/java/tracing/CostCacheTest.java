@@ -0,0 +1,75 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for the limit on the memory used by the cache of costs
+   from the Hessian */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CostCacheTest {
+
+	/* A cache of 64x64x64 voxels, which is 64 bricks, that may
+	   only use 16 of them: */
+
+	static CostCache smallCache( ) {
+		return new CostCache( 64, 64, 64, null, 1, 1, 16 * CostCache.BRICK_BYTES );
+	}
+
+	/* A voxel in each of the bricks, in order: */
+
+	static int [] voxelInBrick( CostCache cache, int b ) {
+		int x = (b % cache.bricksX) << cache.xBits;
+		int y = ((b / cache.bricksX) % cache.bricksY) << cache.yBits;
+		int z = (b / (cache.bricksX * cache.bricksY)) << cache.zBits;
+		return new int[] { x, y, z };
+	}
+
+	@Test
+	public void testStaysWithinLimit() {
+		CostCache cache = smallCache();
+		int bricks = cache.costs.length;
+		assertEquals( 64, bricks );
+		for( int b = 0; b < bricks; ++b ) {
+			int [] v = voxelInBrick( cache, b );
+			cache.put( v[0], v[1], v[2], b + 1 );
+			assertTrue( cache.bytesAllocated() <= cache.getMaximumBytes() );
+			// The cost just stored is always still there:
+			assertEquals( b + 1, cache.get( v[0], v[1], v[2] ), 0 );
+		}
+	}
+
+	@Test
+	public void testKeepsRecentlyUsedBricks() {
+		CostCache cache = smallCache();
+		int [] first = voxelInBrick( cache, 0 );
+		for( int b = 0; b < cache.costs.length; ++b ) {
+			int [] v = voxelInBrick( cache, b );
+			cache.put( v[0], v[1], v[2], b + 1 );
+			// Keep using the first brick:
+			assertEquals( 1, cache.get( first[0], first[1], first[2] ), 0 );
+		}
+		// ... while the ones that were only used once when the
+		// cache was full have gone:
+		int [] early = voxelInBrick( cache, 1 );
+		assertEquals( 0, cache.get( early[0], early[1], early[2] ), 0 );
+	}
+
+	@Test
+	public void testLoweringTheLimit() {
+		CostCache cache = smallCache();
+		for( int b = 0; b < 16; ++b ) {
+			int [] v = voxelInBrick( cache, b );
+			cache.put( v[0], v[1], v[2], b + 1 );
+		}
+		assertEquals( 16 * CostCache.BRICK_BYTES, cache.bytesAllocated() );
+		cache.setMaximumBytes( 8 * CostCache.BRICK_BYTES );
+		assertTrue( cache.bytesAllocated() <= 8 * CostCache.BRICK_BYTES );
+		// The most recently stored cost is kept:
+		int [] last = voxelInBrick( cache, 15 );
+		assertEquals( 16, cache.get( last[0], last[1], last[2] ), 0 );
+	}
+}
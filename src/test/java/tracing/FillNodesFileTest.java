@@ -0,0 +1,155 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for the binary file that the nodes of fills are saved
+   in next to a traces file */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FillNodesFileTest {
+
+	File first, second;
+
+	@Before public void setUp() throws IOException {
+		first = File.createTempFile( "fill-nodes", FillNodesFile.SUFFIX );
+		second = File.createTempFile( "fill-nodes-copy", FillNodesFile.SUFFIX );
+	}
+
+	@After
+	public void tearDown() {
+		first.delete();
+		second.delete();
+	}
+
+	/* A fill with nodes all over the range of coordinates that
+	   Fill can pack, with some open, some without a previous node
+	   and the previous nodes of the others both before and after
+	   them in the fill: */
+
+	static Fill randomFill( int size, long seed ) {
+		Random random = new Random( seed );
+		int maximum = 1 << Fill.COORDINATE_BITS;
+		Fill fill = new Fill( size );
+		for( int i = 0; i < size; ++i ) {
+			int x, y, z;
+			if( random.nextBoolean() ) {
+				// Mostly near the previous node, as in a
+				// real fill:
+				x = (i * 7) % 300 + random.nextInt( 3 );
+				y = (i / 300) % 300;
+				z = i / 90000;
+			} else {
+				x = random.nextInt( maximum );
+				y = random.nextInt( maximum );
+				z = random.nextInt( maximum );
+			}
+			int previous = (i == 0 || random.nextInt( 10 ) == 0) ? -1 : random.nextInt( size );
+			if( previous == i )
+				previous = -1;
+			fill.add( x, y, z, random.nextFloat() * 1000, previous, random.nextInt( 4 ) == 0 );
+		}
+		fill.setThreshold( 0.5 );
+		fill.setMetric( "reciprocal-intensity-scaled" );
+		fill.setSpacing( 1, 1, 2, "um" );
+		return fill;
+	}
+
+	static void assertSameNodes( Fill expected, Fill actual ) {
+		assertEquals( expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); ++i ) {
+			assertEquals( "x of node " + i, expected.getX( i ), actual.getX( i ) );
+			assertEquals( "y of node " + i, expected.getY( i ), actual.getY( i ) );
+			assertEquals( "z of node " + i, expected.getZ( i ), actual.getZ( i ) );
+			assertEquals( "distance of node " + i, expected.getDistance( i ), actual.getDistance( i ), 0 );
+			assertEquals( "previous of node " + i, expected.getPrevious( i ), actual.getPrevious( i ) );
+			assertEquals( "status of node " + i, expected.isOpen( i ), actual.isOpen( i ) );
+		}
+	}
+
+	static Fill unread( FillNodesFile.Location location ) {
+		Fill fill = new Fill();
+		fill.setNodesLocation( location );
+		return fill;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+
+		// Empty, a single node, exactly one chunk and just over one:
+		int [] sizes = { 0, 1, FillNodesFile.NODES_PER_CHUNK, FillNodesFile.NODES_PER_CHUNK + 1 };
+
+		Fill [] fills = new Fill[sizes.length];
+		FillNodesFile.Location [] locations = new FillNodesFile.Location[sizes.length];
+
+		FillNodesFile.Writer writer = new FillNodesFile.Writer( first );
+		for( int i = 0; i < sizes.length; ++i ) {
+			fills[i] = randomFill( sizes[i], i );
+			locations[i] = writer.write( fills[i] );
+			assertEquals( sizes[i], locations[i].nodeCount );
+		}
+		writer.close();
+
+		// Read them back in the reverse order, to make sure that
+		// each is found from its offset:
+		for( int i = sizes.length - 1; i >= 0; --i ) {
+			Fill read = unread( locations[i] );
+			assertFalse( read.nodesLoaded() );
+			assertEquals( sizes[i], read.size() );
+			read.loadNodes();
+			assertTrue( read.nodesLoaded() );
+			assertSameNodes( fills[i], read );
+		}
+	}
+
+	@Test
+	public void testCopyOfUnreadFill() throws IOException {
+
+		Fill original = randomFill( FillNodesFile.NODES_PER_CHUNK + 1, 42 );
+
+		FillNodesFile.Writer writer = new FillNodesFile.Writer( first );
+		writer.write( randomFill( 10, 1 ) );
+		FillNodesFile.Location location = writer.write( original );
+		writer.close();
+
+		/* Save the fill again, as if the traces file had been
+		   loaded and saved without anything looking at the
+		   fill's nodes: */
+
+		Fill fill = unread( location );
+		fill.setSavedVolume( original.getVolume() );
+		fill.setMetric( original.getMetric() );
+		fill.setThreshold( original.getThreshold() );
+
+		StringWriter xml = new StringWriter();
+		PrintWriter pw = new PrintWriter( xml );
+		FillNodesFile.Writer copyWriter = new FillNodesFile.Writer( second );
+		copyWriter.write( randomFill( 3, 2 ) );
+		FillNodesFile.Location copied = fill.writeXML( pw, 0, copyWriter, second.getName() );
+		copyWriter.close();
+		pw.close();
+
+		assertFalse( "Saving an unread fill shouldn't read its nodes", fill.nodesLoaded() );
+		assertTrue( xml.toString().contains( "nodesoffset=\"" + copied.offset + "\"" ) );
+		assertEquals( original.size(), copied.nodeCount );
+
+		// The copy mustn't depend on the file it was copied from:
+		first.delete();
+
+		Fill read = unread( copied );
+		read.loadNodes();
+		assertSameNodes( original, read );
+	}
+}
@@ -0,0 +1,171 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for filling with several threads (see ParallelFill),
+   against the sequential filler, and for taking a Fill from it while
+   it's running */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ParallelFillTest {
+
+	/* Random noise, so that there are plenty of different routes
+	   to each voxel for the threads to disagree about: */
+
+	static ImagePlus noise( int width, int height, int depth ) {
+		Random random = new Random( 1 );
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			byte [] pixels = new byte[width * height];
+			for( int i = 0; i < pixels.length; ++i )
+				pixels[i] = (byte)( 1 + random.nextInt( 255 ) );
+			stack.addSlice( null, pixels );
+		}
+		return new ImagePlus( "noise", stack );
+	}
+
+	static FillerThread filler( ImagePlus image, int threads ) {
+		FillerThread filler = new FillerThread( image,
+							0,
+							255,
+							false, // startPaused
+							true, // reciprocal
+							0.03f, // threshold
+							0 ); // reportEveryMilliseconds
+		filler.addNode( new SearchNode( image.getWidth() / 2,
+						image.getHeight() / 3,
+						image.getStackSize() / 2,
+						0, 0, null, SearchThread.OPEN_FROM_START ), true );
+		filler.setThreads( threads );
+		return filler;
+	}
+
+	@Test
+	public void testSameDistancesAsSequential() {
+
+		ImagePlus image = noise( 61, 47, 23 );
+		int width = image.getWidth(), height = image.getHeight(), depth = image.getStackSize();
+
+		FillerThread sequential = filler( image, 1 );
+		sequential.run();
+		assertEquals( SearchThread.POINTS_EXHAUSTED, sequential.getExitReason() );
+
+		int [] threadCounts = { 2, 3, 4, 8 };
+		for( int threads : threadCounts ) {
+
+			FillerThread parallel = filler( image, threads );
+			parallel.run();
+			assertEquals( SearchThread.POINTS_EXHAUSTED, parallel.getExitReason() );
+
+			/* Whatever order the nodes were expanded in, the
+			   best route to each voxel is the same, and so is
+			   the sum of floats along it: */
+
+			for( int z = 0; z < depth; ++z )
+				for( int y = 0; y < height; ++y )
+					for( int x = 0; x < width; ++x ) {
+						float expected = sequential.getDistanceAtPoint( x, y, z );
+						assertTrue( expected >= 0 );
+						assertEquals( "g at (" + x + "," + y + "," + z + ") with " + threads + " threads",
+							      expected, parallel.getDistanceAtPoint( x, y, z ), 0 );
+					}
+		}
+	}
+
+	/* Check that a fill taken while the filler was running makes
+	   sense: each node appears once, and every node but the start
+	   has a previous node in the fill that is closer to the start.
+	   (The previous node may be open, since a parallel fill can
+	   reopen a node that it has already expanded.) */
+
+	static void assertConsistent( Fill fill, int width, int height ) {
+		BitSet positions = new BitSet();
+		for( int i = 0; i < fill.size(); ++i ) {
+			int position = (fill.getZ( i ) * height + fill.getY( i )) * width + fill.getX( i );
+			assertFalse( "Node " + i + " is in the fill twice", positions.get( position ) );
+			positions.set( position );
+			int previous = fill.getPrevious( i );
+			if( fill.getDistance( i ) == 0 ) {
+				assertEquals( -1, previous );
+			} else {
+				assertTrue( "Node " + i + " has no previous node", previous >= 0 && previous < fill.size() );
+				assertTrue( "Node " + i + " is nearer than the node it was reached from",
+					    fill.getDistance( previous ) < fill.getDistance( i ) );
+			}
+		}
+	}
+
+	static int openNodes( Fill fill ) {
+		int open = 0;
+		for( int i = 0; i < fill.size(); ++i )
+			if( fill.isOpen( i ) )
+				++ open;
+		return open;
+	}
+
+	static void assertSameFill( Fill a, Fill b ) {
+		assertEquals( a.size(), b.size() );
+		for( int i = 0; i < a.size(); ++i ) {
+			assertEquals( a.getX( i ), b.getX( i ) );
+			assertEquals( a.getY( i ), b.getY( i ) );
+			assertEquals( a.getZ( i ), b.getZ( i ) );
+			assertEquals( a.getDistance( i ), b.getDistance( i ), 0 );
+			assertEquals( a.getPrevious( i ), b.getPrevious( i ) );
+			assertEquals( a.isOpen( i ), b.isOpen( i ) );
+		}
+	}
+
+	@Test
+	public void testSnapshotsWhileFilling() throws InterruptedException, ExecutionException {
+
+		ImagePlus image = noise( 160, 160, 60 );
+		int width = image.getWidth(), height = image.getHeight();
+		int voxels = width * height * image.getStackSize();
+
+		FillerThread filler = filler( image, 4 );
+		Future<?> filling = SearchScheduler.getForFilling().submit( filler );
+		while( filler.getThreadStatus() != SearchThread.RUNNING )
+			Thread.sleep( 1 );
+
+		// Snapshots while it's running:
+		for( int i = 0; i < 3; ++i )
+			assertConsistent( filler.getFill(), width, height );
+
+		// Pause it part of the way through:
+		filler.pauseOrUnpause();
+		Fill paused = filler.getFill();
+		assertTrue( "The fill finished before it could be paused", openNodes( paused ) > 0 );
+		assertConsistent( paused, width, height );
+
+		// Nothing should change while it's paused:
+		Thread.sleep( 200 );
+		assertSameFill( paused, filler.getFill() );
+
+		filler.pauseOrUnpause();
+
+		// And some more snapshots once it's going again:
+		while( ! filling.isDone() ) {
+			assertConsistent( filler.getFill(), width, height );
+			Thread.sleep( 50 );
+		}
+		filling.get();
+
+		assertEquals( SearchThread.POINTS_EXHAUSTED, filler.getExitReason() );
+		Fill finished = filler.getFill();
+		assertConsistent( finished, width, height );
+		assertEquals( voxels, finished.size() );
+		assertEquals( 0, openNodes( finished ) );
+	}
+}
@@ -0,0 +1,189 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Random;
+
+/* This times the search on synthetic stacks of each image type (a
+   bright curved tube in noise) and prints the cost of expanding
+   each node, to compare changes to the search's inner loop.  It
+   isn't a unit test, so it's never run by the build; run it with the
+   test classpath:
+
+     java -cp <test classpath> tracing.SearchBenchmark [8|16|32] [width height depth]
+
+   Each search is run several times and the fastest is reported, so
+   that the JIT has had a chance to compile the inner loop.  If
+   the numbers are to be compared with another version, give the
+   number of bits to only time one image type in each JVM, since
+   the JIT's profile from one type changes how the next is
+   compiled. */
+
+public class SearchBenchmark {
+
+	static final int RUNS = 10;
+
+	static final String [] typeNames = { "8 bit", "16 bit", "32 bit" };
+	static final int [] types = { ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32 };
+
+	static ImagePlus makeStack( int type, int width, int height, int depth ) {
+		Random rng = new Random( 42 );
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			Object pixels;
+			if( type == ImagePlus.GRAY8 )
+				pixels = new byte[width * height];
+			else if( type == ImagePlus.GRAY16 )
+				pixels = new short[width * height];
+			else
+				pixels = new float[width * height];
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					double distance = distanceFromTube( x, y, z, width, height, depth );
+					double v = 200 * Math.exp( - distance * distance / 8 ) + 20 * rng.nextDouble();
+					int i = y * width + x;
+					if( type == ImagePlus.GRAY8 )
+						((byte [])pixels)[i] = (byte)Math.min( 255, (int)v );
+					else if( type == ImagePlus.GRAY16 )
+						((short [])pixels)[i] = (short)(v * 100);
+					else
+						((float [])pixels)[i] = (float)(v / 7);
+				}
+			stack.addSlice( null, pixels );
+		}
+		return new ImagePlus( typeNames[typeIndex( type )] + " benchmark", stack );
+	}
+
+	static int tubeY( int x, int width, int height ) {
+		return (int)Math.round( height / 2 + (height / 4) * Math.sin( x * 2 * Math.PI / width ) );
+	}
+
+	static int tubeZ( int x, int width, int depth ) {
+		return (int)Math.round( depth / 2 + (depth / 4.0) * Math.cos( x * 2 * Math.PI / width ) );
+	}
+
+	static double distanceFromTube( int x, int y, int z, int width, int height, int depth ) {
+		double ydiff = y - (height / 2 + (height / 4) * Math.sin( x * 2 * Math.PI / width ));
+		double zdiff = z - (depth / 2 + (depth / 4.0) * Math.cos( x * 2 * Math.PI / width ));
+		return Math.sqrt( ydiff * ydiff + zdiff * zdiff );
+	}
+
+	static int typeIndex( int type ) {
+		for( int i = 0; i < types.length; ++i )
+			if( types[i] == type )
+				return i;
+		throw new IllegalArgumentException( "Unknown image type " + type );
+	}
+
+	static float [] range( ImagePlus imagePlus ) {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		ImageStack stack = imagePlus.getStack();
+		for( int z = 1; z <= stack.getSize(); ++z ) {
+			Object pixels = stack.getPixels( z );
+			int n = imagePlus.getWidth() * imagePlus.getHeight();
+			for( int i = 0; i < n; ++i ) {
+				float v;
+				if( pixels instanceof byte [] )
+					v = ((byte [])pixels)[i] & 0xFF;
+				else if( pixels instanceof short [] )
+					v = ((short [])pixels)[i];
+				else
+					v = ((float [])pixels)[i];
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+			}
+		}
+		return new float[] { min, max };
+	}
+
+	public static void main( String [] args ) {
+
+		int [] typesToTime = types;
+		int firstSize = 0;
+		if( args.length == 1 || args.length == 4 ) {
+			int bits = Integer.parseInt( args[0] );
+			typesToTime = new int[] { types[bits == 8 ? 0 : (bits == 16 ? 1 : 2)] };
+			firstSize = 1;
+		}
+
+		int width = 256, height = 256, depth = 48;
+		if( args.length >= firstSize + 3 ) {
+			width = Integer.parseInt( args[firstSize] );
+			height = Integer.parseInt( args[firstSize + 1] );
+			depth = Integer.parseInt( args[firstSize + 2] );
+		}
+
+		int start_x = 8, goal_x = width - 8;
+
+		for( int type : typesToTime ) {
+
+			ImagePlus imagePlus = makeStack( type, width, height, depth );
+			float [] minAndMax = range( imagePlus );
+
+			for( boolean reciprocal : new boolean[] { true, false } ) {
+
+				long fastest = Long.MAX_VALUE;
+				int nodes = 0;
+
+				for( int run = 0; run < RUNS; ++run ) {
+					TracerThread tracer = new TracerThread( imagePlus,
+										minAndMax[0],
+										minAndMax[1],
+										0, // timeoutSeconds
+										0, // reportEveryMilliseconds
+										start_x,
+										tubeY( start_x, width, height ),
+										tubeZ( start_x, width, depth ),
+										goal_x,
+										tubeY( goal_x, width, height ),
+										tubeZ( goal_x, width, depth ),
+										reciprocal,
+										depth == 1,
+										null,
+										1,
+										null,
+										false );
+					long started = System.nanoTime();
+					tracer.run();
+					long taken = System.nanoTime() - started;
+					if( taken < fastest ) {
+						fastest = taken;
+						nodes = tracer.closedNodes();
+					}
+				}
+
+				System.out.println( typeNames[typeIndex( type )] + ", " +
+						    (reciprocal ? "reciprocal" : "256 minus") + ": " +
+						    nodes + " nodes expanded in " + (fastest / 1000000) + "ms, " +
+						    (fastest / nodes) + "ns per node" );
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests that the other ways of running a search find a path as
+   short as a fresh sequential search does */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchModesTest {
+
+	ImagePlus image;
+
+	/* A bright tube of constant intensity winding through a dark
+	   stack.  Since the cost is the same everywhere in the tube,
+	   every cheapest path along it is also a shortest one, so
+	   searches that break ties differently still find paths of the
+	   same length. */
+
+	static final int width = 100, height = 60, depth = 20;
+
+	static int tubeY( int x ) {
+		return (int)Math.round( height / 2 + (height / 4) * Math.sin( 2 * Math.PI * x / width ) );
+	}
+
+	static final int tubeZ = depth / 2;
+
+	@Before public void setUp() {
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			byte [] pixels = new byte[width * height];
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					int dy = y - tubeY( x ), dz = z - tubeZ;
+					pixels[y * width + x] = (byte)( dy * dy + dz * dz <= 6 ? 200 : 5 );
+				}
+			stack.addSlice( null, pixels );
+		}
+		image = new ImagePlus( "tube", stack );
+	}
+
+	@After
+	public void tearDown() {
+		if (image != null) image.close();
+	}
+
+	TracerThread tracer( int startX, int endX ) {
+		return new TracerThread(image,
+					0,
+					255,
+					-1, // timeoutSeconds
+					100, // reportEveryMilliseconds
+					startX,
+					tubeY( startX ),
+					tubeZ,
+					endX,
+					tubeY( endX ),
+					tubeZ,
+					true, // reciprocal
+					false, // singleSlice
+					null,
+					1, // multiplier
+					null,
+					false);
+	}
+
+	/* The length of the path found by an A* search from the start
+	   point only, which is always a cheapest path: */
+
+	double sequentialLength( int startX, int endX ) {
+		TracerThread tracer = tracer( startX, endX );
+		tracer.setAnytime( 1 );
+		tracer.run();
+		Path result = tracer.getResult();
+		assertNotNull( "No path found by the sequential search", result );
+		return result.getRealLength();
+	}
+
+	@Test
+	public void testParallel() {
+
+		int startX = 5, endX = width - 6;
+		double expected = sequentialLength( startX, endX );
+
+		TracerThread tracer = tracer( startX, endX );
+		tracer.setParallel( true );
+		tracer.run();
+		Path result = tracer.getResult();
+		assertNotNull( "No path found by the parallel search", result );
+
+		assertEquals( "Length of the path found in parallel",
+			      expected, result.getRealLength(), 0.001 );
+	}
+
+	@Test
+	public void testSearchTreeCache() {
+
+		int startX = 5, nearX = width / 3, farX = width - 6;
+		SearchTreeCache cache = new SearchTreeCache();
+
+		/* The first search fills the cache on the way to a goal
+		   part of the way along the tube, the second goal needs
+		   the search to carry on from where that one stopped, and
+		   the third was already reached by then: */
+
+		int [] goals = { nearX, farX, width / 2 };
+		for( int endX : goals ) {
+
+			double expected = sequentialLength( startX, endX );
+
+			TracerThread tracer = tracer( startX, endX );
+			tracer.setSearchTreeCache( cache );
+			tracer.run();
+			Path result = tracer.getResult();
+			assertNotNull( "No path found using the cache", result );
+			assertTrue( "The search tree wasn't kept", cache.bytesAllocated() > 0 );
+
+			assertEquals( "Length of the path to x = " + endX + " found using the cache",
+				      expected, result.getRealLength(), 0.001 );
+		}
+	}
+}
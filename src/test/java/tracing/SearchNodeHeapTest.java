@@ -0,0 +1,154 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for the indexed heap that SearchThread uses for its
+   open lists, and the node store that it keeps its positions in */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SearchNodeHeapTest {
+
+	@Test
+	public void testNodeIndices() {
+
+		int width = 37, height = 21, depth = 19;
+		SearchNodeStore nodes = new SearchNodeStore( width, height, depth );
+
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					int id = nodes.id( x, y, z );
+					assertEquals( x, nodes.x( id ) );
+					assertEquals( y, nodes.y( id ) );
+					assertEquals( z, nodes.z( id ) );
+				}
+
+		assertEquals( SearchNodeStore.ABSENT, nodes.getStatus( 36, 20, 18 ) );
+		nodes.set( 36, 20, 18, 1.5f, nodes.id( 35, 20, 18 ), SearchThread.OPEN_FROM_START );
+		assertEquals( SearchThread.OPEN_FROM_START, nodes.getStatus( 36, 20, 18 ) );
+		assertEquals( nodes.id( 35, 20, 18 ), nodes.getPredecessor( 36, 20, 18 ) );
+		assertEquals( 1, nodes.count( SearchThread.OPEN_FROM_START ) );
+		assertTrue( nodes.anyNodesInSlice( 18 ) );
+		assertFalse( nodes.anyNodesInSlice( 0 ) );
+	}
+
+	@Test
+	public void testOrderingAndDecreaseKey() {
+
+		int width = 20, height = 10, depth = 5;
+		SearchNodeStore nodes = new SearchNodeStore( width, height, depth );
+		SearchNodeHeap heap = new SearchNodeHeap( nodes, 4 );
+
+		Random random = new Random( 1 );
+		HashMap< Integer, Float > expected = new HashMap< Integer, Float >();
+		ArrayList< Integer > ids = new ArrayList< Integer >();
+
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					int id = nodes.id( x, y, z );
+					float key = random.nextInt( 100 );
+					nodes.set( x, y, z, key, SearchNodeStore.NONE, SearchThread.OPEN_FROM_START );
+					heap.add( id, key );
+					expected.put( id, key );
+					ids.add( id );
+				}
+
+		// Decrease some keys and remove some nodes:
+		for( int i = 0; i < 300; ++i ) {
+			int id = ids.get( random.nextInt( ids.size() ) );
+			if( ! expected.containsKey( id ) )
+				continue;
+			if( i % 3 == 0 ) {
+				assertTrue( heap.remove( id ) );
+				assertFalse( heap.contains( id ) );
+				expected.remove( id );
+			} else {
+				float key = expected.get( id ) / 2;
+				expected.put( id, key );
+				heap.update( id, key );
+			}
+		}
+
+		assertEquals( expected.size(), heap.size() );
+
+		float lastKey = -1;
+		int lastId = -1;
+		while( heap.size() > 0 ) {
+			float key = heap.peekKey();
+			int id = heap.poll();
+			assertEquals( expected.remove( id ), key, 0 );
+			assertTrue( key >= lastKey );
+			if( key == lastKey )
+				assertTrue( "ties should be broken by index", id > lastId );
+			lastKey = key;
+			lastId = id;
+		}
+
+		assertTrue( expected.isEmpty() );
+	}
+
+	@Test
+	public void testRadixHeapMatchesBinaryHeap() {
+
+		int width = 30, height = 20, depth = 10;
+		SearchNodeStore radixNodes = new SearchNodeStore( width, height, depth );
+		SearchNodeStore heapNodes = new SearchNodeStore( width, height, depth );
+		SearchNodeQueue radix = new SearchNodeRadixHeap( radixNodes );
+		SearchNodeQueue heap = new SearchNodeHeap( heapNodes );
+
+		Random random = new Random( 2 );
+		HashMap< Integer, Float > keys = new HashMap< Integer, Float >();
+
+		// As in Dijkstra's algorithm, only add or decrease to
+		// keys no lower than the last one taken off, apart from
+		// the occasional lower one that forces a rebuild:
+		float last = 0;
+		for( int i = 0; i < 20000; ++i ) {
+			int x = random.nextInt( width ), y = random.nextInt( height ), z = random.nextInt( depth );
+			int id = radixNodes.id( x, y, z );
+			float key = last + random.nextInt( 1000 ) / 64.0f;
+			if( i % 5000 == 4999 )
+				key = last / 2;
+			if( ! keys.containsKey( id ) ) {
+				radixNodes.set( x, y, z, key, SearchNodeStore.NONE, SearchThread.OPEN_FROM_START );
+				heapNodes.set( x, y, z, key, SearchNodeStore.NONE, SearchThread.OPEN_FROM_START );
+				radix.add( id, key );
+				heap.add( id, key );
+				keys.put( id, key );
+			} else if( key < keys.get( id ) ) {
+				radix.update( id, key );
+				heap.update( id, key );
+				keys.put( id, key );
+			}
+			assertTrue( radix.contains( id ) );
+			if( i % 3 == 0 ) {
+				float lowest = heap.peekKey();
+				assertEquals( lowest, radix.peekKey(), 0 );
+				int fromHeap = heap.poll();
+				int fromRadix = radix.poll();
+				assertEquals( (float)keys.get( fromHeap ), (float)keys.get( fromRadix ), 0 );
+				if( fromHeap != fromRadix ) {
+					// Nodes with equal keys may come off in a
+					// different order:
+					assertTrue( heap.remove( fromRadix ) );
+					assertTrue( radix.remove( fromHeap ) );
+				}
+				keys.remove( fromHeap );
+				keys.remove( fromRadix );
+				assertFalse( radix.contains( fromRadix ) );
+				assertEquals( heap.size(), radix.size() );
+				last = lowest;
+			}
+		}
+	}
+}